@@ -0,0 +1,158 @@
+package com.spring2go.bigcache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.spring2go.bigcache.storage.Pointer;
+import com.spring2go.bigcache.storage.StorageBlock;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * The reads of a batch get, which are collected with the locks of the keys held and done after the locks
+ * are released.
+ *
+ * The storage blocks are leased as the reads are collected, so the values stay where they are until read.
+ * The reads are done in the order of block and position, so the storage is accessed as sequentially as possible,
+ * and the reads of values lying close to each other in a block are merged into one read of the span covering them,
+ * which saves most of the reads when the values were put together.
+ *
+ * A block may still be dropped from the FIFO ring while leased, see {@link CacheConfig#setFifoRing(boolean)}, so
+ * the values are checked against the generation of their blocks once read.
+ *
+ * @param <K> the key type
+ */
+class BatchRead<K> {
+    /** The max gap between two values whose reads are merged. */
+    static final int MAX_GAP = 4 * 1024;
+
+    /** The max length of a merged read. */
+    static final int MAX_SPAN = 256 * 1024;
+
+    private final List<Read<K>> reads;
+
+    /** The blocks leased by the batch, each block is leased once. */
+    private final List<StorageBlock> leasedBlocks = new ArrayList<StorageBlock>();
+
+    BatchRead(int size) {
+        reads = new ArrayList<Read<K>>(size);
+    }
+
+    /**
+     * Collects a read, should be called with the lock of the key held.
+     *
+     * @param key the key
+     * @param position the position of the value
+     * @param length the length of the value
+     * @param block the block of the value
+     */
+    void add(K key, long position, int length, StorageBlock block) {
+        add(key, position, length, block, block.getGeneration());
+    }
+
+    /**
+     * Collects a read of a value stored in the given generation of the block, should be called with the lock of
+     * the key held.
+     *
+     * @param key the key
+     * @param position the position of the value
+     * @param length the length of the value
+     * @param block the block of the value
+     * @param generation the generation of the block the value was stored in, see {@link Pointer#isStale()}
+     */
+    void add(K key, long position, int length, StorageBlock block, int generation) {
+        if (!leasedBlocks.contains(block)) {
+            block.lease();
+            leasedBlocks.add(block);
+        }
+        reads.add(new Read<K>(key, block, generation, position, length));
+    }
+
+    /**
+     * Does the reads in the order of block and position, merging the reads of values close to each other.
+     *
+     * @param values the values read, by key
+     * @return the number of values left out, as their blocks have been dropped from the FIFO ring
+     * @throws IOException
+     */
+    int readAll(Map<K, byte[]> values) throws IOException {
+        List<Read<K>> sorted = new ArrayList<Read<K>>(reads);
+        Collections.sort(sorted);
+        int from = 0;
+        while (from < sorted.size()) {
+            Read<K> first = sorted.get(from);
+            long end = first.position + first.length;
+            int to = from + 1;
+            for (; to < sorted.size(); to++) {
+                Read<K> next = sorted.get(to);
+                long nextEnd = Math.max(end, next.position + next.length);
+                if (next.block != first.block || next.position - end > MAX_GAP
+                        || nextEnd - first.position > MAX_SPAN) {
+                    break;
+                }
+                end = nextEnd;
+            }
+
+            if (to - from == 1) {
+                values.put(first.key, first.block.retrieve(first.position, first.length));
+            } else {
+                byte[] span = first.block.retrieve(first.position, (int) (end - first.position));
+                for (int i = from; i < to; i++) {
+                    Read<K> read = sorted.get(i);
+                    int offset = (int) (read.position - first.position);
+                    values.put(read.key, Arrays.copyOfRange(span, offset, offset + read.length));
+                }
+            }
+            from = to;
+        }
+
+        int dropped = 0;
+        for (Read<K> read : sorted) {
+            if (read.block.getGeneration() != read.generation) { // the bytes read may belong to others
+                values.remove(read.key);
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Releases the blocks leased by the batch.
+     */
+    void release() {
+        for (StorageBlock block : leasedBlocks) {
+            block.release();
+        }
+        leasedBlocks.clear();
+    }
+
+    private static class Read<K> implements Comparable<Read<K>> {
+        private final K key;
+        private final StorageBlock block;
+        private final int generation;
+        private final int blockIndex;
+        private final long position;
+        private final int length;
+
+        Read(K key, StorageBlock block, int generation, long position, int length) {
+            this.key = key;
+            this.block = block;
+            this.generation = generation;
+            this.blockIndex = block.getIndex();
+            this.position = position;
+            this.length = length;
+        }
+
+        @Override
+        public int compareTo(Read<K> o) {
+            if (blockIndex != o.blockIndex) {
+                return blockIndex < o.blockIndex ? -1 : 1;
+            }
+            return position < o.position ? -1 : (position == o.position ? 0 : 1);
+        }
+    }
+}
@@ -1,18 +1,40 @@
 package com.spring2go.bigcache;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.lang.ref.WeakReference;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.BiConsumer;
 
-import com.spring2go.bigcache.lock.StripedReadWriteLock;
+import com.spring2go.bigcache.codec.ICodec;
+import com.spring2go.bigcache.lock.StripedStampedLock;
+import com.spring2go.bigcache.storage.BlockInfo;
 import com.spring2go.bigcache.storage.Pointer;
+import com.spring2go.bigcache.storage.RecordScanner;
 import com.spring2go.bigcache.storage.StorageBlock;
 import com.spring2go.bigcache.storage.StorageManager;
+import com.spring2go.bigcache.storage.StorageRecord;
 import com.spring2go.bigcache.utils.FileUtil;
+import com.spring2go.bigcache.utils.KeySerializer;
+import com.spring2go.bigcache.utils.RateLimiter;
+import com.spring2go.bigcache.utils.TimerWheel;
 
 /**
  * Created on Jul, 2020 by @author bobo
@@ -33,18 +55,77 @@ public class BigCache<K> implements ICache<K> {
     /** The default purge interval which is 5 minutes. */
     public static final long DEFAULT_PURGE_INTERVAL = 5 * 60 * 1000;
 
+    /**
+     * The longest interval the expired entries are purged at, which is 1 second. The cleaner only visits the
+     * entries due on its timer wheel, so it can run much more often than the purge interval of a full scan.
+     */
+    public static final long MAX_EXPIRATION_TICK = 1000;
+
+    /** The number of entries sampled per block to tell how recently the entries of the block are accessed. */
+    public static final int EVICTION_SAMPLE_SIZE = 16;
+
+    /** The max time in milliseconds a writer waits for the leases on the blocks of a FIFO ring to be released. */
+    public static final long RING_LEASE_TIMEOUT = 1000;
+
+    /** The entries read at least as many times since the last merge are promoted to memory when tiering. */
+    public static final int TIERING_PROMOTION_HEAT = 2;
+
+    /** The longest interval the blocks are checked for a flush at, which is 100 milliseconds. */
+    public static final long DEFAULT_FLUSH_TICK = 100;
+
+    /** The interval the free blocks are checked at for preallocation, which is 10 milliseconds. */
+    public static final long DEFAULT_PROVISION_TICK = 10;
+
+    /** The number of threads storing the values put by {@link #putAsync(Object, byte[])}. */
+    public static final int ASYNC_WRITER_COUNT = 4;
+
     /** The default merge interval which is 10 minutes. */
     public static final long DEFAULT_MERGE_INTERVAL = 10 * 60 * 1000;
 
+    /** The shortest interval the merger runs at, when the storage is as dirty as the threshold, which is 1 second. */
+    public static final long MIN_MERGE_INTERVAL = 1000;
+
+    /** The default number of dirty blocks merged at once. */
+    public static final int DEFAULT_MERGE_PARALLELISM = 2;
+
+    /** The most bytes read from a dirty block at once when merging, the live payloads in a row are read together. */
+    public static final int MERGE_READ_SIZE = 1024 * 1024;
+
     /** The default threshold for dirty block recycling */
     public static final double DEFAULT_DIRTY_RATIO_THRESHOLD = 0.5;
 
     /** The Constant DEFAULT_CONCURRENCY_LEVEL. */
     public static final int DEFAULT_CONCURRENCY_LEVEL = 8; // 256 concurrent level
 
-    /** The length of value can't be greater than 4m */
+    /** The length of value can't be greater than 4m, except for the values put from streams */
     public static final int MAX_VALUE_LENGTH = 4 * 1024 * 1024;
 
+    /** The length of the chunks of a value put from a stream */
+    public static final int CHUNK_LENGTH = MAX_VALUE_LENGTH;
+
+    /** The values shorter are not worth compressing. */
+    public static final int MIN_COMPRESSION_LENGTH = 64;
+
+    /** The flag before each value stored with a codec set, telling whether the value is compressed. */
+    private static final byte VALUE_RAW = 0;
+    private static final byte VALUE_COMPRESSED = 1;
+
+    /** The flag and the original length before a compressed value. */
+    private static final int COMPRESSED_HEADER_LENGTH = 5;
+
+    /** Returned by an optimistic read to be retried with the lock held. */
+    private static final byte[] RETRY = new byte[0];
+
+    /** The name of the index checkpoint file written on close for warm restart. */
+    public static final String INDEX_FILE_NAME = "bigcache.index";
+
+    /** The magic number and version of the index checkpoint file. */
+    private static final int INDEX_FILE_MAGIC = 0x42434958;
+    private static final int INDEX_FILE_VERSION = 6;
+
+    /** The number of entries after which the object stream of the checkpoint is reset. */
+    private static final int INDEX_FILE_RESET_INTERVAL = 1024;
+
     /** The hit counter. */
     protected AtomicLong hitCounter = new AtomicLong();
 
@@ -66,17 +147,32 @@ public class BigCache<K> implements ICache<K> {
     /** The # of moves for dirty block recycle. */
     protected AtomicLong moveCounter = new AtomicLong();
 
+    /** The # of evictions to keep the storage within the max bytes. */
+    protected AtomicLong evictCounter = new AtomicLong();
+
     /** The total storage size we have used, including the expired ones which are still in the pointermap */
     protected AtomicLong usedSize = new AtomicLong();
 
     /** The internal map. */
     protected final ConcurrentMap<K, CacheValueWrapper> pointerMap = new ConcurrentHashMap<K, CacheValueWrapper>();
 
+    /** The keys by the blocks their payloads live in, which lets the merger visit the dirty blocks only. */
+    private final BlockReverseIndex<K> reverseIndex = new BlockReverseIndex<K>();
+
+    /** The entries to be checked for expiration by their deadlines, only touched by the cleaner. */
+    private final TimerWheel<Expiration<K>> expirationWheel;
+
+    /** The entries scheduled by the writers, waiting for the cleaner to put them on the wheel. */
+    private final Queue<Expiration<K>> expirationQueue = new ConcurrentLinkedQueue<Expiration<K>>();
+
+    /** Only one thread evicts at a time, the others wait for the block it frees. */
+    private final Object evictionLock = new Object();
+
     /** Managing the storages. */
     /* package for ut */ final StorageManager storageManager;
 
-    /** The read write lock. */
-    private final StripedReadWriteLock readWriteLock;
+    /** The read write lock, whose optimistic reads serve the plain gets. */
+    private final StripedStampedLock readWriteLock;
 
     /** The times of merge procedure has run. */
     private final AtomicLong NO_OF_MERGE_RUN = new AtomicLong();
@@ -90,9 +186,36 @@ public class BigCache<K> implements ICache<K> {
     /** The thread pool which is used to clean the cache */
     private ScheduledExecutorService ses;
 
+    /** The threads storing the values put by {@link #putAsync(Object, byte[])}, each one started on its first put */
+    private final ExecutorService[] asyncWriters = new ExecutorService[ASYNC_WRITER_COUNT];
+
+    /** The threads merging the dirty blocks, a block per task. */
+    private final ForkJoinPool mergePool;
+
+    /** Limits the bytes read and written by the merger. */
+    private final RateLimiter mergeRateLimiter;
+
+    /** The longest interval between two merges. */
+    private final long mergeInterval;
+
     /** dirty ratio which controls block recycle */
     private final double dirtyRatioThreshold;
 
+    /** Whether to checkpoint the index on close and reuse the cached data on the next start */
+    private final boolean warmRestart;
+
+    /** Whether the entries are stored as self-describing records, so the index can be rebuilt after a crash */
+    private final boolean crashRecovery;
+
+    /** The sequence of the records, which tells the latest record of a key during recovery */
+    private final AtomicLong recordSequence = new AtomicLong();
+
+    /** The codec compressing the values, or null if not compressed */
+    private final ICodec codec;
+
+    /** Whether the hot data is kept in memory blocks, see {@link CacheConfig#setTiering(boolean)} */
+    private final boolean tiering;
+
     public BigCache(String dir, CacheConfig config) throws IOException {
         this.cacheDir = dir;
         if (!this.cacheDir.endsWith(File.separator)) {
@@ -102,17 +225,54 @@ public class BigCache<K> implements ICache<K> {
         if (!FileUtil.isFilenameValid(this.cacheDir)) {
             throw new IllegalArgumentException("Invalid cache data directory : " + this.cacheDir);
         }
+        this.warmRestart = config.isWarmRestart();
+        this.crashRecovery = config.isCrashRecovery();
+        this.codec = config.getCodec();
+        this.tiering = config.isTiering();
+        long expirationTick = Math.max(1, Math.min(config.getPurgeInterval(), MAX_EXPIRATION_TICK));
+        this.expirationWheel = new TimerWheel<Expiration<K>>(expirationTick, System.currentTimeMillis());
+
+        StorageManager restoredStorageManager = null;
+        if (this.warmRestart) {
+            restoredStorageManager = this.restore(config);
+        }
+        if (restoredStorageManager == null && this.crashRecovery) {
+            restoredStorageManager = this.recover(config);
+        }
+        if (restoredStorageManager != null) {
+            this.storageManager = restoredStorageManager;
+            for (Map.Entry<K, CacheValueWrapper> entry : this.pointerMap.entrySet()) {
+                this.reverseIndex.add(entry.getKey(), entry.getValue());
+                this.scheduleExpiration(entry.getKey(), entry.getValue());
+            }
+        } else {
+            // clean up old cache data if exists
+            FileUtil.deleteDirectory(new File(this.cacheDir));
 
-        // clean up old cache data if exists
-        FileUtil.deleteDirectory(new File(this.cacheDir));
-
-        this.storageManager = new StorageManager(this.cacheDir, config.getCapacityPerBlock(),
-                config.getInitialNumberOfBlocks(), config.getStorageMode(), config.getMaxOffHeapMemorySize());
-        this.readWriteLock = new StripedReadWriteLock(config.getConcurrencyLevel());
+            this.storageManager = new StorageManager(this.cacheDir, config, null);
+        }
+        this.readWriteLock = new StripedStampedLock(config.getConcurrencyLevel());
 
-        ses = new ScheduledThreadPoolExecutor(2);
-        ses.scheduleWithFixedDelay(new CacheCleaner(this), config.getPurgeInterval(), config.getPurgeInterval(), TimeUnit.MILLISECONDS);
-        ses.scheduleWithFixedDelay(new CacheMerger(this), config.getMergeInterval(), config.getMergeInterval(), TimeUnit.MILLISECONDS);
+        for (int i = 0; i < asyncWriters.length; i++) {
+            asyncWriters[i] = Executors.newSingleThreadExecutor();
+        }
+        mergePool = new ForkJoinPool(config.getMergeParallelism());
+        mergeRateLimiter = new RateLimiter(config.getMergeRateLimit());
+        mergeInterval = config.getMergeInterval();
+        ses = new ScheduledThreadPoolExecutor(4);
+        ses.scheduleWithFixedDelay(new CacheCleaner(this), expirationTick, expirationTick, TimeUnit.MILLISECONDS);
+        if (!storageManager.isFifoRing()) { // the ring drops the oldest blocks rather than merging them
+            // the merger schedules its next run itself, see nextMergeDelay()
+            ses.schedule(new CacheMerger(this), mergeInterval, TimeUnit.MILLISECONDS);
+        }
+        if (storageManager.isFlushed()) {
+            // checked more often than the interval, for the blocks over the flush bytes
+            long flushTick = Math.min(config.getFlushInterval(), DEFAULT_FLUSH_TICK);
+            ses.scheduleWithFixedDelay(new CacheFlusher<K>(this), flushTick, flushTick, TimeUnit.MILLISECONDS);
+        }
+        if (storageManager.isPreallocating()) {
+            ses.scheduleWithFixedDelay(new CacheProvisioner<K>(this), 0, DEFAULT_PROVISION_TICK, TimeUnit.MILLISECONDS);
+        }
         dirtyRatioThreshold = config.getDirtyRatioThreshold();
     }
 
@@ -124,39 +284,277 @@ public class BigCache<K> implements ICache<K> {
 
     @Override
     public void put(K key, byte[] value, long tti) throws IOException {
-        putCounter.incrementAndGet();
+        this.put(key, value, tti, -1); // -1 means no time to live
+    }
+
+    /**
+     * Puts the value with the specified key, time to idle and time to live in milliseconds.
+     *
+     * The entry expires when it has not been accessed for the time to idle, or anyway when the time to live
+     * has passed since the put, whichever comes first.
+     *
+     * @param key the key
+     * @param value the value
+     * @param tti the time to idle value in milliseconds, -1 for never
+     * @param ttl the time to live value in milliseconds, -1 for never
+     * @throws IOException
+     */
+    public void put(K key, byte[] value, long tti, long ttl) throws IOException {
         if (value == null || value.length > MAX_VALUE_LENGTH) {
             throw new IllegalArgumentException("value is null or too long");
         }
 
+        putEncoded(key, encode(value), tti, ttl); // encoded out of the lock
+    }
+
+    /**
+     * Puts the value already encoded by {@link #encode(byte[])}, evicting until it fits.
+     *
+     * @param key the key
+     * @param storedValue the value encoded
+     * @param tti the time to idle value in milliseconds, -1 for never
+     * @param ttl the time to live value in milliseconds, -1 for never
+     * @throws IOException
+     */
+    private void putEncoded(K key, byte[] storedValue, long tti, long ttl) throws IOException {
+        putCounter.incrementAndGet();
+        long expireTime = ttl > 0 ? System.currentTimeMillis() + ttl : -1;
+        while (true) {
+            writeLock(key);
+            try {
+                if (doPut(key, storedValue, tti, expireTime)) {
+                    return;
+                }
+            } finally {
+                writeUnlock(key);
+            }
+            evict(); // out of the lock, as other keys are evicted
+        }
+    }
+
+    @Override
+    public void multiPut(Map<K, byte[]> entries) throws IOException {
+        this.multiPut(entries, -1); // -1 means no time to idle(never expires)
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void multiPut(Map<K, byte[]> entries, long tti) throws IOException {
+        putCounter.addAndGet(entries.size());
+        K[] keys = (K[]) new Object[entries.size()];
+        byte[][] values = new byte[entries.size()][];
+        int i = 0;
+        for (Map.Entry<K, byte[]> entry : entries.entrySet()) {
+            keys[i] = entry.getKey();
+            values[i] = entry.getValue();
+            if (values[i] == null || values[i].length > MAX_VALUE_LENGTH) {
+                throw new IllegalArgumentException("value is null or too long");
+            }
+            values[i] = encode(values[i]);
+            i++;
+        }
+
+        long[] order = orderByLock(keys);
+        for (i = 0; i < order.length; ) {
+            int lockIndex = (int) (order[i] >>> 32);
+            ReadWriteLock lock = readWriteLock.getLock(lockIndex);
+            boolean stored = true;
+            lock.writeLock().lock();
+            try {
+                for (; i < order.length && (int) (order[i] >>> 32) == lockIndex; i++) {
+                    int k = (int) order[i];
+                    if (!doPut(keys[k], values[k], tti, -1)) {
+                        stored = false;
+                        break;
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (!stored) {
+                evict(); // and carry on with the same entry
+            }
+        }
+    }
+
+    /**
+     * Puts the value with the specified key, should be called with the write lock of the key held.
+     *
+     * @param key the key
+     * @param value the value, as encoded by {@link #encode(byte[])}
+     * @param tti the time to idle value in milliseconds
+     * @param expireTime the absolute expire time in milliseconds
+     * @return false if the max bytes of storage are used up, and the put has to be tried again after eviction
+     */
+    private boolean doPut(K key, byte[] value, long tti, long expireTime) throws IOException {
+        CacheValueWrapper wrapper = pointerMap.get(key);
+        Pointer newPointer; // pointer with new storage info
+
+        byte[] payload = value;
+        if (crashRecovery) {
+            payload = StorageRecord.encode(KeySerializer.serialize(key), value,
+                    recordSequence.incrementAndGet(), tti, expireTime);
+        }
+
+        if (wrapper == null) {
+            // create a new one
+            wrapper = new CacheValueWrapper();
+            newPointer = storageManager.store(payload, expireTime);
+            if (newPointer == null) {
+                return false;
+            }
+        } else if (wrapper.isChunked()) {
+            // replace a value put from a stream
+            newPointer = storageManager.store(payload, expireTime);
+            if (newPointer == null) {
+                return false;
+            }
+            removePayload(key, wrapper);
+        } else {
+            // update and get the new storage
+            Pointer oldPointer = wrapper.getPointer();
+            newPointer = storageManager.update(oldPointer, payload, expireTime);
+            usedSize.addAndGet(oldPointer.getLength() * -1);
+            reverseIndex.remove(key, oldPointer);
+            if (newPointer == null) {
+                // the old payload has been removed, the put will go on as a new entry
+                pointerMap.remove(key);
+                return false;
+            }
+        }
+        reverseIndex.add(key, newPointer);
+        wrapper.setPointer(newPointer);
+        wrapper.setChunks(null);
+        wrapper.renew(System.currentTimeMillis(), tti, expireTime);
+        usedSize.addAndGet(newPointer.getLength());
+        pointerMap.put(key, wrapper);
+        scheduleExpiration(key, wrapper);
+        return true;
+    }
+
+    /**
+     * Schedules the entry to be checked for expiration by the cleaner, should be called with the write lock of
+     * the key held.
+     *
+     * An entry is scheduled once, the cleaner schedules it again when its deadline has moved on by accesses.
+     * Only a deadline brought forward by a put is scheduled again here, the stale schedule is dropped when due.
+     *
+     * @param key the key
+     * @param wrapper the entry
+     */
+    private void scheduleExpiration(K key, CacheValueWrapper wrapper) {
+        long deadline = wrapper.getExpirationTime();
+        long scheduled = wrapper.scheduledExpiration;
+        if (deadline > 0 && (scheduled == 0 || deadline < scheduled)) {
+            wrapper.scheduledExpiration = deadline;
+            expirationQueue.offer(new Expiration<K>(key, wrapper, deadline));
+        }
+    }
+
+    /**
+     * Puts the value read from the input stream with the specified key, see
+     * {@link #put(Object, ReadableByteChannel, long, long)}.
+     *
+     * @param key the key
+     * @param in the input stream
+     * @param length the length of the value
+     * @throws IOException
+     */
+    public void put(K key, InputStream in, long length) throws IOException {
+        this.put(key, Channels.newChannel(in), length, -1);
+    }
+
+    /**
+     * Puts the value read from the channel with the specified key, see
+     * {@link #put(Object, ReadableByteChannel, long, long)}.
+     *
+     * @param key the key
+     * @param source the source channel
+     * @param length the length of the value
+     * @throws IOException
+     */
+    public void put(K key, ReadableByteChannel source, long length) throws IOException {
+        this.put(key, source, length, -1);
+    }
+
+    /**
+     * Puts the value read from the channel with the specified key and time to idle in milliseconds.
+     *
+     * The value may be longer than {@link #MAX_VALUE_LENGTH}, it is stored in chunks of {@link #CHUNK_LENGTH}
+     * which may be spread over storage blocks, so it never has to be on heap as a whole. In pure file mode the
+     * chunks are transferred to the files directly. Not supported when crash recovery is enabled.
+     *
+     * @param key the key
+     * @param source the source channel
+     * @param length the length of the value
+     * @param tti the time to idle value in milliseconds
+     * @throws IOException
+     */
+    public void put(K key, ReadableByteChannel source, long length, long tti) throws IOException {
+        putCounter.incrementAndGet();
+        if (source == null || length < 0) {
+            throw new IllegalArgumentException("source is null or length is negative");
+        }
+        if (crashRecovery) {
+            throw new UnsupportedOperationException("values put from streams can't be recovered after a crash");
+        }
+
+        // the chunks are stored before locking, as the source may be slow
+        Pointer[] chunks = new Pointer[(int) ((length + CHUNK_LENGTH - 1) / CHUNK_LENGTH)];
+        try {
+            long remaining = length;
+            for (int i = 0; i < chunks.length; i++) {
+                int chunkLength = (int) Math.min(CHUNK_LENGTH, remaining);
+                while ((chunks[i] = storageManager.store(source, chunkLength)) == null) {
+                    evict();
+                }
+                remaining -= chunkLength;
+            }
+        } catch (IOException e) {
+            removeChunks(chunks);
+            throw e;
+        }
+
         writeLock(key);
         try {
             CacheValueWrapper wrapper = pointerMap.get(key);
-            Pointer newPointer; // pointer with new storage info
-
             if (wrapper == null) {
-                // create a new one
                 wrapper = new CacheValueWrapper();
-                newPointer = storageManager.store(value);
             } else {
-                // update and get the new storage
-                Pointer oldPointer = wrapper.getPointer();
-                newPointer = storageManager.update(oldPointer, value);
-                usedSize.addAndGet(oldPointer.getLength() * -1);
+                removePayload(key, wrapper);
             }
-            wrapper.setPointer(newPointer);
-            wrapper.setTimeToIdle(tti);
-            wrapper.setLastAccessTime(System.currentTimeMillis());
-            usedSize.addAndGet(newPointer.getLength());
+            wrapper.setPointer(null);
+            wrapper.setChunks(chunks);
+            reverseIndex.add(key, wrapper);
+            wrapper.renew(System.currentTimeMillis(), tti, -1);
+            usedSize.addAndGet(length);
             pointerMap.put(key, wrapper);
+            scheduleExpiration(key, wrapper);
         } finally {
             writeUnlock(key);
         }
     }
 
+    /**
+     * Gets the value with the specified key.
+     *
+     * The value is read optimistically without locking: the entry is looked up and its payload copied, then the
+     * stamp of the lock stripe tells whether any writer, including the merger moving the payload, has been there
+     * meanwhile. Only then the copy is discarded and the value read again with the read lock held.
+     */
     @Override
     public byte[] get(K key) throws IOException {
         getCounter.incrementAndGet();
+        byte[] optimisticValue = getOptimistically(key, false);
+        if (optimisticValue != RETRY) {
+            if (optimisticValue == null) {
+                missCounter.incrementAndGet();
+            } else {
+                hitCounter.incrementAndGet();
+            }
+            return optimisticValue;
+        }
+
         readLock(key);
         try {
             CacheValueWrapper wrapper = pointerMap.get(key);
@@ -166,21 +564,455 @@ public class BigCache<K> implements ICache<K> {
                 return null;
             }
 
-            synchronized (wrapper) { // this object may be modified in move thread, use lock here
-                if (!wrapper.isExpired()) {
-                    // access time updated, the following change will not be lost
+            byte[] value = wrapper.isExpired() ? null : readValue(wrapper);
+            if (value != null) {
+                // access time updated, the following change will not be lost
+                hitCounter.incrementAndGet();
+                touch(wrapper);
+                return value;
+            } else {
+                missCounter.incrementAndGet();
+                return null;
+            }
+        } finally {
+            readUnlock(key);
+        }
+    }
+
+    /**
+     * Gets the value without taking the lock, the payload is read first and the stamp of the lock validated
+     * afterwards, see {@link StripedStampedLock#tryOptimisticRead(int)}.
+     *
+     * @param key the key
+     * @param memoryOnly whether the values in files are left to be read with the lock held
+     * @return the value, null if not found or expired, or {@link #RETRY} if to be read with the lock held
+     * @throws IOException
+     */
+    private byte[] getOptimistically(K key, boolean memoryOnly) throws IOException {
+        int id = Math.abs(key.hashCode());
+        long stamp = readWriteLock.tryOptimisticRead(id);
+        if (stamp == 0) {
+            return RETRY;
+        }
+        CacheValueWrapper wrapper = pointerMap.get(key);
+        if (wrapper == null) {
+            return null;
+        }
+        Pointer pointer = wrapper.getPointer();
+        if (pointer == null) { // the chunked values are read with the lock held
+            return RETRY;
+        }
+        if (memoryOnly && !storageManager.isMemoryBlock(pointer.getStorageBlock())) {
+            return RETRY;
+        }
+        byte[] payload = null;
+        try {
+            // the payload may be overwritten meanwhile, but the memory of a block is only released on close
+            payload = pointer.getStorageBlock().retrieve(pointer.getPosition(), pointer.getLength());
+        } catch (IOException e) {
+            // retried with the lock held
+        } catch (RuntimeException e) {
+            // retried with the lock held
+        }
+        if (payload == null || !readWriteLock.validate(id, stamp)) {
+            return RETRY;
+        }
+        if (wrapper.isExpired()) {
+            return null;
+        }
+        touch(wrapper);
+        return toValue(payload);
+    }
+
+    @Override
+    public int get(K key, ByteBuffer dest) throws IOException {
+        getCounter.incrementAndGet();
+        readLock(key);
+        try {
+            CacheValueWrapper wrapper = pointerMap.get(key);
+
+            if (wrapper == null) {
+                missCounter.incrementAndGet();
+                return -1;
+            }
+
+            if (!wrapper.isExpired()) {
+                int start = dest.position();
+                int length;
+                if (wrapper.isChunked()) {
+                    if (dest.remaining() < wrapper.getLength()) {
+                        throw new BufferOverflowException();
+                    }
+                    for (Pointer chunk : wrapper.getChunks()) {
+                        chunk.getStorageBlock().retrieve(chunk.getPosition(), chunk.getLength(), dest);
+                    }
+                    length = (int) wrapper.getLength();
+                } else if (codec != null) { // decoded on heap
+                    byte[] value = readValue(wrapper);
+                    if (value == null) {
+                        missCounter.incrementAndGet();
+                        return -1;
+                    }
+                    dest.put(value);
+                    length = value.length;
+                } else {
+                    Pointer pointer = wrapper.getPointer();
+                    int offset = valueOffset(pointer);
+                    length = pointer.getLength() - offset;
+                    pointer.getStorageBlock().retrieve(pointer.getPosition() + offset, length, dest);
+                }
+                if (!wrapper.isStale()) {
                     hitCounter.incrementAndGet();
-                    wrapper.setLastAccessTime(System.currentTimeMillis());
-                    return storageManager.retrieve(wrapper.getPointer());
+                    touch(wrapper);
+                    return length;
+                }
+                dest.position(start); // dropped from the FIFO ring meanwhile
+            }
+            missCounter.incrementAndGet();
+            return -1;
+        } finally {
+            readUnlock(key);
+        }
+    }
+
+    @Override
+    public ValueLease lease(K key) throws IOException {
+        getCounter.incrementAndGet();
+        readLock(key);
+        try {
+            CacheValueWrapper wrapper = pointerMap.get(key);
+
+            if (wrapper == null) {
+                missCounter.incrementAndGet();
+                return null;
+            }
+
+            if (!wrapper.isExpired()) {
+                ValueLease lease;
+                if (wrapper.isChunked() || codec != null) { // decoded on heap
+                    byte[] value = readValue(wrapper);
+                    lease = value == null ? null : ValueLease.copyOf(value);
                 } else {
-                    missCounter.incrementAndGet();
-                    return null;
+                    Pointer pointer = wrapper.getPointer();
+                    int offset = valueOffset(pointer);
+                    // the block can't be reused before it's leased, as the pointer is still in use
+                    lease = ValueLease.lease(pointer.getStorageBlock(), pointer.getPosition() + offset,
+                            pointer.getLength() - offset);
+                    if (pointer.isStale()) { // dropped from the FIFO ring before leased
+                        lease.close();
+                        lease = null;
+                    }
+                }
+                if (lease != null) {
+                    hitCounter.incrementAndGet();
+                    touch(wrapper);
+                    return lease;
+                }
+            }
+            missCounter.incrementAndGet();
+            return null;
+        } finally {
+            readUnlock(key);
+        }
+    }
+
+    /**
+     * Writes the value with the specified key to the output stream, see {@link #get(Object, WritableByteChannel)}.
+     *
+     * @param key the key
+     * @param out the output stream
+     * @return the length of the value, or -1 if not found
+     * @throws IOException
+     */
+    public long get(K key, OutputStream out) throws IOException {
+        return this.get(key, Channels.newChannel(out));
+    }
+
+    /**
+     * Writes the value with the specified key to the channel, chunk by chunk for the values put from streams.
+     *
+     * The value is written without holding the lock of the key, the storage blocks are leased meanwhile
+     * so they can't be reused. In pure file mode the value is transferred from the files directly.
+     *
+     * @param key the key
+     * @param dest the destination channel
+     * @return the length of the value, or -1 if not found
+     * @throws IOException
+     */
+    public long get(K key, WritableByteChannel dest) throws IOException {
+        getCounter.incrementAndGet();
+        Pointer[] chunks = null;
+        byte[] value = null;
+        readLock(key);
+        try {
+            CacheValueWrapper wrapper = pointerMap.get(key);
+
+            if (wrapper == null) {
+                missCounter.incrementAndGet();
+                return -1;
+            }
+
+            if (wrapper.isExpired()) {
+                missCounter.incrementAndGet();
+                return -1;
+            }
+            if (wrapper.isChunked()) {
+                chunks = wrapper.getChunks().clone();
+            } else if (codec != null) { // decoded on heap
+                value = readValue(wrapper);
+            } else {
+                Pointer pointer = wrapper.getPointer();
+                int offset = valueOffset(pointer);
+                chunks = new Pointer[] { new Pointer(pointer.getPosition() + offset,
+                        pointer.getLength() - offset, pointer.getStorageBlock()) };
+            }
+            if (chunks != null) {
+                for (Pointer chunk : chunks) {
+                    chunk.getStorageBlock().lease();
                 }
+                if (wrapper.isStale()) { // dropped from the FIFO ring before leased
+                    for (Pointer chunk : chunks) {
+                        chunk.getStorageBlock().release();
+                    }
+                    chunks = null;
+                }
+            }
+            if (chunks == null && value == null) {
+                missCounter.incrementAndGet();
+                return -1;
             }
+            hitCounter.incrementAndGet();
+            touch(wrapper);
+        } finally {
+            readUnlock(key);
+        }
 
+        if (value != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(value);
+            while (buffer.hasRemaining()) {
+                dest.write(buffer);
+            }
+            return value.length;
+        }
+
+        long length = 0;
+        try {
+            for (Pointer chunk : chunks) {
+                chunk.getStorageBlock().retrieve(chunk.getPosition(), chunk.getLength(), dest);
+                length += chunk.getLength();
+            }
+        } finally {
+            for (Pointer chunk : chunks) {
+                chunk.getStorageBlock().release();
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Gets the value with the specified key without waiting for the storage.
+     *
+     * The entry is looked up with the read lock held, and the block of its payload leased so it can be read after
+     * the lock is released. With {@link CacheConfig#setAsyncIo(boolean)} a file block is read by the channel
+     * group threads, which complete the future and run its continuations, the memory blocks and the chunked values
+     * are read before returning.
+     *
+     * @param key the key
+     * @return the future of the value, completed with null if not found
+     */
+    public CompletableFuture<byte[]> getAsync(K key) {
+        getCounter.incrementAndGet();
+        final CompletableFuture<byte[]> value = new CompletableFuture<byte[]>();
+        Pointer pointer;
+        readLock(key);
+        try {
+            CacheValueWrapper wrapper = pointerMap.get(key);
+
+            if (wrapper == null || wrapper.isExpired()) {
+                missCounter.incrementAndGet();
+                value.complete(null);
+                return value;
+            }
+            if (wrapper.isChunked()) {
+                byte[] chunked = readValue(wrapper);
+                if (chunked != null) {
+                    hitCounter.incrementAndGet();
+                    touch(wrapper);
+                } else {
+                    missCounter.incrementAndGet();
+                }
+                value.complete(chunked);
+                return value;
+            }
+            pointer = wrapper.getPointer();
+            pointer.getStorageBlock().lease();
+            if (pointer.isStale()) { // dropped from the FIFO ring before leased
+                pointer.getStorageBlock().release();
+                missCounter.incrementAndGet();
+                value.complete(null);
+                return value;
+            }
+            hitCounter.incrementAndGet();
+            touch(wrapper);
+        } catch (IOException e) {
+            value.completeExceptionally(e);
+            return value;
         } finally {
             readUnlock(key);
         }
+
+        final StorageBlock block = pointer.getStorageBlock();
+        CompletableFuture<byte[]> payload;
+        try {
+            payload = block.retrieveAsync(pointer.getPosition(), pointer.getLength());
+        } catch (IOException e) {
+            block.release();
+            value.completeExceptionally(e);
+            return value;
+        }
+        payload.whenComplete(new BiConsumer<byte[], Throwable>() {
+            @Override
+            public void accept(byte[] bytes, Throwable e) {
+                block.release();
+                if (e != null) {
+                    value.completeExceptionally(e);
+                    return;
+                }
+                try {
+                    value.complete(toValue(bytes));
+                } catch (IOException e1) {
+                    value.completeExceptionally(e1);
+                }
+            }
+        });
+        return value;
+    }
+
+    /**
+     * Puts the value with the specified key without waiting for the storage, see {@link #put(Object, byte[])}.
+     *
+     * The value is compressed on the calling thread and stored by one of the async writers, always the same one
+     * for the same key, so the puts of a key are stored in order.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the future completed when the value is stored
+     */
+    public CompletableFuture<Void> putAsync(final K key, byte[] value) {
+        if (value == null || value.length > MAX_VALUE_LENGTH) {
+            throw new IllegalArgumentException("value is null or too long");
+        }
+        final byte[] storedValue = encode(value);
+        final CompletableFuture<Void> stored = new CompletableFuture<Void>();
+        try {
+            asyncWriters[Math.abs(key.hashCode() % asyncWriters.length)].execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        putEncoded(key, storedValue, -1, -1);
+                        stored.complete(null);
+                    } catch (Throwable e) {
+                        stored.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) { // closed
+            stored.completeExceptionally(e);
+        }
+        return stored;
+    }
+
+    /**
+     * Gets the values with the specified keys, see {@link ICache#multiGet(Collection)}.
+     *
+     * The values in memory are read optimistically first, as by {@link #get(Object)}. The rest of the entries are
+     * looked up lock stripe by lock stripe, the values in memory are read right away with the lock held, while the
+     * blocks of the values in files are leased, so those values are read after the locks are released, in the order
+     * of block and position.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<K, byte[]> multiGet(Collection<K> keys) throws IOException {
+        getCounter.addAndGet(keys.size());
+        K[] keyArray = (K[]) keys.toArray();
+        Map<K, byte[]> values = new HashMap<K, byte[]>(keyArray.length * 2);
+        BatchRead<K> reads = new BatchRead<K>(keyArray.length);
+        int hits = 0;
+        int misses = 0;
+        try {
+            if (storageManager.getStorageMode() != CacheConfig.StorageMode.PureFile) {
+                int pending = 0;
+                for (K key : keyArray) {
+                    byte[] value = getOptimistically(key, true);
+                    if (value == RETRY) {
+                        keyArray[pending++] = key;
+                    } else if (value == null) {
+                        misses++;
+                    } else {
+                        hits++;
+                        values.put(key, value);
+                    }
+                }
+                keyArray = Arrays.copyOf(keyArray, pending);
+            }
+            long[] order = orderByLock(keyArray);
+            for (int i = 0; i < order.length; ) {
+                int lockIndex = (int) (order[i] >>> 32);
+                ReadWriteLock lock = readWriteLock.getLock(lockIndex);
+                lock.readLock().lock();
+                try {
+                    for (; i < order.length && (int) (order[i] >>> 32) == lockIndex; i++) {
+                        K key = keyArray[(int) order[i]];
+                        CacheValueWrapper wrapper = pointerMap.get(key);
+                        if (wrapper == null) {
+                            misses++;
+                            continue;
+                        }
+
+                        if (wrapper.isExpired()) {
+                            misses++;
+                            continue;
+                        }
+                        Pointer pointer = wrapper.getPointer();
+                        if (wrapper.isChunked() || storageManager.isMemoryBlock(pointer.getStorageBlock())) {
+                            // nothing to gain by sorting the reads from memory
+                            byte[] value = readValue(wrapper);
+                            if (value == null) {
+                                misses++;
+                                continue;
+                            }
+                            hits++;
+                            touch(wrapper);
+                            values.put(key, value);
+                            continue;
+                        }
+                        hits++;
+                        touch(wrapper);
+                        int offset = valueOffset(pointer);
+                        reads.add(key, pointer.getPosition() + offset, pointer.getLength() - offset,
+                                pointer.getStorageBlock(), pointer.getGeneration());
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+            // the values read so far are decoded already
+            Map<K, byte[]> readValues = codec == null ? values : new HashMap<K, byte[]>();
+            int dropped = reads.readAll(readValues);
+            hits -= dropped;
+            misses += dropped;
+            if (readValues != values) {
+                for (Map.Entry<K, byte[]> entry : readValues.entrySet()) {
+                    values.put(entry.getKey(), decode(entry.getValue()));
+                }
+            }
+        } finally {
+            reads.release();
+            // counted once for the batch
+            hitCounter.addAndGet(hits);
+            missCounter.addAndGet(misses);
+        }
+        return values;
     }
 
     @Override
@@ -188,22 +1020,343 @@ public class BigCache<K> implements ICache<K> {
         deleteCounter.incrementAndGet();
         writeLock(key);
         try {
+            return doDelete(key);
+        } finally {
+            writeUnlock(key);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<K, byte[]> multiDelete(Collection<K> keys) throws IOException {
+        deleteCounter.addAndGet(keys.size());
+        K[] keyArray = (K[]) keys.toArray();
+        Map<K, byte[]> values = new HashMap<K, byte[]>(keyArray.length * 2);
+        long[] order = orderByLock(keyArray);
+        for (int i = 0; i < order.length; ) {
+            int lockIndex = (int) (order[i] >>> 32);
+            ReadWriteLock lock = readWriteLock.getLock(lockIndex);
+            lock.writeLock().lock();
+            try {
+                for (; i < order.length && (int) (order[i] >>> 32) == lockIndex; i++) {
+                    K key = keyArray[(int) order[i]];
+                    byte[] value = doDelete(key);
+                    if (value != null) {
+                        values.put(key, value);
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Deletes the value with the specified key, should be called with the write lock of the key held.
+     *
+     * @param key the key
+     * @return the value, or null if not found
+     */
+    private byte[] doDelete(K key) throws IOException {
+        CacheValueWrapper wrapper = pointerMap.get(key);
+        if (wrapper == null) {
+            return null;
+        }
+        if (wrapper.isStale()) { // dropped from the FIFO ring, only the entry is left
+            removePayload(key, wrapper);
+            pointerMap.remove(key);
+            return null;
+        }
+        if (wrapper.isChunked()) {
+            byte[] value = readChunks(wrapper.getChunks());
+            removePayload(key, wrapper);
+            pointerMap.remove(key);
+            return value;
+        }
+        byte[] payload = storageManager.remove(wrapper.getPointer());
+        reverseIndex.remove(key, wrapper);
+        pointerMap.remove(key);
+        usedSize.addAndGet(payload.length * -1);
+        return toValue(payload);
+    }
+
+    /**
+     * Records a read of the entry.
+     *
+     * @param wrapper the entry
+     */
+    private void touch(CacheValueWrapper wrapper) {
+        wrapper.setLastAccessTime(System.currentTimeMillis());
+        if (tiering) {
+            wrapper.recordAccess();
+        }
+    }
+
+    /**
+     * Orders a batch of keys by their locks, see {@link StripedStampedLock#orderByLock(int[])}.
+     *
+     * @param keys the keys
+     * @return the lock index and the position in the batch of each key, in the order of the locks
+     */
+    private long[] orderByLock(K[] keys) {
+        int[] ids = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            ids[i] = Math.abs(keys[i].hashCode());
+        }
+        return readWriteLock.orderByLock(ids);
+    }
+
+    /**
+     * Gets the value from the payload read from storage.
+     *
+     * @param payload the payload
+     * @return the value
+     */
+    private byte[] toValue(byte[] payload) throws IOException {
+        return decode(crashRecovery ? StorageRecord.getValue(payload) : payload);
+    }
+
+    /**
+     * Encodes the value to be stored. With a codec set, the value is flagged as compressed and followed by its
+     * original length if it gets smaller, otherwise flagged as raw.
+     *
+     * @param value the value
+     * @return the value to be stored
+     */
+    private byte[] encode(byte[] value) {
+        if (codec == null) {
+            return value;
+        }
+        if (value.length >= MIN_COMPRESSION_LENGTH) {
+            // only stored compressed if smaller than the raw value
+            byte[] compressed = new byte[value.length];
+            int length = codec.compress(value, 0, value.length, compressed, COMPRESSED_HEADER_LENGTH,
+                    value.length - COMPRESSED_HEADER_LENGTH);
+            if (length >= 0) {
+                compressed[0] = VALUE_COMPRESSED;
+                ByteBuffer.wrap(compressed).putInt(1, value.length);
+                return Arrays.copyOf(compressed, COMPRESSED_HEADER_LENGTH + length);
+            }
+        }
+        byte[] raw = new byte[value.length + 1];
+        raw[0] = VALUE_RAW;
+        System.arraycopy(value, 0, raw, 1, value.length);
+        return raw;
+    }
+
+    /**
+     * Decodes the value stored, see {@link #encode(byte[])}.
+     *
+     * @param storedValue the value stored
+     * @return the value
+     * @throws IOException if the value stored is corrupted
+     */
+    private byte[] decode(byte[] storedValue) throws IOException {
+        if (codec == null) {
+            return storedValue;
+        }
+        if (storedValue[0] == VALUE_RAW) {
+            return Arrays.copyOfRange(storedValue, 1, storedValue.length);
+        }
+        int length = ByteBuffer.wrap(storedValue).getInt(1);
+        if (storedValue[0] != VALUE_COMPRESSED || length < 0 || length > MAX_VALUE_LENGTH) {
+            throw new IOException("corrupted value, not encoded by " + codec.getName());
+        }
+        byte[] value = new byte[length];
+        codec.decompress(storedValue, COMPRESSED_HEADER_LENGTH, storedValue.length - COMPRESSED_HEADER_LENGTH,
+                value, 0, length);
+        return value;
+    }
+
+    private String codecName() {
+        return codec == null ? "" : codec.getName();
+    }
+
+    /**
+     * Reads the value of the entry, with the read lock of the key held.
+     *
+     * The block of the payload may still be dropped from the FIFO ring meanwhile, by the writers of the other keys,
+     * so the payload read is only taken if not stale afterwards, see {@link CacheConfig#setFifoRing(boolean)}.
+     *
+     * @param wrapper the entry
+     * @return the value, or null if dropped
+     */
+    private byte[] readValue(CacheValueWrapper wrapper) throws IOException {
+        if (wrapper.isChunked()) {
+            byte[] value = readChunks(wrapper.getChunks());
+            return wrapper.isStale() ? null : value;
+        }
+        byte[] payload = storageManager.retrieve(wrapper.getPointer());
+        return wrapper.isStale() ? null : toValue(payload);
+    }
+
+    /**
+     * Reads the chunks of a value put from a stream into a byte array.
+     *
+     * @param chunks the chunks
+     * @return the value
+     */
+    private byte[] readChunks(Pointer[] chunks) throws IOException {
+        long length = 0;
+        for (Pointer chunk : chunks) {
+            length += chunk.getLength();
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("value is too long for a byte array, get it to a channel instead");
+        }
+        ByteBuffer value = ByteBuffer.allocate((int) length);
+        for (Pointer chunk : chunks) {
+            chunk.getStorageBlock().retrieve(chunk.getPosition(), chunk.getLength(), value);
+        }
+        return value.array();
+    }
+
+    /**
+     * Removes the stored chunks, the missing ones are skipped.
+     *
+     * @param chunks the chunks
+     */
+    private void removeChunks(Pointer[] chunks) throws IOException {
+        for (Pointer chunk : chunks) {
+            if (chunk != null) {
+                storageManager.removeLight(chunk);
+            }
+        }
+    }
+
+    /**
+     * Removes the payload of the entry from storage, should be called with the write lock of the key held.
+     *
+     * @param key the key
+     * @param wrapper the entry
+     */
+    private void removePayload(K key, CacheValueWrapper wrapper) throws IOException {
+        usedSize.addAndGet(wrapper.getLength() * -1);
+        reverseIndex.remove(key, wrapper);
+        if (wrapper.isChunked()) {
+            removeChunks(wrapper.getChunks());
+        } else {
+            storageManager.removeLight(wrapper.getPointer());
+        }
+    }
+
+    /**
+     * Frees a storage block when the max bytes of storage are used up, by evicting all the entries in the blocks
+     * accessed least recently, until the storage can grow again.
+     *
+     * How recently a block is accessed is judged by a sample of its entries, see {@link #EVICTION_SAMPLE_SIZE}.
+     * A whole block is evicted, as the storage is only given back block by block. Should be called without any
+     * lock of the keys held.
+     *
+     * With a FIFO ring nothing is evicted here, as the writers drop the oldest blocks on their own, unless all of
+     * them are leased, see {@link CacheConfig#setFifoRing(boolean)}. The leases of the reads are released soon, so
+     * they are waited for, up to {@link #RING_LEASE_TIMEOUT}.
+     *
+     * @throws IOException if nothing can be evicted, e.g. all the blocks are leased
+     */
+    void evict() throws IOException {
+        synchronized (evictionLock) {
+            if (storageManager.isFifoRing()) {
+                long deadline = System.currentTimeMillis() + RING_LEASE_TIMEOUT;
+                while (true) {
+                    storageManager.clean(); // the dropped blocks released meanwhile
+                    if (storageManager.getFreeBlockCount() > 0 || !storageManager.getInactiveBlocks().isEmpty()) {
+                        return;
+                    }
+                    if (System.currentTimeMillis() >= deadline) {
+                        throw new IOException("the max bytes of storage are used up and all the blocks are leased");
+                    }
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted while waiting for the leases", e);
+                    }
+                }
+            }
+            if (!storageManager.isFull()) {
+                return; // by another thread
+            }
+            storageManager.clean();
+
+            List<StorageBlock> blocks = storageManager.getInactiveBlocks();
+            final Map<StorageBlock, Long> accessTimes = new HashMap<StorageBlock, Long>();
+            for (StorageBlock block : blocks) {
+                accessTimes.put(block, sampleAccessTime(block));
+            }
+            Collections.sort(blocks, new Comparator<StorageBlock>() {
+                @Override
+                public int compare(StorageBlock o1, StorageBlock o2) {
+                    return accessTimes.get(o1).compareTo(accessTimes.get(o2));
+                }
+            });
+
+            for (StorageBlock block : blocks) {
+                if (!storageManager.isFull()) {
+                    return;
+                }
+                for (K key : reverseIndex.getKeys(block.getIndex())) {
+                    writeLock(key);
+                    try {
+                        CacheValueWrapper wrapper = pointerMap.get(key);
+                        if (wrapper != null && isStoredIn(wrapper, block)) {
+                            removePayload(key, wrapper);
+                            pointerMap.remove(key);
+                            evictCounter.incrementAndGet();
+                        }
+                    } finally {
+                        writeUnlock(key);
+                    }
+                }
+                storageManager.clean();
+            }
+            if (storageManager.isFull()) {
+                throw new IOException("the max bytes of storage are used up and nothing can be evicted");
+            }
+        }
+    }
+
+    /**
+     * Gets the mean access time of a sample of the entries in the block.
+     */
+    private long sampleAccessTime(StorageBlock block) {
+        long sum = 0;
+        int count = 0;
+        for (K key : reverseIndex.sampleKeys(block.getIndex(), EVICTION_SAMPLE_SIZE)) {
             CacheValueWrapper wrapper = pointerMap.get(key);
             if (wrapper != null) {
-                byte[] payload = storageManager.remove(wrapper.getPointer());
-                pointerMap.remove(key);
-                usedSize.addAndGet(payload.length * -1);
-                return payload;
+                sum += wrapper.getLastAccessTime();
+                count++;
+            }
+        }
+        return count == 0 ? Long.MIN_VALUE : sum / count;
+    }
+
+    private static boolean isStoredIn(CacheValueWrapper wrapper, StorageBlock block) {
+        Pointer[] pointers = wrapper.isChunked() ? wrapper.getChunks() : new Pointer[] { wrapper.getPointer() };
+        for (Pointer pointer : pointers) {
+            if (pointer.getStorageBlock() == block) {
+                return true;
             }
-        } finally {
-            writeUnlock(key);
         }
-        return null;
+        return false;
+    }
+
+    /**
+     * Gets the offset of the value within the payload the pointer points to.
+     *
+     * @param pointer the pointer
+     * @return the offset of the value
+     */
+    private int valueOffset(Pointer pointer) throws IOException {
+        return crashRecovery ? StorageRecord.getValueOffset(pointer.getStorageBlock(), pointer.getPosition()) : 0;
     }
 
     @Override
     public boolean contains(K key) {
-        return pointerMap.containsKey(key);
+        CacheValueWrapper wrapper = pointerMap.get(key);
+        return wrapper != null && !wrapper.isStale();
     }
 
     /**
@@ -223,6 +1376,8 @@ public class BigCache<K> implements ICache<K> {
          * not see this if they behave right.
          */
         this.pointerMap.clear();
+        this.reverseIndex.clear();
+        this.expirationQueue.clear(); // what is on the wheel is dropped when due, as the entries are gone
         this.usedSize.set(0);
     }
 
@@ -231,6 +1386,81 @@ public class BigCache<K> implements ICache<K> {
         return 1.0 * hitCounter.get() / (hitCounter.get() + missCounter.get());
     }
 
+    /**
+     * Rebuilds the index by scanning the records in the block files left by a crashed cache.
+     *
+     * For each key the record with the biggest sequence wins, the older ones are marked as removed. The idle time
+     * of the recovered entries starts over from now, while their expire times are kept.
+     *
+     * @return the recovered storage manager, or null if there is nothing to recover.
+     */
+    private StorageManager recover(CacheConfig config) {
+        StorageManager recovered = null;
+        try {
+            List<RecordScanner.ScannedBlock> scannedBlocks = RecordScanner.scan(this.cacheDir,
+                    Runtime.getRuntime().availableProcessors());
+            if (scannedBlocks.isEmpty()) {
+                return null;
+            }
+
+            List<BlockInfo> blockInfos = new ArrayList<BlockInfo>();
+            for (RecordScanner.ScannedBlock scannedBlock : scannedBlocks) {
+                blockInfos.add(new BlockInfo(scannedBlock.getIndex(), config.getStorageMode(), scannedBlock.getFile(),
+                        scannedBlock.getEnd(), scannedBlock.getUsed(), scannedBlock.getEnd() - scannedBlock.getUsed(),
+                        scannedBlock.getGeneration()));
+            }
+            recovered = new StorageManager(this.cacheDir, config, blockInfos);
+
+            long maxSequence = 0;
+            Map<K, Long> sequences = new HashMap<K, Long>();
+            List<Pointer> staleRecords = new ArrayList<Pointer>();
+            long now = System.currentTimeMillis();
+            for (RecordScanner.ScannedBlock scannedBlock : scannedBlocks) {
+                StorageBlock block = recovered.getBlock(scannedBlock.getIndex());
+                List<StorageRecord> records = scannedBlock.getRecords();
+                for (int i = 0; i < records.size(); i++) {
+                    StorageRecord record = records.get(i);
+                    @SuppressWarnings("unchecked")
+                    K key = (K) KeySerializer.deserialize(record.getKey());
+                    Pointer pointer = new Pointer(scannedBlock.getPosition(i), record.getLength(), block);
+                    maxSequence = Math.max(maxSequence, record.getSequence());
+
+                    Long sequence = sequences.get(key);
+                    if (sequence != null && sequence > record.getSequence()) {
+                        staleRecords.add(pointer);
+                        continue;
+                    }
+                    CacheValueWrapper wrapper = new CacheValueWrapper(pointer, now, record.getTimeToIdle());
+                    wrapper.setExpireTime(record.getExpireTime());
+                    CacheValueWrapper previous = this.pointerMap.put(key, wrapper);
+                    sequences.put(key, record.getSequence());
+                    this.usedSize.addAndGet(pointer.getLength());
+                    if (previous != null) {
+                        staleRecords.add(previous.getPointer());
+                        this.usedSize.addAndGet(previous.getPointer().getLength() * -1);
+                    }
+                }
+            }
+            for (Pointer pointer : staleRecords) {
+                recovered.removeLight(pointer);
+            }
+            this.recordSequence.set(maxSequence);
+            return recovered;
+        } catch (Exception e) {
+            // fall back to a cold start
+            e.printStackTrace();
+            this.pointerMap.clear();
+            this.usedSize.set(0);
+            if (recovered != null) {
+                try {
+                    recovered.close();
+                } catch (IOException ignore) {
+                }
+            }
+            return null;
+        }
+    }
+
     /**
      * Read Lock for key is locked.
      *
@@ -278,9 +1508,168 @@ public class BigCache<K> implements ICache<K> {
 
     @Override
     public void close() throws IOException {
-        this.clear();
-        this.ses.shutdownNow();
-        this.storageManager.close();
+        try {
+            // the pending async puts are stored first
+            for (ExecutorService asyncWriter : this.asyncWriters) {
+                asyncWriter.shutdown();
+            }
+            for (ExecutorService asyncWriter : this.asyncWriters) {
+                try {
+                    asyncWriter.awaitTermination(DEFAULT_PURGE_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (this.warmRestart) {
+                this.ses.shutdownNow();
+                this.mergePool.shutdownNow();
+                try {
+                    this.ses.awaitTermination(DEFAULT_PURGE_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                this.checkpoint();
+            } else {
+                this.clear();
+                this.ses.shutdownNow();
+                this.mergePool.shutdownNow();
+            }
+        } finally {
+            this.storageManager.close();
+        }
+    }
+
+    /**
+     * Writes the blocks in use and the index of all entries to the checkpoint file, which is
+     * read back by {@link #restore(CacheConfig)} when the cache is opened again.
+     *
+     * The checkpoint is written to a temporary file first, so a failed checkpoint never leaves a broken index.
+     */
+    private void checkpoint() throws IOException {
+        File indexFile = new File(this.cacheDir + INDEX_FILE_NAME);
+        File tmpFile = new File(this.cacheDir + INDEX_FILE_NAME + ".tmp");
+        indexFile.getParentFile().mkdirs(); // nothing may have been written to the directory in offheap mode
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        boolean success = false;
+        try {
+            out.writeInt(INDEX_FILE_MAGIC);
+            out.writeInt(INDEX_FILE_VERSION);
+            out.writeLong(this.storageManager.getCapacityPerBlock());
+            out.writeBoolean(this.crashRecovery);
+            out.writeUTF(codecName());
+            out.writeLong(this.recordSequence.get());
+            this.storageManager.checkpoint(out);
+
+            int written = 0;
+            for (Map.Entry<K, CacheValueWrapper> entry : this.pointerMap.entrySet()) {
+                CacheValueWrapper wrapper = entry.getValue();
+                if (wrapper.isStale()) {
+                    continue; // dropped from the FIFO ring
+                }
+                out.writeObject(entry.getKey());
+                out.writeBoolean(wrapper.isChunked());
+                Pointer[] pointers = wrapper.isChunked() ? wrapper.getChunks() : new Pointer[] { wrapper.getPointer() };
+                out.writeInt(pointers.length);
+                for (Pointer pointer : pointers) {
+                    out.writeInt(pointer.getStorageBlock().getIndex());
+                    out.writeLong(pointer.getPosition());
+                    out.writeInt(pointer.getLength());
+                }
+                out.writeLong(wrapper.getLastAccessTime());
+                out.writeLong(wrapper.getTimeToIdle());
+                out.writeLong(wrapper.getExpireTime());
+                if (++written % INDEX_FILE_RESET_INTERVAL == 0) {
+                    out.reset(); // don't keep references to all the keys written
+                }
+            }
+            out.writeObject(null); // end of entries
+
+            success = true;
+        } finally {
+            out.close();
+            if (!success) {
+                FileUtil.deleteFile(tmpFile);
+            }
+        }
+        FileUtil.deleteFile(indexFile);
+        if (!tmpFile.renameTo(indexFile)) {
+            throw new IOException("fail to rename checkpoint file " + tmpFile + " to " + indexFile);
+        }
+    }
+
+    /**
+     * Reopens the storage and rebuilds the index from the checkpoint file written on the last close.
+     *
+     * The checkpoint file is removed once read, as the blocks will be modified from now on.
+     *
+     * @return the restored storage manager, or null if there is no usable checkpoint.
+     */
+    private StorageManager restore(CacheConfig config) {
+        File indexFile = new File(this.cacheDir + INDEX_FILE_NAME);
+        if (!indexFile.isFile()) {
+            return null;
+        }
+
+        StorageManager restored = null;
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != INDEX_FILE_MAGIC || in.readInt() != INDEX_FILE_VERSION
+                    || in.readLong() != config.getCapacityPerBlock() || in.readBoolean() != this.crashRecovery
+                    || !in.readUTF().equals(codecName())) {
+                return null; // incompatible checkpoint, start cold
+            }
+            this.recordSequence.set(in.readLong());
+            restored = new StorageManager(this.cacheDir, config, StorageManager.readCheckpoint(in));
+
+            Object key;
+            while ((key = in.readObject()) != null) {
+                boolean chunked = in.readBoolean();
+                Pointer[] pointers = new Pointer[in.readInt()];
+                for (int i = 0; i < pointers.length; i++) {
+                    StorageBlock block = restored.getBlock(in.readInt());
+                    long position = in.readLong();
+                    int length = in.readInt();
+                    if (block == null) {
+                        throw new IOException("checkpoint entry refers to an unknown storage block");
+                    }
+                    pointers[i] = new Pointer(position, length, block);
+                }
+                long lastAccessTime = in.readLong();
+                long timeToIdle = in.readLong();
+                long expireTime = in.readLong();
+                CacheValueWrapper wrapper = new CacheValueWrapper(chunked ? null : pointers[0], lastAccessTime, timeToIdle);
+                wrapper.setExpireTime(expireTime);
+                if (chunked) {
+                    wrapper.setChunks(pointers);
+                }
+                @SuppressWarnings("unchecked")
+                K typedKey = (K) key;
+                this.pointerMap.put(typedKey, wrapper);
+                this.usedSize.addAndGet(wrapper.getLength());
+            }
+            return restored;
+        } catch (Exception e) {
+            // fall back to a cold start
+            e.printStackTrace();
+            this.pointerMap.clear();
+            this.usedSize.set(0);
+            if (restored != null) {
+                try {
+                    restored.close();
+                } catch (IOException ignore) {
+                }
+            }
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+            FileUtil.deleteFile(indexFile);
+        }
     }
 
     public long count(){
@@ -294,12 +1683,23 @@ public class BigCache<K> implements ICache<K> {
      */
     public BigCacheStats getStats() {
         return new BigCacheStats(hitCounter.get(), missCounter.get(), getCounter.get(),
-                putCounter.get(), deleteCounter.get(), purgeCounter.get(), moveCounter.get(),
+                putCounter.get(), deleteCounter.get(), purgeCounter.get(), moveCounter.get(), evictCounter.get(),
                 count(), storageManager.getUsed(), storageManager.getDirty(),
                 storageManager.getCapacity(), storageManager.getUsedBlockCount(), storageManager.getFreeBlockCount(),
                 storageManager.getTotalBlockCount());
     }
 
+    /**
+     * Gets the delay before the next merge, which shrinks from the merge interval as the storage gets dirty, down to
+     * {@link #MIN_MERGE_INTERVAL} when the dirty ratio of the whole storage reaches the threshold.
+     *
+     * @return the delay in milliseconds
+     */
+    long nextMergeDelay() {
+        double pressure = Math.min(1, storageManager.getDirtyRatio() / dirtyRatioThreshold);
+        return Math.max(Math.min(MIN_MERGE_INTERVAL, mergeInterval), (long) (mergeInterval * (1 - pressure)));
+    }
+
     abstract static class CacheDaemonWorker<K> implements Runnable {
         private WeakReference<BigCache<K>> cacheHolder;
         private ScheduledExecutorService ses;
@@ -326,14 +1726,36 @@ public class BigCache<K> implements ICache<K> {
                 e.printStackTrace();
             }
 
-            cache.storageManager.clean();
+            if (isCleaning()) {
+                cache.storageManager.clean();
+            }
         }
 
         abstract void process(BigCache<K> cache) throws IOException;
+
+        /**
+         * Whether the storage is cleaned after each run, see {@link StorageManager#clean()}.
+         *
+         * @return true by default
+         */
+        boolean isCleaning() {
+            return true;
+        }
+
+        /**
+         * Gets the cache worked on.
+         *
+         * @return the cache, or null if it's recycled
+         */
+        BigCache<K> getCache() {
+            return cacheHolder.get();
+        }
     }
 
     /**
-     * Clean the expired keys.
+     * Clean the expired keys, visiting only the entries due on the timer wheel. Then evicts a block if the storage
+     * is out of blocks, so the writers rarely have to evict on their own. With a FIFO ring, the entries of the blocks
+     * dropped since the last run are swept from the index first, see {@link CacheConfig#setFifoRing(boolean)}.
      *
      * @param <K>
      */
@@ -344,49 +1766,160 @@ public class BigCache<K> implements ICache<K> {
 
         @Override
         public void process(BigCache<K> cache) throws IOException {
-            Set<K> keys = cache.pointerMap.keySet();
-
-            // store the expired keys according to their associated lock
-            Map<ReadWriteLock, List<K>> expiredKeys = new HashMap<ReadWriteLock, List<K>>();
+            if (cache.storageManager.isFifoRing()) {
+                sweep(cache);
+            }
+            purge(cache);
+            cache.NO_OF_PURGE_RUN.incrementAndGet();
+            if (cache.storageManager.isFull()) {
+                cache.evict();
+            }
+        }
 
-            // find all the keys that may be expired. It's lock less as we will validate later.
-            for(K key : keys) {
-                CacheValueWrapper wrapper = cache.pointerMap.get(key);
-                if (wrapper != null && wrapper.isExpired()) {
-                    ReadWriteLock lock = cache.getLock(key);
-                    List<K> keyList = expiredKeys.get(lock);
-                    if (keyList == null) {
-                        keyList = new ArrayList<K>();
-                        expiredKeys.put(lock, keyList);
+        // the keys of a dropped block may have been put again meanwhile, to the same block reused or elsewhere.
+        private void sweep(BigCache<K> cache) throws IOException {
+            for (int index : cache.storageManager.pollDroppedBlockIndexes()) {
+                for (K key : cache.reverseIndex.getKeys(index)) {
+                    cache.writeLock(key);
+                    try {
+                        CacheValueWrapper wrapper = cache.pointerMap.get(key);
+                        if (wrapper != null && wrapper.isStale()) {
+                            cache.removePayload(key, wrapper);
+                            cache.pointerMap.remove(key);
+                            cache.evictCounter.incrementAndGet();
+                        }
+                    } finally {
+                        cache.writeUnlock(key);
                     }
-                    keyList.add(key);
                 }
             }
+        }
 
-            // expire keys with write lock, this will complete quickly.
-            for (ReadWriteLock lock : expiredKeys.keySet()) {
-                List<K> keyList = expiredKeys.get(lock);
-                if (keyList == null || keyList.isEmpty()) {
-                    continue;
-                }
+        @SuppressWarnings("unchecked")
+        private void purge(BigCache<K> cache) throws IOException {
+            Expiration<K> scheduled;
+            while ((scheduled = cache.expirationQueue.poll()) != null) {
+                cache.expirationWheel.schedule(scheduled, scheduled.deadline);
+            }
+
+            // only the entries due are visited, they may have been accessed, updated or removed meanwhile.
+            List<Expiration<K>> due = cache.expirationWheel.advance(System.currentTimeMillis());
+            if (due.isEmpty()) {
+                return;
+            }
+            K[] keys = (K[]) new Object[due.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = due.get(i).key;
+            }
 
+            // expire keys with write lock, this will complete quickly.
+            long[] order = cache.orderByLock(keys);
+            for (int i = 0; i < order.length; ) {
+                int lockIndex = (int) (order[i] >>> 32);
+                ReadWriteLock lock = cache.readWriteLock.getLock(lockIndex);
                 lock.writeLock().lock();
                 try {
-                    for(K key : keyList) {
-                        CacheValueWrapper wrapper = cache.pointerMap.get(key);
-                        if (wrapper != null && wrapper.isExpired()) { // double check
-                            Pointer oldPointer = wrapper.getPointer();
-                            cache.usedSize.addAndGet(oldPointer.getLength() * -1);
-                            cache.storageManager.removeLight(oldPointer);
-                            cache.pointerMap.remove(key);
+                    for (; i < order.length && (int) (order[i] >>> 32) == lockIndex; i++) {
+                        Expiration<K> expiration = due.get((int) order[i]);
+                        CacheValueWrapper wrapper = expiration.wrapper;
+                        if (cache.pointerMap.get(expiration.key) != wrapper
+                                || wrapper.scheduledExpiration != expiration.deadline) {
+                            continue; // removed, or scheduled again by a put
+                        }
+                        if (wrapper.isExpired()) {
+                            cache.removePayload(expiration.key, wrapper);
+                            cache.pointerMap.remove(expiration.key);
                             cache.purgeCounter.incrementAndGet();
+                            continue;
+                        }
+                        // accessed meanwhile, check again at the new deadline
+                        long deadline = wrapper.getExpirationTime();
+                        wrapper.scheduledExpiration = deadline > 0 ? deadline : 0;
+                        if (deadline > 0) {
+                            cache.expirationWheel.schedule(new Expiration<K>(expiration.key, wrapper, deadline), deadline);
                         }
                     }
                 } finally {
                     lock.writeLock().unlock();
                 }
             }
-            cache.NO_OF_PURGE_RUN.incrementAndGet();
+        }
+    }
+
+    /**
+     * An entry scheduled to be checked for expiration at the deadline.
+     *
+     * @param <K> the key type
+     */
+    static class Expiration<K> {
+        final K key;
+        final CacheValueWrapper wrapper;
+        final long deadline;
+
+        Expiration(K key, CacheValueWrapper wrapper, long deadline) {
+            this.key = key;
+            this.wrapper = wrapper;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * An entry to be promoted to memory, the hottest first.
+     *
+     * @param <K> the key type
+     */
+    static class Promotion<K> implements Comparable<Promotion<K>> {
+        final K key;
+        final int heat;
+
+        Promotion(K key, int heat) {
+            this.key = key;
+            this.heat = heat;
+        }
+
+        @Override
+        public int compareTo(Promotion<K> o) {
+            return heat > o.heat ? -1 : (heat == o.heat ? 0 : 1);
+        }
+    }
+
+    /**
+     * Flushes the write buffers and forces the shared mappings of the blocks in use, when due by the flush policy,
+     * which bounds the writes lost on a crash.
+     *
+     * @param <K>
+     */
+    static class CacheFlusher<K> extends CacheDaemonWorker<K> {
+        CacheFlusher(BigCache<K> cache) {
+            super(cache);
+        }
+
+        @Override
+        void process(BigCache<K> cache) throws IOException {
+            cache.storageManager.flushDue();
+        }
+    }
+
+    /**
+     * Keeps the preallocated number of free blocks ready, so the writers rolling over to a new block don't create
+     * it on their own.
+     *
+     * @param <K>
+     */
+    static class CacheProvisioner<K> extends CacheDaemonWorker<K> {
+        CacheProvisioner(BigCache<K> cache) {
+            super(cache);
+        }
+
+        @Override
+        void process(BigCache<K> cache) throws IOException {
+            cache.storageManager.provision();
+        }
+
+        // run much more often than the others, and frees nothing
+        @Override
+        boolean isCleaning() {
+            return false;
         }
     }
 
@@ -395,62 +1928,336 @@ public class BigCache<K> implements ICache<K> {
             super(cache);
         }
 
+        /**
+         * Merges and schedules the next run, sooner or later by how dirty the storage is.
+         */
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                BigCache<K> cache = getCache();
+                if (cache != null && !cache.ses.isShutdown()) {
+                    try {
+                        cache.ses.schedule(this, cache.nextMergeDelay(), TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException e) {
+                        // closed meanwhile
+                    }
+                }
+            }
+        }
+
         @Override
         void process(BigCache<K> cache) throws IOException {
-            Set<K> keys = cache.pointerMap.keySet();
+            // visit the keys in the dirty blocks only, each block by a task of its own.
+            List<BlockMerge<K>> merges = new ArrayList<BlockMerge<K>>();
+            for (StorageBlock dirtyBlock : cache.storageManager.getDirtyBlocks(cache.dirtyRatioThreshold)) {
+                merges.add(new BlockMerge<K>(cache, dirtyBlock));
+            }
+            if (!merges.isEmpty()) {
+                try {
+                    cache.mergePool.invoke(new BlockMerges<K>(merges));
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                } catch (RejectedExecutionException e) {
+                    return; // closed meanwhile
+                } catch (CancellationException e) {
+                    return; // closed meanwhile
+                }
+                for (BlockMerge<K> merge : merges) {
+                    if (!merge.join()) {
+                        return; // the max bytes of storage are used up, left to the eviction
+                    }
+                }
+            }
+            if (cache.tiering) {
+                tier(cache);
+            }
+            cache.NO_OF_MERGE_RUN.incrementAndGet();
+        }
 
-            // store the keys in dirty block according to the block index
-            Map<Integer, List<K>> keysInDirtyBlock = new HashMap<Integer, List<K>>();
+        /**
+         * Promotes the entries read most from the file blocks to the memory blocks, hottest first. When the memory
+         * blocks are used up, the coldest one is demoted to the file blocks to make room, as long as its entries are
+         * read less on average than the entry to promote. The heat of all the entries is halved on the way.
+         */
+        private void tier(final BigCache<K> cache) throws IOException {
+            StorageManager storageManager = cache.storageManager;
+            List<Promotion<K>> promotions = new ArrayList<Promotion<K>>();
+            List<StorageBlock> memoryBlocks = new ArrayList<StorageBlock>();
+            final Map<StorageBlock, Long> blockHeats = new HashMap<StorageBlock, Long>();
+            for (StorageBlock block : storageManager.getUsedBlocks()) {
+                boolean memory = storageManager.isMemoryBlock(block);
+                long heat = 0;
+                int count = 0;
+                for (K key : cache.reverseIndex.getKeys(block.getIndex())) {
+                    CacheValueWrapper wrapper = cache.pointerMap.get(key);
+                    Pointer home = wrapper == null ? null
+                            : wrapper.isChunked() ? wrapper.getChunks()[0] : wrapper.getPointer();
+                    if (home == null || home.getStorageBlock() != block) {
+                        continue; // aged once, in the block of its first chunk
+                    }
+                    int entryHeat = wrapper.ageHeat();
+                    if (memory) {
+                        heat += entryHeat;
+                        count++;
+                    } else if (entryHeat >= TIERING_PROMOTION_HEAT && !wrapper.isChunked()) {
+                        promotions.add(new Promotion<K>(key, entryHeat));
+                    }
+                }
+                if (memory) {
+                    memoryBlocks.add(block);
+                    blockHeats.put(block, count == 0 ? 0 : heat / count);
+                }
+            }
+            Collections.sort(promotions);
+            Collections.sort(memoryBlocks, new Comparator<StorageBlock>() {
+                @Override
+                public int compare(StorageBlock o1, StorageBlock o2) {
+                    return blockHeats.get(o1).compareTo(blockHeats.get(o2));
+                }
+            });
 
-            // find all the keys that need to be moved. It's lock less as we will validate later.
-            for(K key : keys) {
+            int demoted = 0;
+            for (Promotion<K> promotion : promotions) {
+                while (!promote(cache, promotion.key)) {
+                    while (demoted < memoryBlocks.size() && storageManager.isActive(memoryBlocks.get(demoted))) {
+                        demoted++; // being filled by the promotions
+                    }
+                    if (demoted == memoryBlocks.size() || blockHeats.get(memoryBlocks.get(demoted)) >= promotion.heat) {
+                        return; // nothing colder to make room
+                    }
+                    demote(cache, memoryBlocks.get(demoted++));
+                    storageManager.clean();
+                }
+            }
+        }
+
+        /**
+         * Moves the entry from a file block to a memory block.
+         *
+         * @return false if no memory block has room for the entry
+         */
+        private boolean promote(BigCache<K> cache, K key) throws IOException {
+            cache.writeLock(key);
+            try {
                 CacheValueWrapper wrapper = cache.pointerMap.get(key);
-                StorageBlock sb;
-                Pointer pointer;
-                if (wrapper != null
-                        && ((pointer = wrapper.getPointer()) != null)
-                        && ((sb = pointer.getStorageBlock()) != null)
-                        && (sb.getDirtyRatio() > cache.dirtyRatioThreshold)) {
-                    Integer index = sb.getIndex();
-                    List<K> keyList = keysInDirtyBlock.get(index);
-                    if (keyList == null) {
-                        keyList = new ArrayList<K>();
-                        keysInDirtyBlock.put(index, keyList);
+                if (wrapper == null || wrapper.isChunked()
+                        || cache.storageManager.isMemoryBlock(wrapper.getPointer().getStorageBlock())) {
+                    return true; // removed or moved meanwhile
+                }
+                Pointer pointer = wrapper.getPointer();
+                Pointer newPointer = cache.storageManager.storeInMemory(cache.storageManager.retrieve(pointer));
+                if (newPointer == null) {
+                    return false;
+                }
+                move(cache, key, wrapper, newPointer);
+                return true;
+            } finally {
+                cache.writeUnlock(key);
+            }
+        }
+
+        /**
+         * Moves the entries of the memory block to file blocks.
+         */
+        private void demote(BigCache<K> cache, StorageBlock block) throws IOException {
+            for (K key : cache.reverseIndex.getKeys(block.getIndex())) {
+                cache.writeLock(key);
+                try {
+                    CacheValueWrapper wrapper = cache.pointerMap.get(key);
+                    if (wrapper == null || wrapper.isChunked() || wrapper.getPointer().getStorageBlock() != block) {
+                        continue;
+                    }
+                    Pointer newPointer = cache.storageManager.store(cache.storageManager.retrieve(wrapper.getPointer()));
+                    if (newPointer == null) {
+                        return; // the max bytes of storage are used up, left to the eviction
+                    }
+                    move(cache, key, wrapper, newPointer);
+                } finally {
+                    cache.writeUnlock(key);
+                }
+            }
+        }
+
+        /**
+         * Points the entry to its payload moved, should be called with the write lock of the key held.
+         */
+        static <K> void move(BigCache<K> cache, K key, CacheValueWrapper wrapper, Pointer newPointer)
+                throws IOException {
+            Pointer pointer = wrapper.getPointer();
+            cache.storageManager.removeLight(pointer);
+            wrapper.setPointer(newPointer);
+            cache.reverseIndex.remove(key, pointer);
+            cache.reverseIndex.add(key, newPointer);
+            cache.moveCounter.incrementAndGet();
+        }
+
+        /**
+         * Moves the chunks in dirty blocks, should be called with the write lock of the key held.
+         *
+         * @return false if the max bytes of storage are used up
+         */
+        static <K> boolean moveChunks(BigCache<K> cache, K key, Pointer[] chunks) throws IOException {
+            for (int i = 0; i < chunks.length; i++) {
+                StorageBlock sb = chunks[i].getStorageBlock();
+                if (sb.getDirtyRatio() > cache.dirtyRatioThreshold) {
+                    byte[] payload = cache.storageManager.retrieve(chunks[i]);
+                    Pointer newChunk = cache.storageManager.storeExcluding(payload, sb);
+                    if (newChunk == null) {
+                        return false;
                     }
-                    keyList.add(key);
+                    cache.storageManager.removeLight(chunks[i]);
+                    cache.reverseIndex.remove(key, chunks[i]);
+                    chunks[i] = newChunk;
+                    cache.reverseIndex.add(key, chunks[i]);
+                    cache.moveCounter.incrementAndGet();
                 }
             }
+            return true;
+        }
+    }
+
+    /**
+     * Forks the merges of the dirty blocks in the merge pool, and waits for them all.
+     *
+     * @param <K> the key type
+     */
+    static class BlockMerges<K> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<BlockMerge<K>> merges;
+
+        BlockMerges(List<BlockMerge<K>> merges) {
+            this.merges = merges;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(merges);
+        }
+    }
+
+    /**
+     * Moves the live payloads out of a dirty block, in the order they are stored in the block, so the block is read
+     * sequentially, MERGE_READ_SIZE bytes at most at once, rather than a payload at a time. The payloads read are
+     * checked against the index under the write lock of each key before moved, as they may have been changed since.
+     *
+     * The result is false if the max bytes of storage are used up, or the merge is interrupted.
+     *
+     * @param <K> the key type
+     */
+    static class BlockMerge<K> extends RecursiveTask<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private final BigCache<K> cache;
+        private final StorageBlock block;
+
+        BlockMerge(BigCache<K> cache, StorageBlock block) {
+            this.cache = cache;
+            this.block = block;
+        }
+
+        @Override
+        protected Boolean compute() {
+            try {
+                return merge();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
 
-            // move keys index by index, we will always work on the block in memory.
-            for(List<K> keyList : keysInDirtyBlock.values()) {
-                if (keyList == null || keyList.isEmpty()) {
+        private boolean merge() throws IOException, InterruptedException {
+            // a snapshot, it may be a bit off as we will validate later.
+            List<Move<K>> moves = new ArrayList<Move<K>>();
+            List<K> chunkedKeys = new ArrayList<K>();
+            for (K key : cache.reverseIndex.getKeys(block.getIndex())) {
+                CacheValueWrapper wrapper = cache.pointerMap.get(key);
+                if (wrapper == null) {
                     continue;
                 }
-                for(K key : keyList) {
-                    cache.readLock(key);
+                if (wrapper.isChunked()) {
+                    chunkedKeys.add(key);
+                } else if (wrapper.getPointer().getStorageBlock() == block) {
+                    moves.add(new Move<K>(key, wrapper.getPointer()));
+                }
+            }
+            Collections.sort(moves);
+
+            for (int i = 0; i < moves.size(); ) {
+                // the payloads in a row read at once, a payload larger than the read size on its own
+                long start = moves.get(i).pointer.getPosition();
+                int end = i + 1;
+                while (end < moves.size() && moves.get(end).end() - start <= MERGE_READ_SIZE) {
+                    end++;
+                }
+                int length = (int) (moves.get(end - 1).end() - start);
+                cache.mergeRateLimiter.acquire(length);
+                byte[] run = block.retrieve(start, length);
+                for (; i < end; i++) {
+                    Move<K> move = moves.get(i);
+                    Pointer pointer = move.pointer;
+                    int offset = (int) (pointer.getPosition() - start);
+                    cache.mergeRateLimiter.acquire(pointer.getLength());
+                    // the write lock keeps the readers off, and tells the optimistic ones to read again
+                    cache.writeLock(move.key);
                     try {
-                        CacheValueWrapper wrapper = cache.pointerMap.get(key);
-                        if (wrapper == null) {
-                            // not exist now and do nothing, continue with next key;
-                            continue;
+                        CacheValueWrapper wrapper = cache.pointerMap.get(move.key);
+                        if (wrapper == null || wrapper.isChunked() || wrapper.getPointer() != pointer) {
+                            continue; // removed or changed since read, the payload read is stale
                         }
-
-                        // wrapper is accessed/modified by reader and the merger, use lock here
-                        synchronized (wrapper) {
-                            StorageBlock sb = wrapper.getPointer().getStorageBlock();
-                            if (sb.getDirtyRatio() > cache.dirtyRatioThreshold) {
-                                byte[] payload = cache.storageManager.remove(wrapper.getPointer());
-                                Pointer newPointer = cache.storageManager.storeExcluding(payload, sb);
-                                wrapper.setPointer(newPointer);
-                                cache.moveCounter.incrementAndGet();
-                            }
+                        byte[] payload = Arrays.copyOfRange(run, offset, offset + pointer.getLength());
+                        Pointer newPointer = cache.storageManager.storeExcluding(payload, block);
+                        if (newPointer == null) {
+                            return false;
                         }
+                        CacheMerger.move(cache, move.key, wrapper, newPointer);
                     } finally {
-                        cache.readUnlock(key);
+                        cache.writeUnlock(move.key);
                     }
                 }
             }
-            cache.NO_OF_MERGE_RUN.incrementAndGet();
+
+            for (K key : chunkedKeys) {
+                cache.writeLock(key);
+                try {
+                    CacheValueWrapper wrapper = cache.pointerMap.get(key);
+                    if (wrapper != null && wrapper.isChunked()
+                            && !CacheMerger.moveChunks(cache, key, wrapper.getChunks())) {
+                        return false;
+                    }
+                } finally {
+                    cache.writeUnlock(key);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A payload to move out of a dirty block, ordered by its position in the block.
+     *
+     * @param <K> the key type
+     */
+    static class Move<K> implements Comparable<Move<K>> {
+        final K key;
+        final Pointer pointer;
+
+        Move(K key, Pointer pointer) {
+            this.key = key;
+            this.pointer = pointer;
+        }
+
+        long end() {
+            return pointer.getPosition() + pointer.getLength();
+        }
+
+        @Override
+        public int compareTo(Move<K> o) {
+            return Long.compare(pointer.getPosition(), o.pointer.getPosition());
         }
     }
 }
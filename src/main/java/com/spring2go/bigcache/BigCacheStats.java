@@ -13,6 +13,7 @@ public class BigCacheStats {
 
     private final long cacheExpire;
     private final long cacheMove;
+    private final long cacheEvict;
     private final long cacheTotalEntries;
 
     private final long storageUsed;
@@ -24,7 +25,7 @@ public class BigCacheStats {
 
     public BigCacheStats(long cacheHit, long cacheMiss, long cacheGet,
                          long cachePut, long cacheDelete, long cacheExpire,
-                         long cacheMove, long cacheTotalEntries, long storageUsed,
+                         long cacheMove, long cacheEvict, long cacheTotalEntries, long storageUsed,
                          long storageDirty, long storageCapacity,
                          long storageUsedBlocks, long storageFreeBlocks, long storageTotalBlocks) {
         this.cacheHit = cacheHit;
@@ -36,6 +37,7 @@ public class BigCacheStats {
 
         this.cacheExpire = cacheExpire;
         this.cacheMove = cacheMove;
+        this.cacheEvict = cacheEvict;
 
         this.cacheTotalEntries = cacheTotalEntries;
 
@@ -49,7 +51,7 @@ public class BigCacheStats {
     }
 
     public BigCacheStats() {
-        this(0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L);
+        this(0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L);
     }
 
     public BigCacheStats getDeltaStats(BigCacheStats previousStats) {
@@ -65,6 +67,7 @@ public class BigCacheStats {
                 this.cacheDelete - previousStats.cacheDelete,
                 this.cacheExpire - previousStats.cacheExpire,
                 this.cacheMove - previousStats.cacheMove,
+                this.cacheEvict - previousStats.cacheEvict,
 
                 /*$(current value): latest value which is more meaningful*/
                 this.cacheTotalEntries,
@@ -105,6 +108,10 @@ public class BigCacheStats {
         return cacheMove;
     }
 
+    public long getCacheEvict() {
+        return cacheEvict;
+    }
+
     public long getCacheTotalEntries() {
         return cacheTotalEntries;
     }
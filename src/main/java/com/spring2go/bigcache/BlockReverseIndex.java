@@ -0,0 +1,112 @@
+package com.spring2go.bigcache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.spring2go.bigcache.storage.Pointer;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * The keys whose payloads live in each storage block, so merging a dirty block only touches the entries in the
+ * block instead of scanning all the keys.
+ *
+ * It's maintained along with the pointers of the entries, with the write lock of the key held. The set of a block
+ * may be a bit off while a pointer is being changed, the merger validates the keys with the lock held anyway.
+ *
+ * @param <K> the key type
+ */
+class BlockReverseIndex<K> {
+    /** The keys by block index. */
+    private final ConcurrentMap<Integer, Set<K>> keysByBlock = new ConcurrentHashMap<Integer, Set<K>>();
+
+    /**
+     * Adds the key to the blocks of the payload of the entry.
+     *
+     * @param key the key
+     * @param wrapper the entry
+     */
+    void add(K key, CacheValueWrapper wrapper) {
+        if (wrapper.isChunked()) {
+            for (Pointer chunk : wrapper.getChunks()) {
+                add(key, chunk);
+            }
+        } else {
+            add(key, wrapper.getPointer());
+        }
+    }
+
+    /**
+     * Removes the key from the blocks of the payload of the entry.
+     *
+     * @param key the key
+     * @param wrapper the entry
+     */
+    void remove(K key, CacheValueWrapper wrapper) {
+        if (wrapper.isChunked()) {
+            for (Pointer chunk : wrapper.getChunks()) {
+                remove(key, chunk);
+            }
+        } else {
+            remove(key, wrapper.getPointer());
+        }
+    }
+
+    void add(K key, Pointer pointer) {
+        Integer index = pointer.getStorageBlock().getIndex();
+        Set<K> keys = keysByBlock.get(index);
+        if (keys == null) {
+            Set<K> newKeys = Collections.newSetFromMap(new ConcurrentHashMap<K, Boolean>());
+            keys = keysByBlock.putIfAbsent(index, newKeys);
+            if (keys == null) {
+                keys = newKeys;
+            }
+        }
+        keys.add(key);
+    }
+
+    void remove(K key, Pointer pointer) {
+        Set<K> keys = keysByBlock.get(pointer.getStorageBlock().getIndex());
+        if (keys != null) {
+            keys.remove(key);
+        }
+    }
+
+    /**
+     * Gets a snapshot of the keys in the block.
+     *
+     * @param blockIndex the index of the block
+     * @return the keys
+     */
+    List<K> getKeys(int blockIndex) {
+        Set<K> keys = keysByBlock.get(blockIndex);
+        return keys == null ? Collections.<K>emptyList() : new ArrayList<K>(keys);
+    }
+
+    /**
+     * Gets up to the given number of keys in the block, in no particular order.
+     *
+     * @param blockIndex the index of the block
+     * @param count the max number of keys
+     * @return the keys
+     */
+    List<K> sampleKeys(int blockIndex, int count) {
+        List<K> sample = new ArrayList<K>(count);
+        Set<K> keys = keysByBlock.get(blockIndex);
+        if (keys != null) {
+            for (Iterator<K> it = keys.iterator(); it.hasNext() && sample.size() < count; ) {
+                sample.add(it.next());
+            }
+        }
+        return sample;
+    }
+
+    void clear() {
+        keysByBlock.clear();
+    }
+}
@@ -1,5 +1,6 @@
 package com.spring2go.bigcache;
 
+import com.spring2go.bigcache.codec.ICodec;
 import com.spring2go.bigcache.storage.StorageManager;
 
 
@@ -8,13 +9,30 @@ import com.spring2go.bigcache.storage.StorageManager;
  */
 public class CacheConfig {
     private int concurrencyLevel = BigCache.DEFAULT_CONCURRENCY_LEVEL;
-    private int capacityPerBlock = StorageManager.DEFAULT_CAPACITY_PER_BLOCK;
+    private long capacityPerBlock = StorageManager.DEFAULT_CAPACITY_PER_BLOCK;
     private int initialNumberOfBlocks = StorageManager.DEFAULT_INITIAL_NUMBER_OF_BLOCKS;
     private long purgeInterval = BigCache.DEFAULT_PURGE_INTERVAL;
     private long mergeInterval = BigCache.DEFAULT_MERGE_INTERVAL;
     private double dirtyRatioThreshold = BigCache.DEFAULT_DIRTY_RATIO_THRESHOLD;
+    private int mergeParallelism = BigCache.DEFAULT_MERGE_PARALLELISM;
+    private long mergeRateLimit = 0; // 0 means unlimited
     private long maxOffHeapMemorySize = StorageManager.DEFAULT_MAX_OFFHEAP_MEMORY_SIZE;
+    private long maxBytes = -1; // -1 means unbounded
+    private int activeBlockCount = StorageManager.DEFAULT_ACTIVE_BLOCK_COUNT;
+    private int preallocatedBlockCount = 0; // 0 means created on demand
+    private long expiryBucketInterval = 0; // 0 means the expiring entries are mixed with the others
+    private int expiryBucketCount = StorageManager.DEFAULT_EXPIRY_BUCKET_COUNT;
+    private boolean fifoRing = false;
     private StorageMode storageMode = StorageMode.PureFile;
+    private boolean warmRestart = false;
+    private boolean crashRecovery = false;
+    private ICodec codec = null; // null means not compressed
+    private boolean tiering = false;
+    private boolean asyncIo = false;
+    private int writeBufferSize = 0; // 0 means not buffered
+    private boolean sharedMapping = false;
+    private long flushInterval = 1000; // 1 second
+    private long flushBytes = 0; // 0 means only flushed on the interval
 
     public int getConcurrencyLevel() {
         return concurrencyLevel;
@@ -29,14 +47,27 @@ public class CacheConfig {
         return this;
     }
 
-    public int getCapacityPerBlock() {
+    public long getCapacityPerBlock() {
         return capacityPerBlock;
     }
 
-    public CacheConfig setCapacityPerBlock(int capacityPerBlock) {
+    /**
+     * The capacity of each storage block.
+     *
+     * The blocks are addressed by long offsets, so a block may be larger than 2GB, up to 1TB. A few large blocks
+     * need less files, mappings and bookkeeping than many small ones, while the smaller blocks are merged and
+     * evicted in smaller steps.
+     *
+     * @param capacityPerBlock the capacity in bytes, at least 16MB.
+     * @return CacheConfig
+     */
+    public CacheConfig setCapacityPerBlock(long capacityPerBlock) {
         if(capacityPerBlock < 16 * 1024 * 1024){
             throw new IllegalArgumentException("capacityPerBlock must be bigger than 16MB!");
         }
+        if (capacityPerBlock > StorageManager.MAX_CAPACITY_PER_BLOCK) {
+            throw new IllegalArgumentException("capacityPerBlock must be no more than 1TB!");
+        }
 
         this.capacityPerBlock = capacityPerBlock;
         return this;
@@ -65,10 +96,125 @@ public class CacheConfig {
         return this;
     }
 
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Bounds the storage of all the blocks, on disk or off heap, to the bytes. Entries are evicted to free a
+     * block when a new one would exceed it.
+     *
+     * @param maxBytes the max bytes, at least 2 blocks
+     * @return the config
+     */
+    public CacheConfig setMaxBytes(long maxBytes) {
+        if(maxBytes <= 0){
+            throw new IllegalArgumentException("maxBytes must be > 0!");
+        }
+
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    public int getActiveBlockCount() {
+        return activeBlockCount;
+    }
+
+    /**
+     * Sets the number of blocks new cache data is appended to at the same time, the writing threads are spread
+     * over them. More active blocks take more storage, as each one is only partly filled.
+     *
+     * @param activeBlockCount the number of active blocks
+     * @return the config
+     */
+    public CacheConfig setActiveBlockCount(int activeBlockCount) {
+        if(activeBlockCount <= 0 || activeBlockCount > 64){
+            throw new IllegalArgumentException("activeBlockCount must be between 1 and 64 inclusive!");
+        }
+
+        this.activeBlockCount = activeBlockCount;
+        return this;
+    }
+
+    public int getPreallocatedBlockCount() {
+        return preallocatedBlockCount;
+    }
+
+    /**
+     * Sets the number of free blocks kept ready in the background.
+     *
+     * When the active block overflows, the writer switches to a free block, and creates a new one if none is left,
+     * i.e. creates the file, sets its length and maps it while the other writers wait. With preallocation a
+     * background thread creates the blocks ahead, and touches the pages of the memory blocks so they are faulted in
+     * already, so a rollover only takes a ready block.
+     *
+     * @param preallocatedBlockCount the number of free blocks kept ready, 0 to create the blocks on demand
+     * @return the config
+     */
+    public CacheConfig setPreallocatedBlockCount(int preallocatedBlockCount) {
+        if (preallocatedBlockCount < 0) {
+            throw new IllegalArgumentException("preallocatedBlockCount must be >= 0!");
+        }
+        this.preallocatedBlockCount = preallocatedBlockCount;
+        return this;
+    }
+
+    public long getExpiryBucketInterval() {
+        return expiryBucketInterval;
+    }
+
+    /**
+     * Grouping the entries by their time to live.
+     *
+     * When set, the entries put with a time to live are stored to active blocks of their own, one per range of
+     * deadlines of the given width, so the entries of a block expire together, and the block is freed once they are
+     * purged, without the merger copying the entries still alive. The blocks of the ranges passed are no longer
+     * active. The entries without a time to live, and the ones whose deadlines are beyond the expiry bucket count of
+     * ranges, are stored as usual.
+     *
+     * @param expiryBucketInterval the width of the range of deadlines in milliseconds, 0 not to group.
+     * @return CacheConfig
+     */
+    public CacheConfig setExpiryBucketInterval(long expiryBucketInterval) {
+        if (expiryBucketInterval < 0) {
+            throw new IllegalArgumentException("expiryBucketInterval must be >= 0!");
+        }
+        this.expiryBucketInterval = expiryBucketInterval;
+        return this;
+    }
+
+    public int getExpiryBucketCount() {
+        return expiryBucketCount;
+    }
+
+    /**
+     * The number of ranges of deadlines given active blocks of their own at most, see
+     * {@link #setExpiryBucketInterval(long)}.
+     *
+     * @param expiryBucketCount the number of ranges, at least 1.
+     * @return CacheConfig
+     */
+    public CacheConfig setExpiryBucketCount(int expiryBucketCount) {
+        if (expiryBucketCount < 1) {
+            throw new IllegalArgumentException("expiryBucketCount must be >= 1!");
+        }
+        this.expiryBucketCount = expiryBucketCount;
+        return this;
+    }
+
     public long getMergeInterval() {
         return mergeInterval;
     }
 
+    /**
+     * The longest interval between two merges.
+     *
+     * The merger runs again sooner as the storage gets dirty, down to {@link BigCache#MIN_MERGE_INTERVAL} when the
+     * dirty ratio of the whole storage reaches the dirty ratio threshold.
+     *
+     * @param mergeInterval the interval in milliseconds.
+     * @return CacheConfig
+     */
     public CacheConfig setMergeInterval(long mergeInterval) {
         this.mergeInterval = mergeInterval;
         return this;
@@ -83,6 +229,71 @@ public class CacheConfig {
         return this;
     }
 
+    public int getMergeParallelism() {
+        return mergeParallelism;
+    }
+
+    /**
+     * The number of dirty blocks merged at once.
+     *
+     * Each dirty block is merged by a task of its own on a fork join pool of this many threads, so a few blocks
+     * gone dirty together are merged in about the time of one.
+     *
+     * @param mergeParallelism the number of threads merging, at least 1.
+     * @return CacheConfig
+     */
+    public CacheConfig setMergeParallelism(int mergeParallelism) {
+        if (mergeParallelism < 1) {
+            throw new IllegalArgumentException("mergeParallelism must be >= 1!");
+        }
+        this.mergeParallelism = mergeParallelism;
+        return this;
+    }
+
+    public long getMergeRateLimit() {
+        return mergeRateLimit;
+    }
+
+    /**
+     * Limiting the I/O of the merger.
+     *
+     * The bytes read from the dirty blocks and written elsewhere by the merger are limited to the given rate, shared
+     * by all the threads merging, so the merger doesn't take the disk from the readers and writers.
+     *
+     * @param mergeRateLimit the bytes per second, 0 not to limit.
+     * @return CacheConfig
+     */
+    public CacheConfig setMergeRateLimit(long mergeRateLimit) {
+        if (mergeRateLimit < 0) {
+            throw new IllegalArgumentException("mergeRateLimit must be >= 0!");
+        }
+        this.mergeRateLimit = mergeRateLimit;
+        return this;
+    }
+
+    public boolean isFifoRing() {
+        return fifoRing;
+    }
+
+    /**
+     * Storing the blocks as a FIFO ring.
+     *
+     * When enabled, the blocks within the max bytes, see {@link #setMaxBytes(long)}, are written in turn, and once
+     * they are all used, the oldest block is dropped as a whole to be written again, rather than evicting the entries
+     * accessed least recently. The entries of a dropped block are not removed one by one, they are told apart by the
+     * generation of the block, so they are missed on lookup, and removed from the index in the background. Nothing
+     * is merged, so the writes never wait for a merge or an eviction, while the storage never grows beyond the max
+     * bytes. Meant for caching the data written recently on a best-effort basis. Can't be set with
+     * {@link #setTiering(boolean)} or {@link #setCrashRecovery(boolean)}.
+     *
+     * @param fifoRing true to store the blocks as a FIFO ring.
+     * @return CacheConfig
+     */
+    public CacheConfig setFifoRing(boolean fifoRing) {
+        this.fifoRing = fifoRing;
+        return this;
+    }
+
     public StorageMode getStorageMode() {
         return storageMode;
     }
@@ -113,6 +324,183 @@ public class CacheConfig {
         return this.maxOffHeapMemorySize;
     }
 
+    public boolean isWarmRestart() {
+        return warmRestart;
+    }
+
+    /**
+     * Keeping the cached data across restarts.
+     *
+     * When enabled, the cache writes a checkpoint of its index to the cache directory on close, and the next cache
+     * opened on the same directory reopens the existing block files instead of deleting them.
+     *
+     * @param warmRestart true to keep the cached data across restarts.
+     * @return CacheConfig
+     */
+    public CacheConfig setWarmRestart(boolean warmRestart) {
+        this.warmRestart = warmRestart;
+        return this;
+    }
+
+    public boolean isCrashRecovery() {
+        return crashRecovery;
+    }
+
+    /**
+     * Keeping the cached data across crashes.
+     *
+     * When enabled, each entry is stored as a self-describing record (header, key and value protected by a checksum),
+     * and a cache opened on a directory without a checkpoint from a clean close rebuilds its index by scanning the
+     * block files left by the crashed one. Only the data held in files survives a crash, so this mainly applies to
+     * the {@link StorageMode#PureFile} mode. The keys must be String, Integer, Long or Serializable.
+     *
+     * @param crashRecovery true to keep the cached data across crashes.
+     * @return CacheConfig
+     */
+    public CacheConfig setCrashRecovery(boolean crashRecovery) {
+        this.crashRecovery = crashRecovery;
+        return this;
+    }
+
+    public ICodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Compressing the values.
+     *
+     * Each value is compressed on put and decompressed on get, and stored as is when it doesn't get smaller, which
+     * is flagged per value. The values put from streams are never compressed. The codec must not change across
+     * crash recovery, a warm restart with another codec starts cold.
+     *
+     * @param codec the codec, e.g. {@link com.spring2go.bigcache.codec.LzCodec}, or null not to compress.
+     * @return CacheConfig
+     */
+    public CacheConfig setCodec(ICodec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    public boolean isTiering() {
+        return tiering;
+    }
+
+    /**
+     * Keeping the hot data in memory.
+     *
+     * When enabled, the memory blocks allowed by {@link #setMaxOffHeapMemorySize(long)} are kept for the values
+     * read often, and new values are stored to file blocks. The merger promotes the values read most since its last
+     * run to the memory blocks, and demotes the values of the coldest memory blocks to file blocks to make room.
+     * Only takes effect when the {@link StorageMode} is set to MemoryMappedPlusFile or OffHeapPlusFile mode.
+     *
+     * @param tiering true to keep the hot data in memory.
+     * @return CacheConfig
+     */
+    public CacheConfig setTiering(boolean tiering) {
+        this.tiering = tiering;
+        return this;
+    }
+
+    public boolean isAsyncIo() {
+        return asyncIo;
+    }
+
+    /**
+     * Reading the file blocks asynchronously.
+     *
+     * When enabled, the file blocks are stored on an {@link java.nio.channels.AsynchronousFileChannel}, so
+     * {@link BigCache#getAsync(Object)} returns before the value is read from disk, and the caller can have many
+     * reads outstanding. The other operations still wait for the disk.
+     *
+     * @param asyncIo true to read the file blocks asynchronously.
+     * @return CacheConfig
+     */
+    public CacheConfig setAsyncIo(boolean asyncIo) {
+        this.asyncIo = asyncIo;
+        return this;
+    }
+
+    public int getWriteBufferSize() {
+        return writeBufferSize;
+    }
+
+    /**
+     * Combining the small writes to the file blocks.
+     *
+     * When set, each file block copies the writes appended to it to an off heap buffer of the given size, and writes
+     * the buffer to the file in one go when it's full or the writes go elsewhere. The reads of the bytes not written
+     * yet are served from the buffer. The buffers are flushed every flush interval, see
+     * {@link #setFlushInterval(long)}, the bytes buffered meanwhile are lost on a crash. Can't be set with
+     * {@link #setAsyncIo(boolean)}.
+     *
+     * @param writeBufferSize the size of the buffer in bytes, 0 not to buffer the writes.
+     * @return CacheConfig
+     */
+    public CacheConfig setWriteBufferSize(int writeBufferSize) {
+        if (writeBufferSize < 0) {
+            throw new IllegalArgumentException("writeBufferSize must be >= 0!");
+        }
+        this.writeBufferSize = writeBufferSize;
+        return this;
+    }
+
+    public boolean isSharedMapping() {
+        return sharedMapping;
+    }
+
+    /**
+     * Writing the memory mapped blocks through to their files.
+     *
+     * When enabled, the blocks of the MemoryMappedPlusFile mode are mapped shared rather than privately, so the
+     * writes reach the block files, and the mappings are forced to disk every flush interval, see
+     * {@link #setFlushInterval(long)}. With {@link #setCrashRecovery(boolean)} the memory mapped blocks are then
+     * recovered after a crash like the file blocks, and a warm restart doesn't copy them to their files.
+     *
+     * @param sharedMapping true to write the memory mapped blocks through to their files.
+     * @return CacheConfig
+     */
+    public CacheConfig setSharedMapping(boolean sharedMapping) {
+        this.sharedMapping = sharedMapping;
+        return this;
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * The interval the write buffers are flushed and the shared mappings forced at, in milliseconds, which bounds
+     * the writes lost on a crash, see {@link #setWriteBufferSize(int)} and {@link #setSharedMapping(boolean)}.
+     *
+     * @param flushInterval the interval in milliseconds.
+     * @return CacheConfig
+     */
+    public CacheConfig setFlushInterval(long flushInterval) {
+        if (flushInterval <= 0) {
+            throw new IllegalArgumentException("flushInterval must be > 0!");
+        }
+        this.flushInterval = flushInterval;
+        return this;
+    }
+
+    public long getFlushBytes() {
+        return flushBytes;
+    }
+
+    /**
+     * The bytes written to a shared mapping which get it forced before the flush interval is over.
+     *
+     * @param flushBytes the bytes, 0 to only force on the flush interval.
+     * @return CacheConfig
+     */
+    public CacheConfig setFlushBytes(long flushBytes) {
+        if (flushBytes < 0) {
+            throw new IllegalArgumentException("flushBytes must be >= 0!");
+        }
+        this.flushBytes = flushBytes;
+        return this;
+    }
+
     public enum StorageMode {
         PureFile,
         MemoryMappedPlusFile,
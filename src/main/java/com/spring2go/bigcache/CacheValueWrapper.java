@@ -5,29 +5,51 @@ import com.spring2go.bigcache.storage.Pointer;
 /**
  * Created on Jul, 2020 by @author bobo
  *
- * Wrapper class in BigCache, which contains info on access time, ttl and storage.
+ * Wrapper class in BigCache, which contains info on access time, tti, ttl and storage.
  *
  * The {@link BigCache} will protect the r/w operation on this object by two means:
- * 1. use a striped write lock in its write operations.
- * 2. synchronize the CacheValueWrapper object in the read operations of Cache, as there may be
- * multiple threads working on this simultaneously.
+ * 1. use a striped write lock in its write operations, the merger included.
+ * 2. the fields are volatile, as the readers may read them optimistically without any lock, and update the
+ * access time concurrently, which only moves forward.
  */
 public class CacheValueWrapper {
     /**
      * The backend storage info of this entry.
      *
      */
-    protected Pointer pointer;
+    protected volatile Pointer pointer;
+
+    /**
+     * The chunks of a value stored from a stream, which may be larger than a storage block allows.
+     * The pointer is null for such values, and chunks is null for the others.
+     */
+    protected volatile Pointer[] chunks;
 
     /**
      * The access time in milliseconds.
      *
-     * Read/write of this field should be guarded by locks.
+     * It may be updated by concurrent readers, a lost update only loses a millisecond or so.
      */
-    protected long lastAccessTime = -1; // -1 means for not initialized.
+    protected volatile long lastAccessTime = -1; // -1 means for not initialized.
 
     /** Time to idle in milliseconds */
-    protected long timeToIdle = -1L;
+    protected volatile long timeToIdle = -1L;
+
+    /** The absolute expire time in milliseconds, set by a time to live */
+    protected volatile long expireTime = -1L;
+
+    /**
+     * The deadline this entry is scheduled to be checked for expiration at, by the cleaner.
+     * 0 means not scheduled.
+     */
+    volatile long scheduledExpiration;
+
+    /**
+     * The number of reads, halved by the merger on each run, which tells the hot entries when tiering.
+     *
+     * It's counted without synchronization by concurrent readers, a lost count doesn't matter.
+     */
+    protected int heat;
 
     /**
      * Gets the last access time.
@@ -74,6 +96,35 @@ public class CacheValueWrapper {
         lastAccessTime = accessTime;
     }
 
+    /**
+     * Counts a read to the heat.
+     */
+    public void recordAccess() {
+        if (heat < Integer.MAX_VALUE) {
+            heat++;
+        }
+    }
+
+    /**
+     * Gets the heat, see {@link #recordAccess()}.
+     *
+     * @return the heat
+     */
+    public int getHeat() {
+        return heat;
+    }
+
+    /**
+     * Halves the heat, so it follows the recent reads.
+     *
+     * @return the heat before being halved
+     */
+    public int ageHeat() {
+        int oldHeat = heat;
+        heat = oldHeat >>> 1;
+        return oldHeat;
+    }
+
     /**
      * Gets the time to idle in milliseconds
      *
@@ -92,6 +143,38 @@ public class CacheValueWrapper {
         this.timeToIdle = timeToIdle;
     }
 
+    /**
+     * Gets the absolute expire time in milliseconds
+     *
+     * @return the expire time, -1 if the entry doesn't live for a limited time
+     */
+    public long getExpireTime() {
+        return expireTime;
+    }
+
+    /**
+     * Sets the absolute expire time in milliseconds
+     *
+     * @param expireTime the new expire time, -1 for no limit
+     */
+    public void setExpireTime(long expireTime) {
+        this.expireTime = expireTime;
+    }
+
+    /**
+     * Starts the expiration over for a new value, unlike {@link #setLastAccessTime(long)} it may bring an
+     * expired entry back.
+     *
+     * @param accessTime the access time
+     * @param timeToIdle the time to idle, -1 for never
+     * @param expireTime the expire time, -1 for never
+     */
+    public void renew(long accessTime, long timeToIdle, long expireTime) {
+        this.timeToIdle = timeToIdle;
+        this.expireTime = expireTime;
+        this.lastAccessTime = accessTime;
+    }
+
     public Pointer getPointer() {
         return pointer;
     }
@@ -100,14 +183,86 @@ public class CacheValueWrapper {
         this.pointer = pointer;
     }
 
+    public Pointer[] getChunks() {
+        return chunks;
+    }
+
+    public void setChunks(Pointer[] chunks) {
+        this.chunks = chunks;
+    }
+
     /**
-     * Is the cached item expired
+     * Is the value stored in chunks
+     *
+     * @return chunked or not
+     */
+    public boolean isChunked() {
+        return chunks != null;
+    }
+
+    /**
+     * Gets the length of the stored payload, summing up the chunks if any.
+     *
+     * @return the length
+     */
+    public long getLength() {
+        if (chunks == null) {
+            return pointer.getLength();
+        }
+        long length = 0;
+        for (Pointer chunk : chunks) {
+            length += chunk.getLength();
+        }
+        return length;
+    }
+
+    /**
+     * Is the stored payload gone, as its block has been dropped from the FIFO ring, see
+     * {@link CacheConfig#setFifoRing(boolean)}.
+     *
+     * @return stale or not
+     */
+    public boolean isStale() {
+        Pointer[] chunks = this.chunks;
+        if (chunks == null) {
+            Pointer pointer = this.pointer;
+            return pointer != null && pointer.isStale();
+        }
+        for (Pointer chunk : chunks) {
+            if (chunk.isStale()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Is the cached item expired, or its payload dropped from the FIFO ring
      *
      * @return expired or not
      */
     public boolean isExpired() {
+        if (isStale()) return true;
+        if (this.expireTime > 0 && System.currentTimeMillis() >= this.expireTime) return true;
         if (this.timeToIdle <= 0) return false; // never expire
         if (this.lastAccessTime < 0) return false; // not initialized
         return System.currentTimeMillis() - this.lastAccessTime > this.timeToIdle;
     }
+
+    /**
+     * Gets the time the entry expires at if not accessed any more, the earlier of the idle deadline and the
+     * expire time.
+     *
+     * @return the expiration time in milliseconds, -1 if never
+     */
+    public long getExpirationTime() {
+        long expiration = this.expireTime > 0 ? this.expireTime : -1;
+        if (this.timeToIdle > 0 && this.lastAccessTime >= 0) {
+            long idleDeadline = this.lastAccessTime + this.timeToIdle + 1;
+            if (expiration < 0 || idleDeadline < expiration) {
+                expiration = idleDeadline;
+            }
+        }
+        return expiration;
+    }
 }
@@ -0,0 +1,654 @@
+package com.spring2go.bigcache;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import com.spring2go.bigcache.index.CompactPointerMap;
+import com.spring2go.bigcache.index.PackedPointer;
+import com.spring2go.bigcache.index.PointerIndex;
+import com.spring2go.bigcache.lock.StripedReadWriteLock;
+import com.spring2go.bigcache.storage.Pointer;
+import com.spring2go.bigcache.storage.StorageBlock;
+import com.spring2go.bigcache.storage.StorageManager;
+import com.spring2go.bigcache.utils.FileUtil;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * The Class CompactBigCache is a {@link BigCache} variant for caches with lots of small entries.
+ *
+ * Instead of a map node, a {@link CacheValueWrapper} and a {@link Pointer} per entry, the storage info is packed
+ * into primitives (see {@link PackedPointer}) and kept in open addressing tables, one table per lock stripe,
+ * which brings the on heap overhead down from about 100 bytes to about 30 bytes per entry besides the key.
+ *
+ * Warm restart and crash recovery are not supported yet.
+ *
+ * @param <K> the key type
+ */
+public class CompactBigCache<K> implements ICache<K> {
+    /** The hit counter. */
+    protected AtomicLong hitCounter = new AtomicLong();
+
+    /** The miss counter. */
+    protected AtomicLong missCounter = new AtomicLong();
+
+    /** The get counter. */
+    protected AtomicLong getCounter = new AtomicLong();
+
+    /** The put counter. */
+    protected AtomicLong putCounter = new AtomicLong();
+
+    /** The delete counter. */
+    protected AtomicLong deleteCounter = new AtomicLong();
+
+    /** The # of purges due to expiration. */
+    protected AtomicLong purgeCounter = new AtomicLong();
+
+    /** The # of moves for dirty block recycle. */
+    protected AtomicLong moveCounter = new AtomicLong();
+
+    /** The total storage size we have used, including the expired ones which are still in the index */
+    protected AtomicLong usedSize = new AtomicLong();
+
+    /** The index, segment i is guarded by the i-th lock of the striped lock. */
+    private final PointerIndex<K>[] segments;
+
+    /** Managing the storages. */
+    /* package for ut */ final StorageManager storageManager;
+
+    /** The read write lock. */
+    private final StripedReadWriteLock readWriteLock;
+
+    /** The access times in the index are relative to this time. */
+    private final long baseTime = System.currentTimeMillis();
+
+    /** The directory to store cached data */
+    private String cacheDir;
+
+    /** The thread pool which is used to clean the cache */
+    private ScheduledExecutorService ses;
+
+    /** dirty ratio which controls block recycle */
+    private final double dirtyRatioThreshold;
+
+    @SuppressWarnings("unchecked")
+    public CompactBigCache(String dir, CacheConfig config) throws IOException {
+        this.cacheDir = dir;
+        if (!this.cacheDir.endsWith(File.separator)) {
+            this.cacheDir += File.separator;
+        }
+        // validate directory
+        if (!FileUtil.isFilenameValid(this.cacheDir)) {
+            throw new IllegalArgumentException("Invalid cache data directory : " + this.cacheDir);
+        }
+        if (config.isWarmRestart() || config.isCrashRecovery()) {
+            throw new IllegalArgumentException("warm restart and crash recovery are not supported by CompactBigCache");
+        }
+        if (config.getMaxBytes() > 0) {
+            throw new IllegalArgumentException("maxBytes is not supported by CompactBigCache");
+        }
+        if (config.getCodec() != null) {
+            throw new IllegalArgumentException("codec is not supported by CompactBigCache");
+        }
+        if (config.isTiering()) {
+            throw new IllegalArgumentException("tiering is not supported by CompactBigCache");
+        }
+        if (config.isFifoRing()) {
+            throw new IllegalArgumentException("fifoRing is not supported by CompactBigCache");
+        }
+
+        // clean up old cache data if exists
+        FileUtil.deleteDirectory(new File(this.cacheDir));
+
+        this.storageManager = new StorageManager(this.cacheDir, config, null);
+        this.readWriteLock = new StripedReadWriteLock(config.getConcurrencyLevel());
+        this.segments = newSegments(1 << config.getConcurrencyLevel());
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = newIndex();
+        }
+
+        ses = new ScheduledThreadPoolExecutor(2);
+        ses.scheduleWithFixedDelay(new CacheCleaner<K>(this), config.getPurgeInterval(), config.getPurgeInterval(), TimeUnit.MILLISECONDS);
+        ses.scheduleWithFixedDelay(new CacheMerger<K>(this), config.getMergeInterval(), config.getMergeInterval(), TimeUnit.MILLISECONDS);
+        dirtyRatioThreshold = config.getDirtyRatioThreshold();
+    }
+
+    @Override
+    public void put(K key, byte[] value) throws IOException {
+        this.put(key, value, -1); // -1 means no time to idle(never expires)
+    }
+
+    @Override
+    public void put(K key, byte[] value, long tti) throws IOException {
+        putCounter.incrementAndGet();
+        if (value == null || value.length > BigCache.MAX_VALUE_LENGTH) {
+            throw new IllegalArgumentException("value is null or too long");
+        }
+
+        int hash = hash(key);
+        writeLock(hash);
+        try {
+            doPut(segmentFor(hash), key, hash, value, tti);
+        } finally {
+            writeUnlock(hash);
+        }
+    }
+
+    @Override
+    public void multiPut(Map<K, byte[]> entries) throws IOException {
+        this.multiPut(entries, -1); // -1 means no time to idle(never expires)
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void multiPut(Map<K, byte[]> entries, long tti) throws IOException {
+        putCounter.addAndGet(entries.size());
+        K[] keys = (K[]) new Object[entries.size()];
+        byte[][] values = new byte[entries.size()][];
+        int i = 0;
+        for (Map.Entry<K, byte[]> entry : entries.entrySet()) {
+            keys[i] = entry.getKey();
+            values[i] = entry.getValue();
+            if (values[i] == null || values[i].length > BigCache.MAX_VALUE_LENGTH) {
+                throw new IllegalArgumentException("value is null or too long");
+            }
+            i++;
+        }
+
+        int[] hashes = hashes(keys);
+        long[] order = orderByLock(hashes);
+        for (i = 0; i < order.length; ) {
+            int index = (int) (order[i] >>> 32);
+            ReadWriteLock lock = readWriteLock.getLock(index);
+            lock.writeLock().lock();
+            try {
+                for (; i < order.length && (int) (order[i] >>> 32) == index; i++) {
+                    int k = (int) order[i];
+                    doPut(segments[index], keys[k], hashes[k], values[k], tti);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Puts the value with the specified key, should be called with the write lock of the segment held.
+     */
+    private void doPut(PointerIndex<K> segment, K key, int hash, byte[] value, long tti) throws IOException {
+        int slot = segment.find(key, hash);
+        Pointer newPointer;
+        if (slot < 0) {
+            // create a new one
+            newPointer = storageManager.store(value);
+            slot = segment.insert(key, hash);
+        } else {
+            // update and get the new storage
+            Pointer oldPointer = toPointer(segment, slot);
+            newPointer = storageManager.update(oldPointer, value);
+            usedSize.addAndGet(oldPointer.getLength() * -1);
+        }
+        segment.setAddress(slot, PackedPointer.address(newPointer.getStorageBlock().getIndex(), newPointer.getPosition()));
+        segment.setMeta(slot, PackedPointer.meta(newPointer.getLength(), System.currentTimeMillis() - baseTime));
+        segment.setTimeToIdle(slot, tti);
+        usedSize.addAndGet(newPointer.getLength());
+    }
+
+    @Override
+    public byte[] get(K key) throws IOException {
+        getCounter.incrementAndGet();
+        int hash = hash(key);
+        readLock(hash);
+        try {
+            PointerIndex<K> segment = segmentFor(hash);
+            int slot = segment.find(key, hash);
+            int length = touch(segment, slot);
+            if (length < 0) {
+                return null;
+            }
+            // the storage info can't be changed as long as the read lock is held
+            long address = segment.getAddress(slot);
+            return storageManager.getBlock(PackedPointer.blockIndex(address))
+                    .retrieve(PackedPointer.position(address), length);
+        } finally {
+            readUnlock(hash);
+        }
+    }
+
+    @Override
+    public int get(K key, ByteBuffer dest) throws IOException {
+        getCounter.incrementAndGet();
+        int hash = hash(key);
+        readLock(hash);
+        try {
+            PointerIndex<K> segment = segmentFor(hash);
+            int slot = segment.find(key, hash);
+            int length = touch(segment, slot);
+            if (length < 0) {
+                return -1;
+            }
+            long address = segment.getAddress(slot);
+            storageManager.getBlock(PackedPointer.blockIndex(address))
+                    .retrieve(PackedPointer.position(address), length, dest);
+            return length;
+        } finally {
+            readUnlock(hash);
+        }
+    }
+
+    @Override
+    public ValueLease lease(K key) throws IOException {
+        getCounter.incrementAndGet();
+        int hash = hash(key);
+        readLock(hash);
+        try {
+            PointerIndex<K> segment = segmentFor(hash);
+            int slot = segment.find(key, hash);
+            int length = touch(segment, slot);
+            if (length < 0) {
+                return null;
+            }
+            // the block can't be reused before it's leased, as the entry is still in it
+            long address = segment.getAddress(slot);
+            return ValueLease.lease(storageManager.getBlock(PackedPointer.blockIndex(address)),
+                    PackedPointer.position(address), length);
+        } finally {
+            readUnlock(hash);
+        }
+    }
+
+    /**
+     * Updates the access time of the entry in the slot, should be called with the read lock held.
+     *
+     * @param segment the index
+     * @param slot the slot, -1 if the key is not found
+     * @return the length of the payload, or -1 if the key is not found or expired
+     */
+    private int touch(PointerIndex<K> segment, int slot) {
+        if (slot < 0) {
+            missCounter.incrementAndGet();
+            return -1;
+        }
+        // the access time may be updated by other readers of the same stripe, use the table as the monitor
+        synchronized (segment) {
+            long now = System.currentTimeMillis();
+            if (isExpired(segment, slot, now)) {
+                missCounter.incrementAndGet();
+                return -1;
+            }
+            hitCounter.incrementAndGet();
+            long meta = segment.getMeta(slot);
+            int length = PackedPointer.length(meta);
+            if (now - baseTime > PackedPointer.accessTime(meta)) {
+                segment.setMeta(slot, PackedPointer.meta(length, now - baseTime));
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Gets the values with the specified keys, see {@link ICache#multiGet(Collection)}.
+     *
+     * The entries are looked up segment by segment, and the blocks of the values are leased, so the values are
+     * read after the locks are released, in the order of block and position.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<K, byte[]> multiGet(Collection<K> keys) throws IOException {
+        getCounter.addAndGet(keys.size());
+        K[] keyArray = (K[]) keys.toArray();
+        Map<K, byte[]> values = new HashMap<K, byte[]>(keyArray.length * 2);
+        BatchRead<K> reads = new BatchRead<K>(keyArray.length);
+        try {
+            int[] hashes = hashes(keyArray);
+            long[] order = orderByLock(hashes);
+            for (int i = 0; i < order.length; ) {
+                int index = (int) (order[i] >>> 32);
+                PointerIndex<K> segment = segments[index];
+                ReadWriteLock lock = readWriteLock.getLock(index);
+                lock.readLock().lock();
+                try {
+                    for (; i < order.length && (int) (order[i] >>> 32) == index; i++) {
+                        int k = (int) order[i];
+                        int slot = segment.find(keyArray[k], hashes[k]);
+                        int length = touch(segment, slot);
+                        if (length >= 0) {
+                            long address = segment.getAddress(slot);
+                            reads.add(keyArray[k], PackedPointer.position(address), length,
+                                    storageManager.getBlock(PackedPointer.blockIndex(address)));
+                        }
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+            reads.readAll(values);
+        } finally {
+            reads.release();
+        }
+        return values;
+    }
+
+    @Override
+    public byte[] delete(K key) throws IOException {
+        deleteCounter.incrementAndGet();
+        int hash = hash(key);
+        writeLock(hash);
+        try {
+            return doDelete(segmentFor(hash), key, hash);
+        } finally {
+            writeUnlock(hash);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<K, byte[]> multiDelete(Collection<K> keys) throws IOException {
+        deleteCounter.addAndGet(keys.size());
+        K[] keyArray = (K[]) keys.toArray();
+        Map<K, byte[]> values = new HashMap<K, byte[]>(keyArray.length * 2);
+        int[] hashes = hashes(keyArray);
+        long[] order = orderByLock(hashes);
+        for (int i = 0; i < order.length; ) {
+            int index = (int) (order[i] >>> 32);
+            ReadWriteLock lock = readWriteLock.getLock(index);
+            lock.writeLock().lock();
+            try {
+                for (; i < order.length && (int) (order[i] >>> 32) == index; i++) {
+                    int k = (int) order[i];
+                    byte[] value = doDelete(segments[index], keyArray[k], hashes[k]);
+                    if (value != null) {
+                        values.put(keyArray[k], value);
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Deletes the value with the specified key, should be called with the write lock of the segment held.
+     */
+    private byte[] doDelete(PointerIndex<K> segment, K key, int hash) throws IOException {
+        int slot = segment.find(key, hash);
+        if (slot < 0) {
+            return null;
+        }
+        long address = segment.getAddress(slot);
+        int length = PackedPointer.length(segment.getMeta(slot));
+        byte[] payload = storageManager.getBlock(PackedPointer.blockIndex(address))
+                .remove(PackedPointer.position(address), length);
+        segment.remove(slot);
+        usedSize.addAndGet(payload.length * -1);
+        return payload;
+    }
+
+    @Override
+    public boolean contains(K key) {
+        int hash = hash(key);
+        readLock(hash);
+        try {
+            return segmentFor(hash).find(key, hash) >= 0;
+        } finally {
+            readUnlock(hash);
+        }
+    }
+
+    /**
+     * Clear the cache and the underlying storage.
+     *
+     * Don't do any operation else before clean has finished.
+     */
+    @Override
+    public void clear() {
+        this.storageManager.free();
+        for (int i = 0; i < segments.length; i++) {
+            ReadWriteLock lock = readWriteLock.getLock(i);
+            lock.writeLock().lock();
+            try {
+                segments[i].clear();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        this.usedSize.set(0);
+    }
+
+    @Override
+    public double hitRatio() {
+        return 1.0 * hitCounter.get() / (hitCounter.get() + missCounter.get());
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.clear();
+            this.ses.shutdownNow();
+            for (int i = 0; i < segments.length; i++) {
+                ReadWriteLock lock = readWriteLock.getLock(i);
+                lock.writeLock().lock();
+                try {
+                    segments[i].close();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        } finally {
+            this.storageManager.close();
+        }
+    }
+
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < segments.length; i++) {
+            ReadWriteLock lock = readWriteLock.getLock(i);
+            lock.readLock().lock();
+            try {
+                count += segments[i].size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the latest stats of the cache.
+     *
+     * @return all stats.
+     */
+    public BigCacheStats getStats() {
+        return new BigCacheStats(hitCounter.get(), missCounter.get(), getCounter.get(),
+                putCounter.get(), deleteCounter.get(), purgeCounter.get(), moveCounter.get(), 0,
+                count(), storageManager.getUsed(), storageManager.getDirty(),
+                storageManager.getCapacity(), storageManager.getUsedBlockCount(), storageManager.getFreeBlockCount(),
+                storageManager.getTotalBlockCount());
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <K> PointerIndex<K>[] newSegments(int count) {
+        return new PointerIndex[count];
+    }
+
+    /**
+     * Creates the index of a lock stripe.
+     *
+     * @return the index
+     */
+    protected PointerIndex<K> newIndex() {
+        return new CompactPointerMap<K>();
+    }
+
+    /**
+     * Gets the hash code of a key, which picks the lock stripe and the slot of the key.
+     *
+     * @param key the key
+     * @return the hash code
+     */
+    protected int hash(K key) {
+        return key.hashCode();
+    }
+
+    private PointerIndex<K> segmentFor(int hash) {
+        return segments[Math.abs(hash) & (segments.length - 1)];
+    }
+
+    private int[] hashes(K[] keys) {
+        int[] hashes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            hashes[i] = hash(keys[i]);
+        }
+        return hashes;
+    }
+
+    /**
+     * Orders a batch of keys by their segments, see {@link StripedReadWriteLock#orderByLock(int[])}.
+     *
+     * @param hashes the hash codes of the keys
+     * @return the segment index and the position in the batch of each key, in the order of the segments
+     */
+    private long[] orderByLock(int[] hashes) {
+        int[] ids = new int[hashes.length];
+        for (int i = 0; i < hashes.length; i++) {
+            ids[i] = Math.abs(hashes[i]);
+        }
+        return readWriteLock.orderByLock(ids);
+    }
+
+    private Pointer toPointer(PointerIndex<K> segment, int slot) {
+        long address = segment.getAddress(slot);
+        StorageBlock block = storageManager.getBlock(PackedPointer.blockIndex(address));
+        return new Pointer(PackedPointer.position(address), PackedPointer.length(segment.getMeta(slot)), block);
+    }
+
+    private boolean isExpired(PointerIndex<K> segment, int slot, long now) {
+        long timeToIdle = segment.getTimeToIdle(slot);
+        if (timeToIdle <= 0) return false; // never expire
+        return now - (baseTime + PackedPointer.accessTime(segment.getMeta(slot))) > timeToIdle;
+    }
+
+    private void readLock(int hash) {
+        readWriteLock.readLock(Math.abs(hash));
+    }
+
+    private void readUnlock(int hash) {
+        readWriteLock.readUnlock(Math.abs(hash));
+    }
+
+    private void writeLock(int hash) {
+        readWriteLock.writeLock(Math.abs(hash));
+    }
+
+    private void writeUnlock(int hash) {
+        readWriteLock.writeUnlock(Math.abs(hash));
+    }
+
+    abstract static class CacheDaemonWorker<K> implements Runnable {
+        private WeakReference<CompactBigCache<K>> cacheHolder;
+        private ScheduledExecutorService ses;
+
+        CacheDaemonWorker(CompactBigCache<K> cache) {
+            ses = cache.ses;
+            cacheHolder = new WeakReference<CompactBigCache<K>>(cache);
+        }
+
+        @Override
+        public void run() {
+            CompactBigCache<K> cache = cacheHolder.get();
+            if (cache == null) {
+                // cache is recycled abnormally
+                if (ses != null) {
+                    ses.shutdownNow();
+                    ses = null;
+                }
+                return;
+            }
+            try {
+                // segment by segment, so each write lock is held for a short while
+                for (int i = 0; i < cache.segments.length; i++) {
+                    ReadWriteLock lock = cache.readWriteLock.getLock(i);
+                    lock.writeLock().lock();
+                    try {
+                        process(cache, cache.segments[i]);
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            cache.storageManager.clean();
+        }
+
+        abstract void process(CompactBigCache<K> cache, PointerIndex<K> segment) throws IOException;
+    }
+
+    /**
+     * Clean the expired keys.
+     *
+     * @param <K>
+     */
+    static class CacheCleaner<K> extends CacheDaemonWorker<K> {
+        CacheCleaner(CompactBigCache<K> cache) {
+            super(cache);
+        }
+
+        @Override
+        void process(CompactBigCache<K> cache, PointerIndex<K> segment) throws IOException {
+            long now = System.currentTimeMillis();
+            for (int slot = 0; slot < segment.capacity(); ) {
+                if (segment.isOccupied(slot) && cache.isExpired(segment, slot, now)) {
+                    Pointer oldPointer = cache.toPointer(segment, slot);
+                    cache.usedSize.addAndGet(oldPointer.getLength() * -1);
+                    cache.storageManager.removeLight(oldPointer);
+                    segment.remove(slot);
+                    cache.purgeCounter.incrementAndGet();
+                    continue; // the slot may hold a shifted entry now
+                }
+                slot++;
+            }
+        }
+    }
+
+    /**
+     * Move the entries out of the dirty blocks.
+     *
+     * @param <K>
+     */
+    static class CacheMerger<K> extends CacheDaemonWorker<K> {
+        CacheMerger(CompactBigCache<K> cache) {
+            super(cache);
+        }
+
+        @Override
+        void process(CompactBigCache<K> cache, PointerIndex<K> segment) throws IOException {
+            for (int slot = 0; slot < segment.capacity(); slot++) {
+                if (!segment.isOccupied(slot)) {
+                    continue;
+                }
+                Pointer pointer = cache.toPointer(segment, slot);
+                StorageBlock sb = pointer.getStorageBlock();
+                if (sb.getDirtyRatio() > cache.dirtyRatioThreshold) {
+                    byte[] payload = cache.storageManager.remove(pointer);
+                    Pointer newPointer = cache.storageManager.storeExcluding(payload, sb);
+                    segment.setAddress(slot, PackedPointer.address(newPointer.getStorageBlock().getIndex(),
+                            newPointer.getPosition()));
+                    cache.moveCounter.incrementAndGet();
+                }
+            }
+        }
+    }
+}
@@ -2,6 +2,9 @@ package com.spring2go.bigcache;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * Created on Jul, 2020 by @author bobo
@@ -39,6 +42,27 @@ public interface ICache<K> extends Closeable {
      */
     byte[] get(K key) throws IOException;
 
+    /**
+     * Copies the value with the specified key into the destination, without allocating a byte array.
+     *
+     * @param key the key
+     * @param dest the destination, its position is advanced by the length of the value
+     * @return the length of the value, or -1 if not found
+     * @throws IOException
+     * @throws java.nio.BufferOverflowException if the destination has not enough room, nothing is copied then
+     */
+    int get(K key, ByteBuffer dest) throws IOException;
+
+    /**
+     * Leases a read only view of the value with the specified key, which avoids copying the value for memory
+     * mapped and offheap storage. The lease must be closed once the view is no longer used.
+     *
+     * @param key the key
+     * @return the lease, or null if not found
+     * @throws IOException
+     */
+    ValueLease lease(K key) throws IOException;
+
     /**
      * Delete the value with the specified key.
      *
@@ -48,6 +72,42 @@ public interface ICache<K> extends Closeable {
      */
     byte[] delete(K key) throws IOException;
 
+    /**
+     * Puts the values with their keys, locking each lock stripe once for the whole batch.
+     *
+     * @param entries the values by key
+     * @throws IOException
+     */
+    void multiPut(Map<K, byte[]> entries) throws IOException;
+
+    /**
+     * Puts the values with their keys and time to idle in milliseconds, see {@link #multiPut(Map)}.
+     *
+     * @param entries the values by key
+     * @param tti the time to idle value in milliseconds
+     * @throws IOException
+     */
+    void multiPut(Map<K, byte[]> entries, long tti) throws IOException;
+
+    /**
+     * Gets the values with the specified keys, locking each lock stripe once for the whole batch.
+     * The values are read in the order of their location in storage rather than the order of the keys.
+     *
+     * @param keys the keys
+     * @return the values by key, the keys not found are left out
+     * @throws IOException
+     */
+    Map<K, byte[]> multiGet(Collection<K> keys) throws IOException;
+
+    /**
+     * Deletes the values with the specified keys, locking each lock stripe once for the whole batch.
+     *
+     * @param keys the keys
+     * @return the deleted values by key, the keys not found are left out
+     * @throws IOException
+     */
+    Map<K, byte[]> multiDelete(Collection<K> keys) throws IOException;
+
     /**
      * Check if Cache contains the specified key.
      *
@@ -0,0 +1,39 @@
+package com.spring2go.bigcache;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.spring2go.bigcache.index.OffHeapPointerMap;
+import com.spring2go.bigcache.index.PointerIndex;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * The Class OffHeapBigCache is a {@link CompactBigCache} whose whole index, the key bytes included, lives in
+ * offheap memory (see {@link OffHeapPointerMap}), so the heap usage stays flat however many keys are cached.
+ *
+ * It's meant for byte[] and String keys, though any key supported by
+ * {@link com.spring2go.bigcache.utils.KeySerializer} works. Keys are compared by their serialized bytes,
+ * byte[] keys are compared by content instead of identity.
+ *
+ * @param <K> the key type
+ */
+public class OffHeapBigCache<K> extends CompactBigCache<K> {
+
+    public OffHeapBigCache(String dir, CacheConfig config) throws IOException {
+        super(dir, config);
+    }
+
+    @Override
+    protected PointerIndex<K> newIndex() {
+        return new OffHeapPointerMap<K>();
+    }
+
+    @Override
+    protected int hash(K key) {
+        if (key instanceof byte[]) {
+            return Arrays.hashCode((byte[]) key);
+        }
+        return key.hashCode();
+    }
+}
@@ -0,0 +1,82 @@
+package com.spring2go.bigcache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.spring2go.bigcache.storage.StorageBlock;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * A read only view of a cached value, see {@link ICache#lease(Object)}.
+ *
+ * For memory mapped and offheap storage the view is backed by the storage block directly, and the block is kept
+ * from being reused until the lease is closed. For file storage the value is copied to the heap.
+ *
+ * A lease is meant to be short lived and used by one thread, e.g. to write the value to a socket.
+ * The view may show stale data once the entry is updated or the cache is cleared, and must not be
+ * used after the cache is closed.
+ */
+public class ValueLease implements Closeable {
+    private final ByteBuffer buffer;
+
+    /** The leased block, null if the value is copied or the lease is closed. */
+    private StorageBlock block;
+
+    private ValueLease(ByteBuffer buffer, StorageBlock block) {
+        this.buffer = buffer;
+        this.block = block;
+    }
+
+    /**
+     * Leases a view of the payload in the storage block.
+     *
+     * The caller must make sure the block is not reused meanwhile, e.g. by holding the lock of the key.
+     *
+     * @param block the storage block
+     * @param position the position of the payload
+     * @param length the length of the payload
+     * @return the lease
+     * @throws IOException
+     */
+    static ValueLease lease(StorageBlock block, long position, int length) throws IOException {
+        block.lease();
+        ByteBuffer view = block.slice(position, length);
+        if (view != null) {
+            return new ValueLease(view, block);
+        }
+        block.release();
+        return copyOf(block.retrieve(position, length));
+    }
+
+    /**
+     * Wraps a value copied to the heap.
+     *
+     * @param value the value
+     * @return the lease
+     */
+    static ValueLease copyOf(byte[] value) {
+        return new ValueLease(ByteBuffer.wrap(value).asReadOnlyBuffer(), null);
+    }
+
+    /**
+     * Gets the read only view of the value, from its position to its limit.
+     *
+     * @return the view
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Releases the storage block, the view must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        if (block != null) {
+            block.release();
+            block = null;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.spring2go.bigcache.codec;
+
+import java.io.IOException;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * The codec compressing the values stored by the cache, see {@link com.spring2go.bigcache.CacheConfig#setCodec}.
+ *
+ * The cache keeps track of which values are compressed and of their original lengths, so a codec only deals with
+ * the compressed bytes. Implementations must be thread safe.
+ */
+public interface ICodec {
+
+    /**
+     * Gets the name of the codec, which identifies the compressed format across restarts.
+     *
+     * @return the name
+     */
+    String getName();
+
+    /**
+     * Compresses the source into the destination.
+     *
+     * @param src the source
+     * @param srcOffset the offset of the source
+     * @param srcLength the length of the source
+     * @param dest the destination
+     * @param destOffset the offset of the destination
+     * @param maxDestLength the max length of the compressed bytes
+     * @return the length of the compressed bytes, or -1 if they would be longer than the max length, the
+     * destination may have been written to then
+     */
+    int compress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset, int maxDestLength);
+
+    /**
+     * Decompresses the source into the destination.
+     *
+     * @param src the source
+     * @param srcOffset the offset of the source
+     * @param srcLength the length of the compressed bytes
+     * @param dest the destination
+     * @param destOffset the offset of the destination
+     * @param destLength the length of the original bytes
+     * @throws IOException if the compressed bytes are corrupted
+     */
+    void decompress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset, int destLength)
+            throws IOException;
+}
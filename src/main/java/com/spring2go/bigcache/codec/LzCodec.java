@@ -0,0 +1,198 @@
+package com.spring2go.bigcache.codec;
+
+import java.io.IOException;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * A fast codec of the LZ77 family in the spirit of LZ4, trading compression ratio for speed, with no dependency.
+ *
+ * The compressed bytes are a series of sequences, each one is some literals copied as is followed by a match, which
+ * repeats bytes already seen within the last 64KB. A sequence is laid out as:
+ * <pre>
+ * byte   token, the literal length in the high 4 bits and the match length minus 4 in the low 4 bits
+ * byte*  the rest of the literal length if its 4 bits are all set, 255 per byte until a byte below 255
+ * byte*  the literals
+ * short  the distance back to the match, little endian
+ * byte*  the rest of the match length if its 4 bits are all set, as for the literal length
+ * </pre>
+ * The last sequence only has the literals.
+ *
+ * Matches are looked up in a hash table of the positions of the 4 byte sequences seen, so only the last position of
+ * each hash is remembered. The search skips faster and faster over the data where no match is found, so
+ * incompressible data is given up on quickly.
+ */
+public class LzCodec implements ICodec {
+    /** The name of the codec. */
+    public static final String NAME = "lz";
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_DISTANCE = 0xFFFF;
+    private static final int RUN_MASK = 0xF;
+    private static final int MIN_HASH_LOG = 10;
+    private static final int MAX_HASH_LOG = 14;
+    private static final int HASH_PRIME = 0x9E3779B1;
+
+    /** The step of the search grows by one every 2^SKIP_BITS positions without a match. */
+    private static final int SKIP_BITS = 6;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset, int maxDestLength) {
+        int srcEnd = srcOffset + srcLength;
+        int destEnd = destOffset + maxDestLength;
+        // a smaller table for a short source, as the table is allocated each time
+        int hashLog = Math.max(MIN_HASH_LOG, Math.min(MAX_HASH_LOG, 33 - Integer.numberOfLeadingZeros(srcLength)));
+        int[] table = new int[1 << hashLog];
+
+        int ip = srcOffset;
+        int anchor = srcOffset;
+        int op = destOffset;
+        int misses = 0;
+        while (ip <= srcEnd - MIN_MATCH) {
+            int sequence = readInt(src, ip);
+            int hash = (sequence * HASH_PRIME) >>> (32 - hashLog);
+            int ref = srcOffset + table[hash];
+            table[hash] = ip - srcOffset;
+            if (ref < ip && ip - ref <= MAX_DISTANCE && readInt(src, ref) == sequence) {
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < srcEnd && src[ref + matchLength] == src[ip + matchLength]) {
+                    matchLength++;
+                }
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dest, op, destEnd);
+                if (op < 0) {
+                    return -1;
+                }
+                ip += matchLength;
+                anchor = ip;
+                misses = 0;
+            } else {
+                ip += 1 + (misses++ >>> SKIP_BITS);
+            }
+        }
+        op = writeSequence(src, anchor, srcEnd - anchor, 0, 0, dest, op, destEnd);
+        return op < 0 ? -1 : op - destOffset;
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset, int destLength)
+            throws IOException {
+        int ip = srcOffset;
+        int srcEnd = srcOffset + srcLength;
+        int op = destOffset;
+        int destEnd = destOffset + destLength;
+        try {
+            while (ip < srcEnd) {
+                int token = src[ip++] & 0xFF;
+
+                int literalLength = token >>> 4;
+                if (literalLength == RUN_MASK) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literalLength += b;
+                    } while (b == 0xFF);
+                }
+                if (literalLength > srcEnd - ip || literalLength > destEnd - op) {
+                    throw new IOException("corrupted compressed bytes, literals out of bounds");
+                }
+                System.arraycopy(src, ip, dest, op, literalLength);
+                ip += literalLength;
+                op += literalLength;
+                if (ip == srcEnd) {
+                    break; // the last sequence
+                }
+
+                int distance = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+                ip += 2;
+                int matchLength = token & RUN_MASK;
+                if (matchLength == RUN_MASK) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 0xFF);
+                }
+                matchLength += MIN_MATCH;
+                int ref = op - distance;
+                if (distance == 0 || ref < destOffset || matchLength > destEnd - op) {
+                    throw new IOException("corrupted compressed bytes, match out of bounds");
+                }
+                if (distance >= matchLength) {
+                    System.arraycopy(dest, ref, dest, op, matchLength);
+                    op += matchLength;
+                } else { // overlapping, the bytes copied are repeated
+                    for (int end = op + matchLength; op < end; ) {
+                        dest[op++] = dest[ref++];
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("corrupted compressed bytes, truncated", e);
+        }
+        if (op != destEnd) {
+            throw new IOException("corrupted compressed bytes, " + (op - destOffset) + " bytes decompressed instead of "
+                    + destLength);
+        }
+    }
+
+    /**
+     * Writes a sequence.
+     *
+     * @param src the source
+     * @param literalOffset the offset of the literals
+     * @param literalLength the length of the literals
+     * @param distance the distance back to the match
+     * @param matchLength the length of the match, 0 for the last sequence
+     * @param dest the destination
+     * @param op the offset to write the sequence to
+     * @param destEnd the end of the destination
+     * @return the offset after the sequence, or -1 if the sequence doesn't fit
+     */
+    private static int writeSequence(byte[] src, int literalOffset, int literalLength, int distance, int matchLength,
+                                     byte[] dest, int op, int destEnd) {
+        int matchCode = matchLength - MIN_MATCH;
+        int length = 1 + literalLength / 0xFF + 1 + literalLength + (matchLength > 0 ? 2 + matchCode / 0xFF + 1 : 0);
+        if (length > destEnd - op) {
+            return -1;
+        }
+        int token = Math.min(literalLength, RUN_MASK) << 4;
+        if (matchLength > 0) {
+            token |= Math.min(matchCode, RUN_MASK);
+        }
+        dest[op++] = (byte) token;
+        op = writeLength(literalLength, dest, op);
+        System.arraycopy(src, literalOffset, dest, op, literalLength);
+        op += literalLength;
+        if (matchLength > 0) {
+            dest[op++] = (byte) distance;
+            dest[op++] = (byte) (distance >>> 8);
+            op = writeLength(matchCode, dest, op);
+        }
+        return op;
+    }
+
+    /**
+     * Writes the rest of a length which doesn't fit in its 4 bits of the token.
+     */
+    private static int writeLength(int length, byte[] dest, int op) {
+        if (length >= RUN_MASK) {
+            length -= RUN_MASK;
+            while (length >= 0xFF) {
+                dest[op++] = (byte) 0xFF;
+                length -= 0xFF;
+            }
+            dest[op++] = (byte) length;
+        }
+        return op;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8 | (bytes[offset + 2] & 0xFF) << 16
+                | (bytes[offset + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,240 @@
+package com.spring2go.bigcache.index;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * An open addressing hash map from keys to packed pointers (see {@link PackedPointer}), which keeps all
+ * the entries in a few primitive arrays instead of a map node, a wrapper and a pointer object per entry.
+ *
+ * Collisions are resolved by linear probing, and removals shift the following entries back, so there is no
+ * tombstone. Entries are accessed by slot, a slot is only valid until the next insert or removal.
+ *
+ * This class is not thread safe, the owner should guard it with a read write lock, lookups and updates of the
+ * access time can be done under the read lock.
+ *
+ * @param <K> the key type
+ */
+public class CompactPointerMap<K> implements PointerIndex<K> {
+    /** The default initial capacity. */
+    public static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+    /** The max ratio of used slots before growing. */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private Object[] keys;
+    private int[] hashes;
+    private long[] addresses;
+    private long[] metas;
+    private int[] timeToIdles;
+
+    private int size;
+    private int threshold;
+    private int mask;
+
+    public CompactPointerMap() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    public CompactPointerMap(int initialCapacity) {
+        int capacity = DEFAULT_INITIAL_CAPACITY;
+        while (capacity < initialCapacity) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new Object[capacity];
+        hashes = new int[capacity];
+        addresses = new long[capacity];
+        metas = new long[capacity];
+        timeToIdles = new int[capacity];
+        mask = capacity - 1;
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * The home slot of a hash, the hash is mixed as its low bits may have been used to pick the lock.
+     */
+    private int home(int hash) {
+        int h = hash * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Finds the slot of the key.
+     *
+     * @param key the key
+     * @param hash the hash code of the key
+     * @return the slot, or -1 if the key is not found
+     */
+    @Override
+    public int find(K key, int hash) {
+        for (int slot = home(hash); ; slot = (slot + 1) & mask) {
+            Object k = keys[slot];
+            if (k == null) {
+                return -1;
+            }
+            if (hashes[slot] == hash && k.equals(key)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Finds the slot of the key, or takes a new slot for it.
+     *
+     * @param key the key
+     * @param hash the hash code of the key
+     * @return the slot
+     */
+    @Override
+    public int insert(K key, int hash) {
+        int slot = find(key, hash);
+        if (slot >= 0) {
+            return slot;
+        }
+        if (size >= threshold) {
+            resize(keys.length << 1);
+        }
+        slot = home(hash);
+        while (keys[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        hashes[slot] = hash;
+        size++;
+        return slot;
+    }
+
+    /**
+     * Removes the entry in the slot, the following entries of the probe sequence are shifted back,
+     * so the slot may hold another entry afterwards.
+     *
+     * @param slot the slot
+     */
+    @Override
+    public void remove(int slot) {
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (keys[next] == null) {
+                break;
+            }
+            int home = home(hashes[next]);
+            // leave the entry if its home is cyclically in (hole, next]
+            boolean stay = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!stay) {
+                move(next, hole);
+                hole = next;
+            }
+        }
+        keys[hole] = null;
+        addresses[hole] = 0;
+        metas[hole] = 0;
+        timeToIdles[hole] = 0;
+        size--;
+    }
+
+    private void move(int from, int to) {
+        keys[to] = keys[from];
+        hashes[to] = hashes[from];
+        addresses[to] = addresses[from];
+        metas[to] = metas[from];
+        timeToIdles[to] = timeToIdles[from];
+    }
+
+    private void resize(int capacity) {
+        Object[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        long[] oldAddresses = addresses;
+        long[] oldMetas = metas;
+        int[] oldTimeToIdles = timeToIdles;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null) {
+                continue;
+            }
+            int slot = home(oldHashes[i]);
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            hashes[slot] = oldHashes[i];
+            addresses[slot] = oldAddresses[i];
+            metas[slot] = oldMetas[i];
+            timeToIdles[slot] = oldTimeToIdles[i];
+        }
+    }
+
+    /**
+     * Removes all the entries and shrinks to the initial capacity.
+     */
+    @Override
+    public void clear() {
+        allocate(DEFAULT_INITIAL_CAPACITY);
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of slots, the slots in [0, capacity) can be iterated with {@link #isOccupied(int)}.
+     *
+     * @return the number of slots
+     */
+    @Override
+    public int capacity() {
+        return keys.length;
+    }
+
+    @Override
+    public boolean isOccupied(int slot) {
+        return keys[slot] != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public K getKey(int slot) {
+        return (K) keys[slot];
+    }
+
+    @Override
+    public long getAddress(int slot) {
+        return addresses[slot];
+    }
+
+    @Override
+    public void setAddress(int slot, long address) {
+        addresses[slot] = address;
+    }
+
+    @Override
+    public long getMeta(int slot) {
+        return metas[slot];
+    }
+
+    @Override
+    public void setMeta(int slot, long meta) {
+        metas[slot] = meta;
+    }
+
+    @Override
+    public long getTimeToIdle(int slot) {
+        return PackedPointer.decodeTimeToIdle(timeToIdles[slot]);
+    }
+
+    @Override
+    public void setTimeToIdle(int slot, long timeToIdle) {
+        timeToIdles[slot] = PackedPointer.encodeTimeToIdle(timeToIdle);
+    }
+
+    @Override
+    public void close() {
+        clear();
+    }
+}
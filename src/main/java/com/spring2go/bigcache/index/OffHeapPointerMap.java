@@ -0,0 +1,305 @@
+package com.spring2go.bigcache.index;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+
+import com.spring2go.bigcache.utils.KeySerializer;
+
+import sun.misc.Unsafe;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * A {@link PointerIndex} which keeps both the slots and the key bytes in offheap memory allocated by
+ * {@link Unsafe}, so the heap usage doesn't grow with the number of keys.
+ *
+ * Keys are serialized by {@link KeySerializer} and compared by bytes, so the hash code of a key must be
+ * derived from its content. Each slot takes 32 bytes:
+ * <pre>
+ *  0  long address of the key bytes, 0 means the slot is free
+ *  8  long packed address
+ * 16  long packed meta
+ * 24  int  hash code of the key
+ * 28  int  encoded time to idle
+ * </pre>
+ * The key bytes are kept in their own allocation as an int length followed by the bytes.
+ *
+ * Collisions are resolved by linear probing, and removals shift the following entries back.
+ * The memory is released by {@link #close()}, the map can't be used afterwards.
+ *
+ * @param <K> the key type
+ */
+public class OffHeapPointerMap<K> implements PointerIndex<K> {
+    /** The default initial capacity. */
+    public static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+    /** The max ratio of used slots before growing. */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private static final int SLOT_SIZE = 32;
+    private static final int KEY_OFFSET = 0;
+    private static final int ADDRESS_OFFSET = 8;
+    private static final int META_OFFSET = 16;
+    private static final int HASH_OFFSET = 24;
+    private static final int TIME_TO_IDLE_OFFSET = 28;
+
+    private static final Unsafe UNSAFE = getUnsafe();
+    private static final long BYTE_ARRAY_OFFSET = (long) UNSAFE.arrayBaseOffset(byte[].class);
+
+    /** The base address of the slots, 0 once closed. */
+    private long table;
+
+    private int capacity;
+    private int size;
+    private int threshold;
+    private int mask;
+
+    private static Unsafe getUnsafe() {
+        try {
+            Field unsafeField = Unsafe.class.getDeclaredField("theUnsafe");
+            unsafeField.setAccessible(true);
+            return (sun.misc.Unsafe) unsafeField.get(null);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public OffHeapPointerMap() {
+        allocate(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        long bytes = (long) capacity * SLOT_SIZE;
+        table = UNSAFE.allocateMemory(bytes);
+        UNSAFE.setMemory(table, bytes, (byte) 0);
+        this.capacity = capacity;
+        mask = capacity - 1;
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private long slotAddress(int slot) {
+        return table + (long) slot * SLOT_SIZE;
+    }
+
+    private long keyAddress(int slot) {
+        return UNSAFE.getLong(slotAddress(slot) + KEY_OFFSET);
+    }
+
+    private int hash(int slot) {
+        return UNSAFE.getInt(slotAddress(slot) + HASH_OFFSET);
+    }
+
+    /**
+     * The home slot of a hash, the hash is mixed as its low bits may have been used to pick the lock.
+     */
+    private int home(int hash) {
+        int h = hash * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static byte[] serialize(Object key) {
+        try {
+            return KeySerializer.serialize(key);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("fail to serialize key " + key, e);
+        }
+    }
+
+    @Override
+    public int find(K key, int hash) {
+        if (table == 0) {
+            return -1; // closed
+        }
+        return find(serialize(key), hash);
+    }
+
+    private int find(byte[] keyBytes, int hash) {
+        for (int slot = home(hash); ; slot = (slot + 1) & mask) {
+            long keyAddress = keyAddress(slot);
+            if (keyAddress == 0) {
+                return -1;
+            }
+            if (hash(slot) == hash && keyEquals(keyAddress, keyBytes)) {
+                return slot;
+            }
+        }
+    }
+
+    private static boolean keyEquals(long keyAddress, byte[] keyBytes) {
+        if (UNSAFE.getInt(keyAddress) != keyBytes.length) {
+            return false;
+        }
+        long base = keyAddress + 4;
+        int i = 0;
+        for (; i + 8 <= keyBytes.length; i += 8) {
+            if (UNSAFE.getLong(base + i) != UNSAFE.getLong(keyBytes, BYTE_ARRAY_OFFSET + i)) {
+                return false;
+            }
+        }
+        for (; i < keyBytes.length; i++) {
+            if (UNSAFE.getByte(base + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int insert(K key, int hash) {
+        if (table == 0) {
+            throw new IllegalStateException("the map has been closed");
+        }
+        byte[] keyBytes = serialize(key);
+        int slot = find(keyBytes, hash);
+        if (slot >= 0) {
+            return slot;
+        }
+        if (size >= threshold) {
+            resize(capacity << 1);
+        }
+        slot = home(hash);
+        while (keyAddress(slot) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        long keyAddress = UNSAFE.allocateMemory(4 + keyBytes.length);
+        UNSAFE.putInt(keyAddress, keyBytes.length);
+        UNSAFE.copyMemory(keyBytes, BYTE_ARRAY_OFFSET, null, keyAddress + 4, keyBytes.length);
+        UNSAFE.putLong(slotAddress(slot) + KEY_OFFSET, keyAddress);
+        UNSAFE.putInt(slotAddress(slot) + HASH_OFFSET, hash);
+        size++;
+        return slot;
+    }
+
+    @Override
+    public void remove(int slot) {
+        UNSAFE.freeMemory(keyAddress(slot));
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (keyAddress(next) == 0) {
+                break;
+            }
+            int home = home(hash(next));
+            // leave the entry if its home is cyclically in (hole, next]
+            boolean stay = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!stay) {
+                UNSAFE.copyMemory(slotAddress(next), slotAddress(hole), SLOT_SIZE);
+                hole = next;
+            }
+        }
+        UNSAFE.setMemory(slotAddress(hole), SLOT_SIZE, (byte) 0);
+        size--;
+    }
+
+    private void resize(int newCapacity) {
+        long oldTable = table;
+        int oldCapacity = capacity;
+        allocate(newCapacity);
+        for (int i = 0; i < oldCapacity; i++) {
+            long oldSlot = oldTable + (long) i * SLOT_SIZE;
+            if (UNSAFE.getLong(oldSlot + KEY_OFFSET) == 0) {
+                continue;
+            }
+            int slot = home(UNSAFE.getInt(oldSlot + HASH_OFFSET));
+            while (keyAddress(slot) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            UNSAFE.copyMemory(oldSlot, slotAddress(slot), SLOT_SIZE);
+        }
+        UNSAFE.freeMemory(oldTable);
+    }
+
+    private void freeKeys() {
+        for (int slot = 0; slot < capacity; slot++) {
+            long keyAddress = keyAddress(slot);
+            if (keyAddress != 0) {
+                UNSAFE.freeMemory(keyAddress);
+            }
+        }
+    }
+
+    /**
+     * Removes all the entries and shrinks to the initial capacity.
+     */
+    @Override
+    public void clear() {
+        if (table == 0) {
+            return;
+        }
+        freeKeys();
+        UNSAFE.freeMemory(table);
+        allocate(DEFAULT_INITIAL_CAPACITY);
+        size = 0;
+    }
+
+    @Override
+    public void close() {
+        if (table == 0) {
+            return;
+        }
+        freeKeys();
+        UNSAFE.freeMemory(table);
+        table = 0;
+        capacity = 0;
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public boolean isOccupied(int slot) {
+        return keyAddress(slot) != 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public K getKey(int slot) {
+        long keyAddress = keyAddress(slot);
+        byte[] keyBytes = new byte[UNSAFE.getInt(keyAddress)];
+        UNSAFE.copyMemory(null, keyAddress + 4, keyBytes, BYTE_ARRAY_OFFSET, keyBytes.length);
+        try {
+            return (K) KeySerializer.deserialize(keyBytes);
+        } catch (IOException e) {
+            throw new IllegalStateException("fail to deserialize key", e);
+        }
+    }
+
+    @Override
+    public long getAddress(int slot) {
+        return UNSAFE.getLong(slotAddress(slot) + ADDRESS_OFFSET);
+    }
+
+    @Override
+    public void setAddress(int slot, long address) {
+        UNSAFE.putLong(slotAddress(slot) + ADDRESS_OFFSET, address);
+    }
+
+    @Override
+    public long getMeta(int slot) {
+        return UNSAFE.getLong(slotAddress(slot) + META_OFFSET);
+    }
+
+    @Override
+    public void setMeta(int slot, long meta) {
+        UNSAFE.putLong(slotAddress(slot) + META_OFFSET, meta);
+    }
+
+    @Override
+    public long getTimeToIdle(int slot) {
+        return PackedPointer.decodeTimeToIdle(UNSAFE.getInt(slotAddress(slot) + TIME_TO_IDLE_OFFSET));
+    }
+
+    @Override
+    public void setTimeToIdle(int slot, long timeToIdle) {
+        UNSAFE.putInt(slotAddress(slot) + TIME_TO_IDLE_OFFSET, PackedPointer.encodeTimeToIdle(timeToIdle));
+    }
+}
@@ -0,0 +1,75 @@
+package com.spring2go.bigcache.index;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * Packs the storage info of a cache entry into primitive longs, so that the index can keep it in arrays
+ * or offheap memory instead of a {@link com.spring2go.bigcache.storage.Pointer} object per entry.
+ *
+ * An address is the block index (high 24 bits) plus the position within the block (low 40 bits), which covers
+ * blocks of up to 1TB.
+ * A meta is the length of the payload (high 24 bits) plus the last access time (low 40 bits) in milliseconds
+ * since the base time of the index, which covers more than 30 years.
+ */
+public class PackedPointer {
+    /** The max length of a payload which can be packed. */
+    public static final int MAX_LENGTH = (1 << 24) - 1;
+
+    private static final int POSITION_BITS = 40;
+    private static final long POSITION_MASK = (1L << POSITION_BITS) - 1;
+
+    private static final int TIME_BITS = 40;
+    private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+
+    public static long address(int blockIndex, long position) {
+        return ((long) blockIndex << POSITION_BITS) | (position & POSITION_MASK);
+    }
+
+    public static int blockIndex(long address) {
+        return (int) (address >>> POSITION_BITS);
+    }
+
+    public static long position(long address) {
+        return address & POSITION_MASK;
+    }
+
+    /**
+     * Packs the length and the access time.
+     *
+     * @param length the payload length, no more than {@link #MAX_LENGTH}
+     * @param accessTime the access time relative to the base time of the index
+     * @return the meta
+     */
+    public static long meta(int length, long accessTime) {
+        return ((long) length << TIME_BITS) | (accessTime & TIME_MASK);
+    }
+
+    public static int length(long meta) {
+        return (int) (meta >>> TIME_BITS);
+    }
+
+    public static long accessTime(long meta) {
+        return meta & TIME_MASK;
+    }
+
+    /**
+     * Encodes the time to idle into an int, milliseconds are kept as is, and longer ones are kept in
+     * negative seconds.
+     *
+     * @param timeToIdle the time to idle in milliseconds, non positive means never expire
+     * @return the encoded time to idle
+     */
+    public static int encodeTimeToIdle(long timeToIdle) {
+        if (timeToIdle <= 0) {
+            return 0;
+        }
+        if (timeToIdle <= Integer.MAX_VALUE) {
+            return (int) timeToIdle;
+        }
+        return (int) -Math.min(Integer.MAX_VALUE, (timeToIdle + 999) / 1000);
+    }
+
+    public static long decodeTimeToIdle(int encoded) {
+        return encoded >= 0 ? encoded : -1000L * encoded;
+    }
+}
@@ -0,0 +1,70 @@
+package com.spring2go.bigcache.index;
+
+import java.io.Closeable;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * An index from keys to packed pointers (see {@link PackedPointer}), whose entries are accessed by slot.
+ *
+ * A slot is only valid until the next insert or removal. Implementations are not thread safe, the owner
+ * should guard them with a read write lock.
+ *
+ * @param <K> the key type
+ */
+public interface PointerIndex<K> extends Closeable {
+    /**
+     * Finds the slot of the key.
+     *
+     * @param key the key
+     * @param hash the hash code of the key
+     * @return the slot, or -1 if the key is not found
+     */
+    int find(K key, int hash);
+
+    /**
+     * Finds the slot of the key, or takes a new slot for it.
+     *
+     * @param key the key
+     * @param hash the hash code of the key
+     * @return the slot
+     */
+    int insert(K key, int hash);
+
+    /**
+     * Removes the entry in the slot, the slot may hold another entry afterwards.
+     *
+     * @param slot the slot
+     */
+    void remove(int slot);
+
+    /**
+     * Removes all the entries.
+     */
+    void clear();
+
+    int size();
+
+    /**
+     * Gets the number of slots, the slots in [0, capacity) can be iterated with {@link #isOccupied(int)}.
+     *
+     * @return the number of slots
+     */
+    int capacity();
+
+    boolean isOccupied(int slot);
+
+    K getKey(int slot);
+
+    long getAddress(int slot);
+
+    void setAddress(int slot, long address);
+
+    long getMeta(int slot);
+
+    void setMeta(int slot, long meta);
+
+    long getTimeToIdle(int slot);
+
+    void setTimeToIdle(int slot, long timeToIdle);
+}
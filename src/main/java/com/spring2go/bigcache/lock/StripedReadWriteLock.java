@@ -1,5 +1,6 @@
 package com.spring2go.bigcache.lock;
 
+import java.util.Arrays;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -104,4 +105,20 @@ public class StripedReadWriteLock {
         // to determine the lock.
         return locks[id & (locks.length - 1)];
     }
-}
\ No newline at end of file
+
+    /**
+     * Orders a batch of ids by their locks, so the batch can take each lock once.
+     *
+     * @param ids values, from which locks are derived
+     * @return one entry per id in the order of the locks, with the index of the lock in the high 32 bits
+     * and the position of the id in the batch in the low 32 bits
+     */
+    public long[] orderByLock(int[] ids) {
+        long[] order = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            order[i] = ((long) (ids[i] & (locks.length - 1)) << 32) | i;
+        }
+        Arrays.sort(order);
+        return order;
+    }
+}
@@ -0,0 +1,122 @@
+package com.spring2go.bigcache.lock;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * The StripedStampedLock is a lock holder like {@link StripedReadWriteLock}, but made of
+ * {@link java.util.concurrent.locks.StampedLock}s, so besides read and write locks it offers optimistic reads,
+ * which write nothing to the lock and so don't bounce its cache line between readers.
+ *
+ * An optimistic read takes a stamp by {@link #tryOptimisticRead(int)}, reads the guarded state and then checks
+ * by {@link #validate(int, long)} that no write lock has been taken meanwhile, otherwise what was read may be
+ * inconsistent and must be discarded.
+ *
+ * Unlike {@link StripedReadWriteLock}, the locks are not reentrant.
+ */
+public class StripedStampedLock {
+
+    private final StampedLock[] locks;
+
+    /**
+     * Creates array of locks, size of array may be any from set {2^1, 2^2, ..., 2^11}
+     *
+     * @param storagePower size of array will be equal to 2^storagePower
+     */
+    public StripedStampedLock(int storagePower) {
+        if (!(storagePower >= 1 && storagePower <= 11)) {
+            throw new IllegalArgumentException("storage power must be in {1..11}");
+        }
+
+        locks = new StampedLock[1 << storagePower];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new StampedLock();
+        }
+    }
+
+    /**
+     * Starts an optimistic read of the state guarded by the lock associated with given id.
+     *
+     * @param id value, from which lock is derived
+     * @return the stamp, or 0 if the lock is write locked
+     */
+    public long tryOptimisticRead(int id) {
+        return locks[id & (locks.length - 1)].tryOptimisticRead();
+    }
+
+    /**
+     * Checks that the lock associated with given id has not been write locked since the stamp was taken.
+     *
+     * @param id value, from which lock is derived
+     * @param stamp the stamp taken by {@link #tryOptimisticRead(int)}
+     * @return true if the state read since is consistent
+     */
+    public boolean validate(int id, long stamp) {
+        return locks[id & (locks.length - 1)].validate(stamp);
+    }
+
+    /**
+     * Locks lock associated with given id.
+     *
+     * @param id value, from which lock is derived
+     */
+    public void readLock(int id) {
+        getLock(id).readLock().lock();
+    }
+
+    /**
+     * Unlocks lock associated with given id.
+     *
+     * @param id value, from which lock is derived
+     */
+    public void readUnlock(int id) {
+        getLock(id).readLock().unlock();
+    }
+
+    /**
+     * Locks lock associated with given id.
+     *
+     * @param id value, from which lock is derived
+     */
+    public void writeLock(int id) {
+        getLock(id).writeLock().lock();
+    }
+
+    /**
+     * Unlocks lock associated with given id.
+     *
+     * @param id value, from which lock is derived
+     */
+    public void writeUnlock(int id) {
+        getLock(id).writeLock().unlock();
+    }
+
+    /**
+     * Finds the lock associated with the id, as a read write lock.
+     *
+     * @param id value, from which lock is derived
+     * @return lock which is associated with the id, the same view is returned for the same lock
+     */
+    public ReadWriteLock getLock(int id) {
+        return locks[id & (locks.length - 1)].asReadWriteLock();
+    }
+
+    /**
+     * Orders a batch of ids by their locks, see {@link StripedReadWriteLock#orderByLock(int[])}.
+     *
+     * @param ids values, from which locks are derived
+     * @return one entry per id in the order of the locks, with the index of the lock in the high 32 bits
+     * and the position of the id in the batch in the low 32 bits
+     */
+    public long[] orderByLock(int[] ids) {
+        long[] order = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            order[i] = ((long) (ids[i] & (locks.length - 1)) << 32) | i;
+        }
+        Arrays.sort(order);
+        return order;
+    }
+}
@@ -0,0 +1,177 @@
+package com.spring2go.bigcache.storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * The file storage on an {@link AsynchronousFileChannel}, so reads can be issued without waiting for the disk.
+ *
+ * The async reads are completed by the threads of the default channel group, which run the continuations of the
+ * returned futures as well, so the caller can have many reads outstanding. The other operations wait for their
+ * completion like {@link FileChannelStorage}.
+ */
+public class AsyncFileChannelStorage implements IStorage {
+    /** The size of the heap buffer the bytes are copied through from and to other channels. */
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    private AsynchronousFileChannel fileChannel;
+
+    public AsyncFileChannelStorage(String dir, int index, long capacity) throws IOException {
+        this(new File(dir + index + "-" + System.currentTimeMillis() + DATA_FILE_SUFFIX), capacity);
+    }
+
+    /**
+     * Opens the storage on the given file, the existing content of the file is kept.
+     *
+     * @param file the backing file
+     * @param capacity the capacity
+     * @throws IOException
+     */
+    public AsyncFileChannelStorage(File file, long capacity) throws IOException {
+        File dirFile = file.getParentFile();
+        if (dirFile != null && !dirFile.exists()) { dirFile.mkdirs(); }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(capacity);
+        } finally {
+            raf.close();
+        }
+        fileChannel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public void get(long position, byte[] dest) throws IOException {
+        get(position, ByteBuffer.wrap(dest));
+    }
+
+    @Override
+    public void get(long position, ByteBuffer dest) throws IOException {
+        await(getAsync(position, dest));
+    }
+
+    @Override
+    public CompletableFuture<Void> getAsync(long position, final ByteBuffer dest) {
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        fileChannel.read(dest, position, position, new CompletionHandler<Integer, Long>() {
+            @Override
+            public void completed(Integer read, Long filePosition) {
+                if (read < 0) {
+                    future.completeExceptionally(new EOFException("reading beyond the end of the storage"));
+                } else if (dest.hasRemaining()) { // a short read, carry on from where it stopped
+                    long nextPosition = filePosition + read;
+                    fileChannel.read(dest, nextPosition, nextPosition, this);
+                } else {
+                    future.complete(null);
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Long filePosition) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public ByteBuffer slice(long position, int length) {
+        return null; // the data is only in the file
+    }
+
+    @Override
+    public void get(long position, int length, WritableByteChannel dest) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.min(length, TRANSFER_BUFFER_SIZE));
+        for (int transferred = 0; transferred < length; ) {
+            buffer.clear();
+            buffer.limit(Math.min(buffer.capacity(), length - transferred));
+            get(position + transferred, buffer);
+            buffer.flip();
+            transferred += buffer.remaining();
+            while (buffer.hasRemaining()) {
+                dest.write(buffer);
+            }
+        }
+    }
+
+    @Override
+    public void put(long position, byte[] source) throws IOException {
+        put(position, ByteBuffer.wrap(source));
+    }
+
+    @Override
+    public void put(long position, ReadableByteChannel source, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.min(length, TRANSFER_BUFFER_SIZE));
+        for (int transferred = 0; transferred < length; ) {
+            buffer.clear();
+            buffer.limit(Math.min(buffer.capacity(), length - transferred));
+            while (buffer.hasRemaining()) {
+                if (source.read(buffer) < 0) {
+                    throw new EOFException("the source ends before " + length + " bytes are read");
+                }
+            }
+            buffer.flip();
+            put(position + transferred, buffer);
+            transferred += buffer.limit();
+        }
+    }
+
+    private void put(long position, ByteBuffer source) throws IOException {
+        long filePosition = position;
+        while (source.hasRemaining()) {
+            filePosition += await(fileChannel.write(source, filePosition));
+        }
+    }
+
+    /**
+     * Waits for the operation on the channel to complete.
+     *
+     * @param future the future of the operation
+     * @return the result of the operation
+     * @throws IOException if the operation failed or the wait was interrupted
+     */
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the storage");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // nothing buffered
+    }
+
+    @Override
+    public void free() {
+        // nothing to do here
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.fileChannel != null) {
+            this.fileChannel.close();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.spring2go.bigcache.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+
+import com.spring2go.bigcache.CacheConfig.StorageMode;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * The description of a storage block kept in a file, which is used to reopen the block
+ * after a restart or a crash.
+ */
+public class BlockInfo {
+    /** The block index. */
+    private final int index;
+
+    /** The storage mode of the block when it was written. */
+    private final StorageMode storageMode;
+
+    /** The file holding the data of the block. */
+    private final File file;
+
+    /** The offset within the storage block. */
+    private final long offset;
+
+    /** The used storage. */
+    private final long used;
+
+    /** The dirty storage. */
+    private final long dirty;
+
+    /** The generation of the block. */
+    private final int generation;
+
+    public BlockInfo(int index, StorageMode storageMode, File file, long offset, long used, long dirty, int generation) {
+        this.index = index;
+        this.storageMode = storageMode;
+        this.file = file;
+        this.offset = offset;
+        this.used = used;
+        this.dirty = dirty;
+        this.generation = generation;
+    }
+
+    /**
+     * Writes the block info.
+     *
+     * @param out the output
+     * @throws IOException
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(index);
+        out.writeByte(storageMode.ordinal());
+        out.writeUTF(file.getAbsolutePath());
+        out.writeLong(offset);
+        out.writeLong(used);
+        out.writeLong(dirty);
+        out.writeInt(generation);
+    }
+
+    /**
+     * Reads a block info written by {@link #write(DataOutput)}.
+     *
+     * @param in the input
+     * @return the block info
+     * @throws IOException
+     */
+    public static BlockInfo read(DataInput in) throws IOException {
+        int index = in.readInt();
+        StorageMode storageMode = StorageMode.values()[in.readByte()];
+        File file = new File(in.readUTF());
+        long offset = in.readLong();
+        long used = in.readLong();
+        long dirty = in.readLong();
+        int generation = in.readInt();
+        return new BlockInfo(index, storageMode, file, offset, used, dirty, generation);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getUsed() {
+        return used;
+    }
+
+    public long getDirty() {
+        return dirty;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+}
@@ -1,10 +1,14 @@
 package com.spring2go.bigcache.storage;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created on Jul, 2020 by @author bobo
@@ -13,25 +17,96 @@ public class FileChannelStorage implements IStorage {
     private FileChannel fileChannel;
     private RandomAccessFile raf;
 
-    public FileChannelStorage(String dir, int index, int capacity) throws IOException {
-        File dirFile = new File(dir);
-        if (!dirFile.exists()) { dirFile.mkdirs(); }
-        String fullFileName = dir + index + "-" + System.currentTimeMillis() + DATA_FILE_SUFFIX;
-        raf = new RandomAccessFile(fullFileName, "rw");
+    public FileChannelStorage(String dir, int index, long capacity) throws IOException {
+        this(new File(dir + index + "-" + System.currentTimeMillis() + DATA_FILE_SUFFIX), capacity);
+    }
+
+    /**
+     * Opens the storage on the given file, the existing content of the file is kept.
+     *
+     * @param file the backing file
+     * @param capacity the capacity
+     * @throws IOException
+     */
+    public FileChannelStorage(File file, long capacity) throws IOException {
+        File dirFile = file.getParentFile();
+        if (dirFile != null && !dirFile.exists()) { dirFile.mkdirs(); }
+        raf = new RandomAccessFile(file, "rw");
         raf.setLength(capacity);
         fileChannel = raf.getChannel();
     }
 
     @Override
-    public void get(int position, byte[] dest) throws IOException {
+    public void get(long position, byte[] dest) throws IOException {
         fileChannel.read(ByteBuffer.wrap(dest), position);
     }
 
     @Override
-    public void put(int position, byte[] source) throws IOException {
+    public void get(long position, ByteBuffer dest) throws IOException {
+        long filePosition = position;
+        while (dest.hasRemaining()) {
+            int read = fileChannel.read(dest, filePosition);
+            if (read < 0) {
+                throw new EOFException("reading beyond the end of the storage");
+            }
+            filePosition += read;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> getAsync(long position, ByteBuffer dest) throws IOException {
+        get(position, dest); // read on the caller thread
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public ByteBuffer slice(long position, int length) {
+        return null; // the data is only in the file
+    }
+
+    @Override
+    public void put(long position, byte[] source) throws IOException {
         fileChannel.write(ByteBuffer.wrap(source), position);
     }
 
+    /**
+     * Puts the remaining bytes of the source to the specified location of the Storage.
+     *
+     * @param position the position
+     * @param source the source, whose position is advanced to its limit
+     */
+    public void put(long position, ByteBuffer source) throws IOException {
+        long filePosition = position;
+        while (source.hasRemaining()) {
+            filePosition += fileChannel.write(source, filePosition);
+        }
+    }
+
+    @Override
+    public void get(long position, int length, WritableByteChannel dest) throws IOException {
+        long transferred = 0;
+        while (transferred < length) {
+            transferred += fileChannel.transferTo(position + transferred, length - transferred, dest);
+        }
+    }
+
+    @Override
+    public void put(long position, ReadableByteChannel source, int length) throws IOException {
+        long transferred = 0;
+        while (transferred < length) {
+            long count = fileChannel.transferFrom(source, position + transferred, length - transferred);
+            if (count <= 0) {
+                throw new EOFException("the source ends before " + length + " bytes are read");
+            }
+            transferred += count;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // nothing buffered
+    }
+
     @Override
     public void free() {
         // nothing to do here
@@ -2,6 +2,10 @@ package com.spring2go.bigcache.storage;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created on Jul, 2020 by @author bobo
@@ -17,7 +21,43 @@ public interface IStorage extends Closeable {
      * @param position the position
      * @param dest the destination
      */
-    void get(int position, byte[] dest) throws IOException;
+    void get(long position, byte[] dest) throws IOException;
+
+    /**
+     * Gets bytes from the specified location into the destination, as many as the remaining bytes of the destination.
+     *
+     * @param position the position
+     * @param dest the destination
+     */
+    void get(long position, ByteBuffer dest) throws IOException;
+
+    /**
+     * Gets bytes from the specified location into the destination without waiting for them, as many as the
+     * remaining bytes of the destination. The storages which can't read asynchronously complete before returning.
+     *
+     * @param position the position
+     * @param dest the destination, not to be touched until the future completes
+     * @return the future completed when the bytes are read
+     */
+    CompletableFuture<Void> getAsync(long position, ByteBuffer dest) throws IOException;
+
+    /**
+     * Gets a read only view of the specified range without copying.
+     *
+     * @param position the position
+     * @param length the length
+     * @return the view, or null if the storage can't be viewed in memory
+     */
+    ByteBuffer slice(long position, int length);
+
+    /**
+     * Writes bytes from the specified location to the channel.
+     *
+     * @param position the position
+     * @param length the number of bytes
+     * @param dest the destination channel
+     */
+    void get(long position, int length, WritableByteChannel dest) throws IOException;
 
     /**
      * Puts source to the specified location of the Storage.
@@ -25,7 +65,22 @@ public interface IStorage extends Closeable {
      * @param position the position
      * @param source the source
      */
-    void put(int position, byte[] source) throws IOException;
+    void put(long position, byte[] source) throws IOException;
+
+    /**
+     * Reads the specified number of bytes from the channel to the specified location of the Storage.
+     *
+     * @param position the position
+     * @param source the source channel
+     * @param length the number of bytes
+     * @throws java.io.EOFException if the channel ends before the bytes are read
+     */
+    void put(long position, ReadableByteChannel source, int length) throws IOException;
+
+    /**
+     * Writes the bytes buffered by the storage, if any, to the underlying file.
+     */
+    void flush() throws IOException;
 
     /**
      * Frees the storage.
@@ -2,6 +2,7 @@ package com.spring2go.bigcache.storage;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
 
 /**
  * Created on Jul, 2020 by @author bobo
@@ -46,6 +47,16 @@ public interface IStorageBlock extends Comparable<IStorageBlock>, Closeable {
      */
     Pointer store(byte[] payload) throws IOException;
 
+    /**
+     * Stores the payload read from the channel, without holding the whole payload on heap.
+     *
+     * @param source the source channel
+     * @param length the length of the payload
+     * @return the pointer
+     * @throws IOException
+     */
+    Pointer store(ReadableByteChannel source, int length) throws IOException;
+
     /**
      * Updates the payload by marking exSpace as dirty.
      *
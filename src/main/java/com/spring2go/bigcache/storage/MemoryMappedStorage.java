@@ -1,36 +1,60 @@
 package com.spring2go.bigcache.storage;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created on Jul, 2020 by @author bobo
+ *
+ * The memory mapped storage of a single mapping, so of at most 2GB, see {@link UnsafeMemoryMappedStorage} for the
+ * larger ones.
  */
 public class MemoryMappedStorage implements IStorage {
     private RandomAccessFile raf;
     private ThreadLocalByteBuffer threadLocalBuffer;
 
     public MemoryMappedStorage(String dir, int index, int capacity) throws IOException {
-        File backFile = new File(dir);
-        if (!backFile.exists()) {
-            backFile.mkdirs();
+        this(new File(dir + index + "-" + System.currentTimeMillis() + DATA_FILE_SUFFIX), capacity);
+    }
+
+    /**
+     * Maps the given file, the existing content of the file is visible through the mapping.
+     *
+     * @param file the backing file
+     * @param capacity the capacity
+     * @throws IOException
+     */
+    public MemoryMappedStorage(File file, int capacity) throws IOException {
+        File backDir = file.getParentFile();
+        if (backDir != null && !backDir.exists()) {
+            backDir.mkdirs();
         }
-        String backFileName = dir + index + "-" + System.currentTimeMillis() + DATA_FILE_SUFFIX;
-        raf = new RandomAccessFile(backFileName, "rw");
+        raf = new RandomAccessFile(file, "rw");
         MappedByteBuffer mappedByteBuffer = raf.getChannel().map(FileChannel.MapMode.PRIVATE, 0, capacity);
         threadLocalBuffer = new ThreadLocalByteBuffer(mappedByteBuffer);
     }
 
-    private ByteBuffer getLocal(int position) {
+    private ByteBuffer getLocal(long position) {
         ByteBuffer buffer = threadLocalBuffer.get();
-        buffer.position(position);
+        buffer.position(toInt(position));
         return buffer;
     }
 
+    private static int toInt(long position) {
+        if (position > Integer.MAX_VALUE) {
+            throw new IndexOutOfBoundsException("position " + position + " beyond the mapping");
+        }
+        return (int) position;
+    }
+
     @Override
     public void close() throws IOException {
         if (raf != null) {
@@ -42,17 +66,68 @@ public class MemoryMappedStorage implements IStorage {
     }
 
     @Override
-    public void get(int position, byte[] dest) throws IOException {
+    public void get(long position, byte[] dest) throws IOException {
         ByteBuffer buffer = this.getLocal(position);
         buffer.get(dest);
     }
 
     @Override
-    public void put(int position, byte[] source) throws IOException {
+    public void get(long position, ByteBuffer dest) throws IOException {
+        ByteBuffer buffer = this.getLocal(position);
+        int limit = buffer.limit();
+        buffer.limit(toInt(position) + dest.remaining());
+        try {
+            dest.put(buffer);
+        } finally {
+            buffer.limit(limit);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> getAsync(long position, ByteBuffer dest) throws IOException {
+        get(position, dest); // copied from memory
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public ByteBuffer slice(long position, int length) {
+        ByteBuffer buffer = threadLocalBuffer.getSourceBuffer().duplicate();
+        buffer.position(toInt(position));
+        buffer.limit(toInt(position) + length);
+        return buffer.slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public void put(long position, byte[] source) throws IOException {
         ByteBuffer buffer = this.getLocal(position);
         buffer.put(source);
     }
 
+    @Override
+    public void get(long position, int length, WritableByteChannel dest) throws IOException {
+        ByteBuffer buffer = slice(position, length);
+        while (buffer.hasRemaining()) {
+            dest.write(buffer);
+        }
+    }
+
+    @Override
+    public void put(long position, ReadableByteChannel source, int length) throws IOException {
+        ByteBuffer buffer = threadLocalBuffer.getSourceBuffer().duplicate();
+        buffer.position(toInt(position));
+        buffer.limit(toInt(position) + length);
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer) < 0) {
+                throw new EOFException("the source ends before " + length + " bytes are read");
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // nothing buffered
+    }
+
     @Override
     public void free() {
         MappedByteBuffer buffer = (MappedByteBuffer) threadLocalBuffer.getSourceBuffer();
@@ -1,11 +1,17 @@
 package com.spring2go.bigcache.storage;
 
 import sun.misc.Unsafe;
+import sun.nio.ch.DirectBuffer;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -15,11 +21,16 @@ public class OffHeapStorage implements IStorage {
     protected final AtomicBoolean disposed = new AtomicBoolean(false);
     protected ByteBuffer byteBuffer;
 
-    private static final Unsafe UNSAFE = getUnsafe();
-    private static final long BYTE_ARRAY_OFFSET = (long) UNSAFE.arrayBaseOffset(byte[].class);
+    static final Unsafe UNSAFE = getUnsafe();
+    static final long BYTE_ARRAY_OFFSET = (long) UNSAFE.arrayBaseOffset(byte[].class);
+
+    /** The constructor of the direct buffers wrapping the offheap memory at an address. */
+    private static final Constructor<?> DIRECT_BUFFER_CONSTRUCTOR = getDirectBufferConstructor();
 
     private final long address;
 
+    private final long capacity;
+
     private static Unsafe getUnsafe() {
         try {
             Field unsafeField = Unsafe.class.getDeclaredField("theUnsafe");
@@ -30,8 +41,40 @@ public class OffHeapStorage implements IStorage {
         }
     }
 
-    public OffHeapStorage(int capacity) {
+    private static Constructor<?> getDirectBufferConstructor() {
+        try {
+            Constructor<?> constructor = Class.forName("java.nio.DirectByteBuffer").getDeclaredConstructor(long.class, int.class);
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to wrap offheap memory into a direct buffer on your platform", e);
+        }
+    }
+
+    /**
+     * Wraps the given range of the offheap memory into a direct buffer, without taking over the memory.
+     *
+     * A direct buffer is at most 2GB, so the buffers are wrapped over the ranges used rather than the whole memory.
+     *
+     * @param position the position
+     * @param length the length
+     * @return the direct buffer
+     */
+    private ByteBuffer wrap(long position, int length) {
+        if (position < 0 || length < 0 || length > capacity - position) {
+            throw new IndexOutOfBoundsException("position " + position + ", length " + length + ", capacity "
+                    + capacity);
+        }
+        try {
+            return (ByteBuffer) DIRECT_BUFFER_CONSTRUCTOR.newInstance(address + position, length);
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to wrap offheap memory into a direct buffer on your platform", e);
+        }
+    }
+
+    public OffHeapStorage(long capacity) {
         this.address = UNSAFE.allocateMemory(capacity);
+        this.capacity = capacity;
     }
 
     public OffHeapStorage(int capacity, ByteBuffer buffer) {
@@ -43,6 +86,7 @@ public class OffHeapStorage implements IStorage {
         } catch (Exception e) {
             throw new RuntimeException("Unable to allocate offheap memory using sun.misc.Unsafe on your platform", e);
         }
+        this.capacity = capacity;
     }
 
     @Override
@@ -53,7 +97,7 @@ public class OffHeapStorage implements IStorage {
     }
 
     @Override
-    public void get(int position, byte[] dest) throws IOException {
+    public void get(long position, byte[] dest) throws IOException {
         assert !disposed.get() : "disposed";
         assert position >= 0 : position;
         this.get(address + position, dest, BYTE_ARRAY_OFFSET, dest.length);
@@ -72,7 +116,36 @@ public class OffHeapStorage implements IStorage {
     }
 
     @Override
-    public void put(int position, byte[] source) throws IOException {
+    public void get(long position, ByteBuffer dest) throws IOException {
+        assert !disposed.get() : "disposed";
+        assert position >= 0 : position;
+        int length = dest.remaining();
+        if (dest.hasArray()) {
+            UNSAFE.copyMemory(null, address + position, dest.array(),
+                    BYTE_ARRAY_OFFSET + dest.arrayOffset() + dest.position(), length);
+        } else if (dest.isDirect()) {
+            UNSAFE.copyMemory(address + position, ((DirectBuffer) dest).address() + dest.position(), length);
+        } else {
+            dest.put(slice(position, length)); // e.g. read only buffers, which will be rejected
+            return;
+        }
+        dest.position(dest.position() + length);
+    }
+
+    @Override
+    public CompletableFuture<Void> getAsync(long position, ByteBuffer dest) throws IOException {
+        get(position, dest); // copied from memory
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public ByteBuffer slice(long position, int length) {
+        assert !disposed.get() : "disposed";
+        return wrap(position, length).asReadOnlyBuffer();
+    }
+
+    @Override
+    public void put(long position, byte[] source) throws IOException {
         assert !disposed.get() : "disposed";
         assert position >= 0 : position;
         this.put(BYTE_ARRAY_OFFSET, source, address + position, source.length);
@@ -91,6 +164,41 @@ public class OffHeapStorage implements IStorage {
         UNSAFE.copyMemory(source, srcOffset, null, baseAddress, length);
     }
 
+    @Override
+    public void get(long position, int length, WritableByteChannel dest) throws IOException {
+        ByteBuffer buffer = slice(position, length);
+        while (buffer.hasRemaining()) {
+            dest.write(buffer);
+        }
+    }
+
+    @Override
+    public void put(long position, ReadableByteChannel source, int length) throws IOException {
+        assert !disposed.get() : "disposed";
+        ByteBuffer buffer = wrap(position, length);
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer) < 0) {
+                throw new EOFException("the source ends before " + length + " bytes are read");
+            }
+        }
+    }
+
+    /**
+     * Writes a zero to each page of the memory, so the pages are faulted in before the storage is used. Only to be
+     * called on a new storage, which holds no data yet.
+     */
+    public void prefault() {
+        int pageSize = UNSAFE.pageSize();
+        for (long position = 0; position < capacity; position += pageSize) {
+            UNSAFE.putByte(address + position, (byte) 0);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // nothing buffered
+    }
+
     @Override
     public void free() {
         //do nothing
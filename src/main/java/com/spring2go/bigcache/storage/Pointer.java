@@ -8,7 +8,7 @@ package com.spring2go.bigcache.storage;
  */
 public class Pointer {
     /** The position. */
-    protected int position;
+    protected long position;
 
     /** The length of the value. */
     protected int length;
@@ -16,17 +16,33 @@ public class Pointer {
     /** The associated storage block. */
     protected StorageBlock storageBlock;
 
+    /** The generation of the block when the payload was stored. */
+    protected int generation;
+
+    /**
+     * Instantiates a new pointer.
+     *
+     * @param position the position
+     * @param length the length of the value
+     * @param storageBlock the persistent cache storage
+     */
+    public Pointer(long position, int length, StorageBlock storageBlock) {
+        this(position, length, storageBlock, storageBlock == null ? 0 : storageBlock.getGeneration());
+    }
+
     /**
      * Instantiates a new pointer.
      *
      * @param position the position
      * @param length the length of the value
      * @param storageBlock the persistent cache storage
+     * @param generation the generation of the block taken before the payload was written
      */
-    public Pointer(int position, int length, StorageBlock storageBlock) {
+    public Pointer(long position, int length, StorageBlock storageBlock, int generation) {
         this.position = position;
         this.length = length;
         this.storageBlock = storageBlock;
+        this.generation = generation;
     }
 
     /**
@@ -34,7 +50,7 @@ public class Pointer {
      *
      * @return the position
      */
-    public int getPosition() {
+    public long getPosition() {
         return position;
     }
 
@@ -43,7 +59,7 @@ public class Pointer {
      *
      * @param position the new position
      */
-    public void setPosition(int position) {
+    public void setPosition(long position) {
         this.position = position;
     }
 
@@ -63,6 +79,26 @@ public class Pointer {
      */
     public void setStorageBlock(StorageBlock storageBlock) {
         this.storageBlock = storageBlock;
+        this.generation = storageBlock.getGeneration();
+    }
+
+    /**
+     * Is the payload gone, as the block has been freed or dropped from the ring since, see
+     * {@link StorageBlock#invalidate()}. The bytes at the position may belong to another payload then.
+     *
+     * @return true if stale
+     */
+    public boolean isStale() {
+        return storageBlock.getGeneration() != generation;
+    }
+
+    /**
+     * Gets the generation of the block when the payload was stored.
+     *
+     * @return the generation
+     */
+    public int getGeneration() {
+        return generation;
     }
 
     /**
@@ -94,6 +130,7 @@ public class Pointer {
         this.position = pointer.position;
         this.length = pointer.length;
         this.storageBlock = pointer.storageBlock;
+        this.generation = pointer.generation;
         return this;
     }
 }
@@ -0,0 +1,211 @@
+package com.spring2go.bigcache.storage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * Scans the block files of a cache directory for the records written in the {@link StorageRecord} layout.
+ *
+ * Each block is scanned from the beginning until the first record which is torn, corrupt or belongs to an earlier
+ * generation of the block, everything after it is treated as free space. Blocks are scanned in parallel.
+ */
+public class RecordScanner {
+    /** The size of the read buffer used to scan a block file. */
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Scans all the block files in the directory.
+     *
+     * @param dir the cache directory
+     * @param parallelism the number of blocks scanned at the same time
+     * @return the scanned blocks, blocks without any record are left out
+     * @throws IOException
+     */
+    public static List<ScannedBlock> scan(String dir, int parallelism) throws IOException {
+        File[] files = new File(dir).listFiles();
+        if (files == null) {
+            return new ArrayList<ScannedBlock>();
+        }
+
+        // the index is the file name prefix, pick the newest file if an index is seen more than once
+        Map<Integer, File> blockFiles = new HashMap<Integer, File>();
+        for (File file : files) {
+            String name = file.getName();
+            if (!file.isFile() || !name.endsWith(IStorage.DATA_FILE_SUFFIX) || name.indexOf('-') <= 0) {
+                continue;
+            }
+            try {
+                int index = Integer.parseInt(name.substring(0, name.indexOf('-')));
+                File existing = blockFiles.get(index);
+                if (existing == null || existing.lastModified() < file.lastModified()) {
+                    blockFiles.put(index, file);
+                }
+            } catch (NumberFormatException e) {
+                // not a block file
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        try {
+            List<Future<ScannedBlock>> futures = new ArrayList<Future<ScannedBlock>>();
+            for (final Map.Entry<Integer, File> entry : blockFiles.entrySet()) {
+                futures.add(executor.submit(new Callable<ScannedBlock>() {
+                    @Override
+                    public ScannedBlock call() throws IOException {
+                        return scanBlock(entry.getValue(), entry.getKey());
+                    }
+                }));
+            }
+
+            List<ScannedBlock> result = new ArrayList<ScannedBlock>();
+            for (Future<ScannedBlock> future : futures) {
+                ScannedBlock block = future.get();
+                if (block.getEnd() > 0) {
+                    result.add(block);
+                }
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while scanning " + dir, e);
+        } catch (ExecutionException e) {
+            throw new IOException("fail to scan " + dir, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Scans one block file.
+     *
+     * @param file the block file
+     * @param index the block index
+     * @return the scanned block
+     * @throws IOException
+     */
+    public static ScannedBlock scanBlock(File file, int index) throws IOException {
+        ScannedBlock block = new ScannedBlock(file, index);
+        long fileLength = file.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), READ_BUFFER_SIZE));
+        try {
+            byte[] header = new byte[StorageRecord.HEADER_SIZE];
+            long position = 0;
+            while (position + StorageRecord.HEADER_SIZE <= fileLength) {
+                in.readFully(header);
+                StorageRecord head = StorageRecord.readHeader(header);
+                if (head == null || (position > 0 && head.getGeneration() != block.generation)) {
+                    break;
+                }
+                long recordLength = StorageRecord.getRecordLength(header);
+                if (recordLength < StorageRecord.HEADER_SIZE || position + recordLength > fileLength) {
+                    break; // garbage lengths
+                }
+                byte[] recordBytes = new byte[(int) recordLength];
+                System.arraycopy(header, 0, recordBytes, 0, header.length);
+                in.readFully(recordBytes, header.length, recordBytes.length - header.length);
+                StorageRecord record = StorageRecord.verify(recordBytes);
+                if (record == null) {
+                    break; // torn or corrupt tail
+                }
+
+                if (position == 0) {
+                    block.generation = record.getGeneration();
+                }
+                if (!record.isTombstone()) {
+                    block.records.add(record);
+                    block.positions.add(position);
+                    block.used += record.getLength();
+                }
+                position += record.getLength();
+                block.end = position;
+            }
+        } catch (EOFException e) {
+            // torn tail
+        } finally {
+            in.close();
+        }
+        return block;
+    }
+
+    /**
+     * The result of scanning a block file.
+     */
+    public static class ScannedBlock {
+        private final File file;
+        private final int index;
+        private final List<StorageRecord> records = new ArrayList<StorageRecord>();
+        private final List<Long> positions = new ArrayList<Long>();
+        private int generation;
+        private long end;
+        private long used;
+
+        ScannedBlock(File file, int index) {
+            this.file = file;
+            this.index = index;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Gets the live records in the block.
+         *
+         * @return the live records
+         */
+        public List<StorageRecord> getRecords() {
+            return records;
+        }
+
+        /**
+         * Gets the position of the i-th live record.
+         *
+         * @param i the record number
+         * @return the position of the record within the block
+         */
+        public long getPosition(int i) {
+            return positions.get(i);
+        }
+
+        public int getGeneration() {
+            return generation;
+        }
+
+        /**
+         * Gets the end of the last valid record, which is the offset to append new data.
+         *
+         * @return the end of the last valid record
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * Gets the total length of the live records.
+         *
+         * @return the used storage
+         */
+        public long getUsed() {
+            return used;
+        }
+    }
+}
@@ -1,33 +1,145 @@
 package com.spring2go.bigcache.storage;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
+import com.spring2go.bigcache.CacheConfig;
 import com.spring2go.bigcache.CacheConfig.StorageMode;
 
 /**
  * Created on Jul, 2020 by @author bobo
  *
  * The Class StorageBlock.
+ *
+ * Small payloads are allocated from thread local allocation buffers: each writing thread reserves a region of the
+ * block at a time and bumps its own offset within it, counting the storage it uses on its own, so a store doesn't
+ * touch any counter shared with the other writers. The counts are folded into the block when a region is used up,
+ * and summed up on read until then. Once the block is retired, see {@link #retire()}, the rest of the regions is given
+ * up as dirty storage and no new region is reserved.
+ *
+ * The space freed by removes and updates is kept in segregated free lists, one for each power of two size class,
+ * and reused by later stores before the block is bumped any further, so an update heavy workload leaves less dirty
+ * storage behind for the merger of {@link com.spring2go.bigcache.BigCache} to compact. The holes are not reused
+ * for the records, which must stay scannable, nor while the block is leased.
  */
 public class StorageBlock implements IStorageBlock {
+    /** The size of the chunks used to copy block data from/to the checkpoint file. */
+    private static final int CHECKPOINT_CHUNK_SIZE = 1024 * 1024;
+
+    /** The size of the regions reserved by the writing threads. */
+    public static final int TLAB_SIZE = 64 * 1024;
+
+    /** Larger payloads are allocated from the block directly, so little is left unused at the end of a region. */
+    public static final int MAX_TLAB_PAYLOAD_LENGTH = 4 * 1024;
+
+    /** Smaller holes are not worth tracking, they are left dirty. */
+    public static final int MIN_HOLE_LENGTH = 16;
+
+    /** The number of the holes tried in the size class of a payload, before turning to the larger classes. */
+    private static final int MAX_HOLE_PROBES = 8;
+
+    /** The size class of the smallest holes tracked. */
+    private static final int MIN_HOLE_SIZE_CLASS = 31 - Integer.numberOfLeadingZeros(MIN_HOLE_LENGTH);
+
+    /** The flags of a removed record. */
+    private static final byte[] TOMBSTONE_FLAGS = ByteBuffer.allocate(4).putInt(StorageRecord.FLAG_TOMBSTONE).array();
+
+    /** The allocation buffers of the current thread by block, the blocks closed are let go. */
+    private static final ThreadLocal<Map<StorageBlock, AllocationBuffer>> ALLOCATION_BUFFERS =
+            new ThreadLocal<Map<StorageBlock, AllocationBuffer>>() {
+                @Override
+                protected Map<StorageBlock, AllocationBuffer> initialValue() {
+                    return new WeakHashMap<StorageBlock, AllocationBuffer>();
+                }
+            };
+
     /** The index. */
     private final int index;
 
     /** The capacity. */
-    private final int capacity;
+    private final long capacity;
+
+    /** The storage mode of this block. */
+    private final StorageMode storageMode;
+
+    /** The file backing this block, or receiving its data on checkpoint for the offheap mode. */
+    private final File file;
 
     /** The underlying storage. */
     private IStorage underlyingStorage;
 
     /** The offset within the storage block. */
-    private final AtomicInteger currentOffset = new AtomicInteger(0);
+    private final AtomicLong currentOffset = new AtomicLong(0);
 
     /** The dirty storage. */
-    private final AtomicInteger dirtyStorage = new AtomicInteger(0);
+    private final AtomicLong dirtyStorage = new AtomicLong(0);
 
     /** The used storage. */
-    private final AtomicInteger usedStorage = new AtomicInteger(0);
+    private final AtomicLong usedStorage = new AtomicLong(0);
+
+    /** Whether the payloads are records in the {@link StorageRecord} layout. */
+    private final boolean recordFormat;
+
+    /** Whether the block is in a FIFO ring, whose storage is never reused before the whole block is dropped. */
+    private final boolean fifoRing;
+
+    /** The generation, which is increased every time the block is freed for reuse. */
+    private volatile int generation;
+
+    /** The number of outstanding leases on views of this block, a leased block is not freed for reuse. */
+    private final AtomicInteger leases = new AtomicInteger(0);
+
+    /** Whether the block is no longer appended to, until it's freed. */
+    private volatile boolean retired;
+
+    /** The allocation buffers of the current generation, whose used storage is not folded yet. */
+    private final Queue<AllocationBuffer> generationBuffers = new ConcurrentLinkedQueue<AllocationBuffer>();
+
+    /** The free holes by size class, the holes of class i are at least 2^(i + MIN_HOLE_SIZE_CLASS) long. */
+    private final Queue<Allocation>[] freeHoles = newFreeHoles();
+
+    /** The number of the free holes. */
+    private final AtomicInteger freeHoleCount = new AtomicInteger(0);
+
+    /**
+     * Instantiates a new storage block.
+     *
+     * @param dir the directory
+     * @param index the index
+     * @param capacity the capacity
+     * @throws IOException exception throws when failing to create the storage block
+     */
+    public StorageBlock(String dir, int index, long capacity, StorageMode storageMode) throws IOException{
+        this(dir, index, capacity, storageMode, false);
+    }
+
+    /**
+     * Instantiates a new storage block.
+     *
+     * @param dir the directory
+     * @param index the index
+     * @param capacity the capacity
+     * @param recordFormat whether the payloads are records in the {@link StorageRecord} layout
+     * @throws IOException exception throws when failing to create the storage block
+     */
+    public StorageBlock(String dir, int index, long capacity, StorageMode storageMode, boolean recordFormat)
+            throws IOException{
+        this(dir, index, capacity, storageMode, recordFormat, new CacheConfig());
+    }
 
     /**
      * Instantiates a new storage block.
@@ -35,54 +147,425 @@ public class StorageBlock implements IStorageBlock {
      * @param dir the directory
      * @param index the index
      * @param capacity the capacity
+     * @param recordFormat whether the payloads are records in the {@link StorageRecord} layout
+     * @param config the cache config, for the options of the underlying storage
      * @throws IOException exception throws when failing to create the storage block
      */
-    public StorageBlock(String dir, int index, int capacity, StorageMode storageMode) throws IOException{
+    public StorageBlock(String dir, int index, long capacity, StorageMode storageMode, boolean recordFormat,
+                        CacheConfig config) throws IOException{
         this.index = index;
         this.capacity = capacity;
+        this.storageMode = storageMode;
+        this.recordFormat = recordFormat;
+        this.fifoRing = config.isFifoRing();
+        this.file = new File(dir + index + "-" + System.currentTimeMillis() + IStorage.DATA_FILE_SUFFIX);
+        this.underlyingStorage = createStorage(file, capacity, storageMode, config);
+    }
+
+    /**
+     * Reopens a storage block from its file, as written by {@link #checkpoint()} or found by the {@link RecordScanner}.
+     *
+     * @param info the description of the block
+     * @param capacity the capacity
+     * @param storageMode the storage mode
+     * @param recordFormat whether the payloads are records in the {@link StorageRecord} layout
+     * @throws IOException exception throws when failing to reopen the storage block
+     */
+    public StorageBlock(BlockInfo info, long capacity, StorageMode storageMode, boolean recordFormat)
+            throws IOException {
+        this(info, capacity, storageMode, recordFormat, new CacheConfig());
+    }
+
+    /**
+     * Reopens a storage block from its file, as written by {@link #checkpoint()} or found by the {@link RecordScanner}.
+     *
+     * @param info the description of the block
+     * @param capacity the capacity
+     * @param storageMode the storage mode
+     * @param recordFormat whether the payloads are records in the {@link StorageRecord} layout
+     * @param config the cache config, for the options of the underlying storage
+     * @throws IOException exception throws when failing to reopen the storage block
+     */
+    public StorageBlock(BlockInfo info, long capacity, StorageMode storageMode, boolean recordFormat,
+                        CacheConfig config) throws IOException {
+        this.index = info.getIndex();
+        this.capacity = capacity;
+        this.storageMode = storageMode;
+        this.recordFormat = recordFormat;
+        this.fifoRing = config.isFifoRing();
+        this.file = info.getFile();
+        this.underlyingStorage = createStorage(file, capacity, storageMode, config);
+        if (storageMode == StorageMode.OffHeapPlusFile) {
+            load(info.getOffset());
+        }
+        this.currentOffset.set(info.getOffset());
+        this.usedStorage.set(info.getUsed());
+        this.dirtyStorage.set(info.getDirty());
+        this.generation = info.getGeneration();
+    }
+
+    private static IStorage createStorage(File file, long capacity, StorageMode storageMode, CacheConfig config)
+            throws IOException {
         switch (storageMode) {
-            case PureFile:
-                underlyingStorage = new FileChannelStorage(dir, index, capacity);
-                break;
             case MemoryMappedPlusFile:
-                underlyingStorage = new MemoryMappedStorage(dir, index, capacity);
-                break;
+                return new UnsafeMemoryMappedStorage(file, capacity, config.isSharedMapping());
             case OffHeapPlusFile:
-                underlyingStorage = new OffHeapStorage(capacity);
-                break;
+                return new OffHeapStorage(capacity);
+            default:
+                if (config.isAsyncIo()) {
+                    return new AsyncFileChannelStorage(file, capacity);
+                }
+                if (config.getWriteBufferSize() > 0) {
+                    return new WriteCombiningStorage(file, capacity, config.getWriteBufferSize());
+                }
+                return new FileChannelStorage(file, capacity);
         }
     }
 
     @Override
     public byte[] retrieve(Pointer pointer) throws IOException {
-        byte [] payload = new byte[pointer.getLength()];
-        underlyingStorage.get(pointer.getPosition(), payload);
+        return retrieve(pointer.getPosition(), pointer.getLength());
+    }
+
+    /**
+     * Retrieves the payload at the given position.
+     *
+     * @param position the position of the payload
+     * @param length the length of the payload
+     * @return the byte[]
+     * @throws IOException
+     */
+    public byte[] retrieve(long position, int length) throws IOException {
+        byte [] payload = new byte[length];
+        underlyingStorage.get(position, payload);
         return payload;
     }
 
+    /**
+     * Retrieves the payload at the given position without waiting for the storage, see
+     * {@link IStorage#getAsync(long, ByteBuffer)}. The block should be leased until the future completes, so the
+     * payload is not overwritten meanwhile.
+     *
+     * @param position the position of the payload
+     * @param length the length of the payload
+     * @return the future of the payload
+     * @throws IOException
+     */
+    public CompletableFuture<byte[]> retrieveAsync(long position, int length) throws IOException {
+        final byte[] payload = new byte[length];
+        return underlyingStorage.getAsync(position, ByteBuffer.wrap(payload)).thenApply(new Function<Void, byte[]>() {
+            @Override
+            public byte[] apply(Void read) {
+                return payload;
+            }
+        });
+    }
+
+    /**
+     * Copies the payload at the given position into the destination, without allocating a byte[].
+     *
+     * @param position the position of the payload
+     * @param length the length of the payload
+     * @param dest the destination, whose position is advanced by the length
+     * @throws IOException
+     * @throws BufferOverflowException if the destination has not enough room, nothing is copied then
+     */
+    public void retrieve(long position, int length, ByteBuffer dest) throws IOException {
+        if (dest.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        int limit = dest.limit();
+        dest.limit(dest.position() + length);
+        try {
+            underlyingStorage.get(position, dest);
+        } finally {
+            dest.limit(limit);
+        }
+    }
+
+    /**
+     * Writes the payload at the given position to the channel, without allocating a byte[].
+     *
+     * @param position the position of the payload
+     * @param length the length of the payload
+     * @param dest the destination channel
+     * @throws IOException
+     */
+    public void retrieve(long position, int length, WritableByteChannel dest) throws IOException {
+        underlyingStorage.get(position, length, dest);
+    }
+
+    /**
+     * Gets a read only view of the payload at the given position without copying. The view is only valid
+     * while the block is leased, see {@link #lease()}.
+     *
+     * @param position the position of the payload
+     * @param length the length of the payload
+     * @return the view, or null for file backed blocks
+     */
+    public ByteBuffer slice(long position, int length) {
+        return underlyingStorage.slice(position, length);
+    }
+
+    /**
+     * Leases the block, so it is neither freed for reuse nor overwritten in place until released.
+     */
+    public void lease() {
+        leases.incrementAndGet();
+    }
+
+    /**
+     * Releases a lease taken by {@link #lease()}.
+     */
+    public void release() {
+        leases.decrementAndGet();
+    }
+
+    /**
+     * Checks whether any lease is outstanding.
+     *
+     * @return true if the block is leased
+     */
+    public boolean isLeased() {
+        return leases.get() > 0;
+    }
+
     @Override
     public byte[] remove(Pointer pointer) throws IOException {
-        byte [] payload = retrieve(pointer);
-        dirtyStorage.addAndGet(pointer.getLength());
-        usedStorage.addAndGet(-1 * pointer.getLength());
+        if (pointer.isStale()) {
+            return null; // dropped from the ring, the storage belongs to the payloads stored since
+        }
+        return remove(pointer.getPosition(), pointer.getLength());
+    }
+
+    /**
+     * Removes the payload at the given position and marks the used space as dirty.
+     *
+     * @param position the position of the payload
+     * @param length the length of the payload
+     * @return the byte[]
+     * @throws IOException
+     */
+    public byte[] remove(long position, int length) throws IOException {
+        byte [] payload = retrieve(position, length);
+        markTombstone(position);
+        reclaim(position, length);
+        usedStorage.addAndGet(-1 * length);
         return payload;
     }
 
 
     @Override
     public void removeLight(Pointer pointer) throws IOException {
-        dirtyStorage.addAndGet(pointer.getLength());
-        usedStorage.addAndGet(-1 * pointer.getLength());
+        if (pointer.isStale()) {
+            return; // dropped from the ring, the storage belongs to the payloads stored since
+        }
+        removeLight(pointer.getPosition(), pointer.getLength());
+    }
+
+    /**
+     * Removes the payload at the given position without returning the payload.
+     *
+     * @param position the position of the payload
+     * @param length the length of the payload
+     * @throws IOException
+     */
+    public void removeLight(long position, int length) throws IOException {
+        markTombstone(position);
+        reclaim(position, length);
+        usedStorage.addAndGet(-1 * length);
+    }
+
+    /**
+     * Flags the record as removed, so it will be skipped by the {@link RecordScanner}.
+     *
+     * @param position the position of the record
+     * @throws IOException
+     */
+    private void markTombstone(long position) throws IOException {
+        if (recordFormat) {
+            underlyingStorage.put(position + StorageRecord.FLAGS_OFFSET, TOMBSTONE_FLAGS);
+        }
+    }
+
+    /**
+     * Marks the storage as dirty, and keeps it for reuse if it's large enough.
+     *
+     * @param position the position of the storage
+     * @param length the length of the storage
+     */
+    private void reclaim(long position, int length) {
+        dirtyStorage.addAndGet(length);
+        // a payload of a block dropped from the ring meanwhile must never be reclaimed as a hole of the new ones
+        if (!recordFormat && !fifoRing && length >= MIN_HOLE_LENGTH) {
+            freeHoles[sizeClassOf(length)].add(new Allocation(position, length));
+            freeHoleCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Allocates storage of the given length from the free holes, the rest of the hole is kept for reuse.
+     *
+     * @param length the length of the payload
+     * @return the allocation, or null if no hole is large enough or the holes can't be reused now
+     */
+    private Allocation allocateHole(int length) {
+        // a hole may still be viewed by the holder of a lease taken before its payload was removed
+        if (freeHoleCount.get() == 0 || isLeased()) {
+            return null;
+        }
+        int sizeClass = sizeClassOf(Math.max(length, MIN_HOLE_LENGTH));
+        // the holes of the same class may be shorter, so the first few are tried, and any of a larger class fits
+        Allocation hole = null;
+        int probes = 0;
+        for (Allocation candidate : freeHoles[sizeClass]) {
+            if (candidate.getLength() >= length && freeHoles[sizeClass].remove(candidate)) {
+                hole = candidate;
+                break;
+            }
+            if (++probes == MAX_HOLE_PROBES) {
+                break;
+            }
+        }
+        for (int i = sizeClass + 1; hole == null && i < freeHoles.length; i++) {
+            hole = freeHoles[i].poll();
+        }
+        if (hole == null) {
+            return null;
+        }
+        freeHoleCount.decrementAndGet();
+        dirtyStorage.addAndGet(-1 * hole.getLength());
+        if (hole.getLength() > length) {
+            reclaim(hole.getOffset() + length, hole.getLength() - length);
+        }
+        return new Allocation(hole.getOffset(), length);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Queue<Allocation>[] newFreeHoles() {
+        Queue<Allocation>[] freeHoles = new Queue[32 - MIN_HOLE_SIZE_CLASS];
+        for (int i = 0; i < freeHoles.length; i++) {
+            freeHoles[i] = new ConcurrentLinkedQueue<Allocation>();
+        }
+        return freeHoles;
+    }
+
+    private static int sizeClassOf(int length) {
+        return 31 - Integer.numberOfLeadingZeros(length) - MIN_HOLE_SIZE_CLASS;
     }
 
     @Override
     public Pointer store(byte[] payload) throws IOException {
+        Allocation hole = allocateHole(payload.length);
+        if (hole != null) {
+            return store(hole, payload);
+        }
+        // records are kept contiguous, as the RecordScanner can't skip the unused ends of the regions
+        if (!recordFormat && payload.length <= MAX_TLAB_PAYLOAD_LENGTH) {
+            return storeLocally(payload);
+        }
         Allocation allocation = allocate(payload);
         if (allocation == null) return null; // not enough storage available
         Pointer pointer = store(allocation, payload);
         return pointer;
     }
 
+    /**
+     * Stores the payload to the allocation buffer of the current thread.
+     *
+     * @param payload the payload
+     * @return the pointer, or null if not enough storage available
+     * @throws IOException
+     */
+    private Pointer storeLocally(byte[] payload) throws IOException {
+        Map<StorageBlock, AllocationBuffer> buffers = ALLOCATION_BUFFERS.get();
+        AllocationBuffer buffer = buffers.get(this);
+        if (buffer == null || buffer.generation != generation) {
+            buffer = new AllocationBuffer(generation);
+            buffers.put(this, buffer);
+            generationBuffers.add(buffer);
+        }
+        Region region = buffer.region;
+        long offset = region.top.get();
+        if (region.end - offset < payload.length) {
+            region = refill(buffer);
+            if (region == null) {
+                return null; // not enough storage available
+            }
+            offset = region.top.get();
+            if (region.end - offset < payload.length) { // the last region may be short
+                return null; // not enough storage available
+            }
+        }
+        if (!region.top.compareAndSet(offset, offset + payload.length)) {
+            return null; // given up by retire() meanwhile
+        }
+        // counted before the payload is written, so the block is never taken as empty and freed meanwhile
+        buffer.used += payload.length; // only written by the owner thread
+        // the generation of the region, so the pointer is stale if the block is dropped while the payload is written
+        Pointer pointer = new Pointer(offset, payload.length, this, buffer.generation);
+        try {
+            underlyingStorage.put(offset, payload);
+        } catch (IOException e) {
+            buffer.used -= payload.length;
+            reclaim(offset, payload.length); // the allocation is wasted
+            throw e;
+        }
+        return pointer;
+    }
+
+    /**
+     * Reserves a new region for the allocation buffer, the rest of the old one is never used and so dirty.
+     *
+     * @param buffer the allocation buffer
+     * @return the new region, or null if the block has no storage left or is retired
+     */
+    private Region refill(AllocationBuffer buffer) {
+        if (retired) {
+            return null;
+        }
+        long end = currentOffset.addAndGet(TLAB_SIZE);
+        if (end - TLAB_SIZE >= capacity) {
+            return null;
+        }
+        // added before being cleared, so a concurrent read may count it twice but never misses it
+        usedStorage.addAndGet(buffer.used);
+        buffer.used = 0;
+        giveUp(buffer.region);
+        Region region = new Region(end - TLAB_SIZE, Math.min(end, capacity));
+        buffer.region = region;
+        if (retired) { // may be retired after the old region was looked up
+            giveUp(region);
+            return null;
+        }
+        return region;
+    }
+
+    /**
+     * Gives up the rest of the region as dirty storage, by whichever of the owner thread and {@link #retire()} comes
+     * first.
+     *
+     * @param region the region
+     */
+    private void giveUp(Region region) {
+        long top = region.top.getAndSet(region.end);
+        if (top < region.end) {
+            reclaim(top, (int) (region.end - top));
+        }
+    }
+
+    /**
+     * Retires the block once it's no longer active, the rest of the regions reserved by the writing threads is
+     * counted as dirty storage, rather than left unused and unaccounted for, and no new region is reserved until the
+     * block is freed.
+     */
+    public void retire() {
+        retired = true;
+        for (AllocationBuffer buffer : generationBuffers) {
+            giveUp(buffer.region);
+        }
+    }
+
     /**
      * Allocates storage for the payload, return null if not enough storage available.
      *
@@ -90,8 +573,17 @@ public class StorageBlock implements IStorageBlock {
      * @return the allocation
      */
     protected Allocation allocate(byte[] payload) {
-        int payloadLength = payload.length;
-        int allocationOffset = currentOffset.addAndGet(payloadLength);
+        return allocate(payload.length);
+    }
+
+    /**
+     * Allocates storage of the given length, return null if not enough storage available.
+     *
+     * @param payloadLength the length of the payload
+     * @return the allocation
+     */
+    protected Allocation allocate(int payloadLength) {
+        long allocationOffset = currentOffset.addAndGet(payloadLength);
         if(this.capacity < allocationOffset){
             return null;
         }
@@ -100,6 +592,32 @@ public class StorageBlock implements IStorageBlock {
     }
 
 
+    /**
+     * Stores the payload read from the channel, the payload is not in the {@link StorageRecord} layout.
+     *
+     * @param source the source channel
+     * @param length the length of the payload
+     * @return the pointer, or null if not enough storage available
+     * @throws IOException
+     */
+    @Override
+    public Pointer store(ReadableByteChannel source, int length) throws IOException {
+        Allocation allocation = allocateHole(length);
+        if (allocation == null) {
+            allocation = allocate(length);
+        }
+        if (allocation == null) return null; // not enough storage available
+        Pointer pointer = new Pointer(allocation.getOffset(), length, this);
+        try {
+            underlyingStorage.put(allocation.getOffset(), source, length);
+        } catch (IOException e) {
+            reclaim(allocation.getOffset(), length); // the allocation is wasted
+            throw e;
+        }
+        usedStorage.addAndGet(length);
+        return pointer;
+    }
+
     /**
      * Stores the payload by the help of allocation.
      *
@@ -109,6 +627,9 @@ public class StorageBlock implements IStorageBlock {
      * @throws IOException
      */
     public Pointer store(Allocation allocation, byte[] payload) throws IOException {
+        if (recordFormat) {
+            StorageRecord.setGeneration(payload, generation);
+        }
         Pointer pointer = new Pointer(allocation.getOffset(), allocation.getLength(), this);
         underlyingStorage.put(allocation.getOffset(), payload);
         usedStorage.addAndGet(payload.length);
@@ -117,14 +638,26 @@ public class StorageBlock implements IStorageBlock {
 
     @Override
     public Pointer update(Pointer pointer, byte[] payload) throws IOException {
-        if (pointer.getLength() >= payload.length) { // has enough space to reuse
-            dirtyStorage.addAndGet(pointer.getLength() - payload.length);
+        if (pointer.isStale()) {
+            return null; // dropped from the ring, stored elsewhere
+        }
+        // records are never overwritten in place, otherwise the block could not be scanned any more,
+        // and neither are leased blocks, whose views must not change, nor the blocks of a ring, as the block may
+        // be dropped and written again meanwhile
+        if (!recordFormat && !fifoRing && !isLeased() && pointer.getLength() >= payload.length) {
+            reclaim(pointer.getPosition() + payload.length, pointer.getLength() - payload.length);
             usedStorage.addAndGet(-1 * pointer.getLength());
             Allocation allocation = new Allocation(pointer.getPosition(), payload.length);
             return store(allocation, payload); // should always return a new pointer
         } else { // make a move
-            dirtyStorage.addAndGet(pointer.getLength());
+            markTombstone(pointer.getPosition());
+            reclaim(pointer.getPosition(), pointer.getLength());
             usedStorage.addAndGet(-1 * pointer.getLength());
+            if (fifoRing) {
+                // never appended to the old block, which would break the oldest first order of the ring, and may
+                // be dropped meanwhile, the caller stores the payload in the active block instead
+                return null;
+            }
             return store(payload); // may return null because not enough space available
         }
     }
@@ -146,26 +679,82 @@ public class StorageBlock implements IStorageBlock {
 
     @Override
     public long getUsed() {
-        return this.usedStorage.get();
+        long used = this.usedStorage.get();
+        for (AllocationBuffer buffer : generationBuffers) {
+            used += buffer.used;
+        }
+        return used;
+    }
+
+    /**
+     * Drops the payloads of the block from the FIFO ring, the pointers to them are stale from now on, see
+     * {@link Pointer#isStale()}. The block must not be written again until it's freed, which is once it's no longer
+     * leased, as the leases may have been taken before the payloads were dropped.
+     */
+    public void invalidate() {
+        generation++;
     }
 
     @Override
     public void free() {
 
+        generation++; // so the old records can be told apart from the new ones once the block is reused
+        generationBuffers.clear(); // the allocation buffers of the old generation are dropped on their next use
+        for (Queue<Allocation> holes : freeHoles) {
+            holes.clear();
+        }
+        freeHoleCount.set(0);
         currentOffset.set(0);
         dirtyStorage.set(0);
         usedStorage.set(0);
+        retired = false;
 
         underlyingStorage.free();
     }
 
+    /**
+     * The allocation buffer of a writing thread in the block.
+     */
+    private static class AllocationBuffer {
+
+        /** The generation of the block the region is reserved in. */
+        private final int generation;
+
+        /** The current region, replaced by the owner thread only. */
+        private volatile Region region = new Region(0, 0);
+
+        /** The storage used by the thread and not folded into the block yet, written by the owner thread only. */
+        private volatile long used;
+
+        AllocationBuffer(int generation) {
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * The region reserved by a writing thread.
+     */
+    private static class Region {
+
+        /** The offset of the next allocation, moved to the end once the region is given up. */
+        private final AtomicLong top;
+
+        /** The end of the region. */
+        private final long end;
+
+        Region(long top, long end) {
+            this.top = new AtomicLong(top);
+            this.end = end;
+        }
+    }
+
     /**
      * The Class Allocation.
      */
     private static class Allocation {
 
         /** The offset. */
-        private int offset;
+        private long offset;
 
         /** The length. */
         private int length;
@@ -176,7 +765,7 @@ public class StorageBlock implements IStorageBlock {
          * @param offset the offset
          * @param length the length
          */
-        public Allocation(int offset, int length) {
+        public Allocation(long offset, int length) {
             this.offset = offset;
             this.length = length;
         }
@@ -186,7 +775,7 @@ public class StorageBlock implements IStorageBlock {
          *
          * @return the offset
          */
-        public int getOffset() {
+        public long getOffset() {
             return offset;
         }
 
@@ -209,6 +798,157 @@ public class StorageBlock implements IStorageBlock {
         return index;
     }
 
+    /**
+     * Gets the storage mode.
+     *
+     * @return the storage mode
+     */
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    /**
+     * Gets the file backing this block.
+     *
+     * @return the file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the generation of the block.
+     *
+     * @return the generation
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Gets the description of this block, after making sure all its data is in its file.
+     *
+     * @return the block info
+     * @throws IOException
+     */
+    public BlockInfo checkpointInfo() throws IOException {
+        File checkpointFile = checkpoint();
+        return new BlockInfo(index, storageMode, checkpointFile, getOffset(), getUsed(), getDirty(),
+                generation);
+    }
+
+    /**
+     * Gets the offset within the storage block, never beyond the capacity.
+     *
+     * @return the offset
+     */
+    public long getOffset() {
+        return Math.min(currentOffset.get(), capacity);
+    }
+
+    /**
+     * Writes the bytes buffered by the underlying storage to the file, see {@link WriteCombiningStorage}, or forces
+     * a shared mapping to disk, see {@link UnsafeMemoryMappedStorage}.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        underlyingStorage.flush();
+    }
+
+    /**
+     * Gets the bytes written to a shared mapping since it was last forced to disk, see {@link #flush()}.
+     *
+     * @return the bytes, 0 unless mapped shared
+     */
+    public long getUnflushed() {
+        if (underlyingStorage instanceof UnsafeMemoryMappedStorage) {
+            return ((UnsafeMemoryMappedStorage) underlyingStorage).getUnflushed();
+        }
+        return 0;
+    }
+
+    /**
+     * Touches the pages of the memory the block is stored in, so they are faulted in before the block is used
+     * rather than by the first writes, see {@link CacheConfig#setPreallocatedBlockCount(int)}.
+     */
+    public void prefault() {
+        if (underlyingStorage instanceof OffHeapStorage) {
+            ((OffHeapStorage) underlyingStorage).prefault();
+        } else if (underlyingStorage instanceof UnsafeMemoryMappedStorage) {
+            ((UnsafeMemoryMappedStorage) underlyingStorage).prefault();
+        }
+    }
+
+    private boolean isSharedMapping() {
+        return underlyingStorage instanceof UnsafeMemoryMappedStorage
+                && ((UnsafeMemoryMappedStorage) underlyingStorage).isShared();
+    }
+
+    /**
+     * Makes sure all the data of this block is in its file, so the block can be reopened later.
+     *
+     * File backed and shared memory mapped blocks already hold the data in the file once flushed, the privately
+     * memory mapped and offheap blocks have their data copied to the file.
+     *
+     * @return the checkpoint file
+     * @throws IOException
+     */
+    public File checkpoint() throws IOException {
+        if (storageMode == StorageMode.PureFile || isSharedMapping()) {
+            underlyingStorage.flush();
+            return file;
+        }
+        long length = getOffset();
+        file.getParentFile().mkdirs();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            byte[] chunk = new byte[CHECKPOINT_CHUNK_SIZE];
+            for (long position = 0; position < length; position += chunk.length) {
+                if (length - position < chunk.length) {
+                    chunk = new byte[(int) (length - position)];
+                }
+                underlyingStorage.get(position, chunk);
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, position + buffer.position());
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        return file;
+    }
+
+    /**
+     * Loads the first length bytes of the checkpoint file into the underlying storage.
+     *
+     * @param length the length
+     * @throws IOException
+     */
+    private void load(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            byte[] chunk = new byte[CHECKPOINT_CHUNK_SIZE];
+            for (long position = 0; position < length; position += chunk.length) {
+                if (length - position < chunk.length) {
+                    chunk = new byte[(int) (length - position)];
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException("unexpected end of checkpoint file " + file);
+                    }
+                }
+                underlyingStorage.put(position, chunk);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
     @Override
     public void close() throws IOException {
         if (this.underlyingStorage != null) {
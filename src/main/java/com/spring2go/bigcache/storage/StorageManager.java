@@ -1,23 +1,47 @@
 package com.spring2go.bigcache.storage;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
 import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import com.spring2go.bigcache.CacheConfig;
 import com.spring2go.bigcache.CacheConfig.StorageMode;
+import com.spring2go.bigcache.utils.FileUtil;
 
 /**
  * Created on Jul, 2020 by @author bobo
  *
  * Managing a list of used/free storage blocks for cache operations like get/put/delete
  *
+ * New cache data is appended to one of the active blocks, picked by the writing thread, so the writers don't all
+ * contend on the allocation of a single block. Each active block is switched to a free block on its own when it
+ * overflows.
+ *
+ * With tiering, the offheap or memory mapped blocks are kept for the hot data: new cache data is appended to file
+ * blocks, and the cache promotes the data read often to the memory blocks by {@link #storeInMemory(byte[])}, which
+ * appends to an active block of its own.
+ *
+ * With expiry buckets, the cache data with a time to live is appended to an active block per range of deadlines by
+ * {@link #store(byte[], long)}, so a block is emptied by the expiration of its data, rather than merged. The block of
+ * a range is no longer active once the range has passed, and is freed by {@link #clean()} when its data is purged.
  */
 public class StorageManager implements IStorageBlock {
     /** keep track of the number of blocks allocated */
@@ -32,11 +56,14 @@ public class StorageManager implements IStorageBlock {
      * The capacity per block in bytes
      *
      */
-    private final int capacityPerBlock;
+    private final long capacityPerBlock;
+
 
+    /** The active storage block change locks, one per active block. */
+    private final Lock[] activeBlockChangeLocks;
 
-    /** The active storage block change lock. */
-    private final Lock activeBlockChangeLock = new ReentrantLock();
+    /** The lock to take free blocks or create new ones, while holding an active storage block change lock. */
+    private final Lock blockAllocationLock = new ReentrantLock();
 
     /**
      *  A list of used storage blocks
@@ -49,35 +76,163 @@ public class StorageManager implements IStorageBlock {
     private final Queue<IStorageBlock> freeBlocks = new PriorityBlockingQueue<IStorageBlock>();
 
     /**
-     * Current active block for appending new cache data
+     *  A queue of free memory blocks, only used when tiering, the other free blocks are file blocks then.
+     */
+    private final Queue<IStorageBlock> freeMemoryBlocks = new PriorityBlockingQueue<IStorageBlock>();
+
+    /**
+     * All the storage blocks created, indexed by the block index.
+     *
+     * Copy on write, only replaced while holding the blockAllocationLock or during construction.
+     */
+    private volatile StorageBlock[] blocks = new StorageBlock[0];
+
+    /**
+     * Current active blocks for appending new cache data
+     */
+    private final AtomicReferenceArray<IStorageBlock> activeBlocks;
+
+    /**
+     * Current active memory block for appending the promoted cache data when tiering, null until needed.
+     */
+    private volatile IStorageBlock activeMemoryBlock;
+
+    /** The active memory block change lock. */
+    private final Lock activeMemoryBlockChangeLock = new ReentrantLock();
+
+    /**
+     * The active blocks of the expiry buckets, by the deadline divided by the expiry bucket interval.
+     */
+    private final ConcurrentMap<Long, IStorageBlock> expiryBuckets = new ConcurrentHashMap<Long, IStorageBlock>();
+
+    /**
+     * The blocks appended to by the expiry buckets, which are left to the expiration rather than merged.
+     */
+    private final Set<IStorageBlock> expiringBlocks = ConcurrentHashMap.<IStorageBlock>newKeySet();
+
+    /** The expiry bucket change lock. */
+    private final Lock expiryBucketChangeLock = new ReentrantLock();
+
+    /**
+     * The width of the range of deadlines of an expiry bucket, 0 if the expiring data is not grouped.
      */
-    private volatile IStorageBlock activeBlock;
+    private final long expiryBucketInterval;
+
+    /**
+     * The number of expiry buckets from the current one, the deadlines beyond are not grouped.
+     */
+    private final int expiryBucketCount;
 
     /**
      * Current storage mode
      */
     private final StorageMode storageMode;
 
+    /**
+     * Whether the payloads are records in the {@link StorageRecord} layout
+     */
+    private final boolean recordFormat;
+
+    /**
+     * Whether the memory blocks are kept for the hot data
+     */
+    private final boolean tiering;
+
+    /**
+     * Whether the oldest block is dropped when the max bytes are used up, see {@link CacheConfig#setFifoRing(boolean)}
+     */
+    private final boolean fifoRing;
+
+    /**
+     * The dropped blocks still leased, which are freed by {@link #clean()} once released.
+     */
+    private final Queue<IStorageBlock> droppedBlocks = new ConcurrentLinkedQueue<IStorageBlock>();
+
+    /**
+     * The indexes of the blocks dropped since the last {@link #pollDroppedBlockIndexes()}.
+     */
+    private final Queue<Integer> droppedBlockIndexes = new ConcurrentLinkedQueue<Integer>();
+
+    /**
+     * The cache config, for the options of the storage blocks
+     */
+    private final CacheConfig config;
+
+    /**
+     * Whether the blocks buffer their writes, or write them through a shared mapping, so they have to be flushed
+     */
+    private final boolean flushed;
+
+    /**
+     * The last time all the blocks were flushed
+     */
+    private volatile long lastFlushTime = System.currentTimeMillis();
+
+    /**
+     * The number of free blocks kept ready by {@link #provision()}.
+     */
+    private final int preallocatedBlockCount;
+
     /**
      * The number of memory blocks allow to be created.
      */
     private int allowedOffHeapModeBlockCount;
 
+    /**
+     * The indexes given back by a failed {@link #provision()} while greater ones were taken, to be taken again
+     * before the new ones.
+     */
+    private final Queue<Integer> abandonedBlockIndexes = new ConcurrentLinkedQueue<Integer>();
+
+    /**
+     * The number of blocks allowed to be created within the max bytes of the storage.
+     */
+    private final int maxBlockCount;
+
     /**
      * The Constant DEFAULT_CAPACITY_PER_BLOCK.
      */
     public final static int DEFAULT_CAPACITY_PER_BLOCK = 128 * 1024 * 1024; // 128M
 
+    /** The max capacity of a block, which is 1TB, as much as the positions packed by the compact index can address. */
+    public final static long MAX_CAPACITY_PER_BLOCK = 1L << 40;
+
     /** The Constant DEFAULT_INITIAL_NUMBER_OF_BLOCKS. */
     public final static int DEFAULT_INITIAL_NUMBER_OF_BLOCKS = 8; // 1GB total
 
+    /** The Constant DEFAULT_ACTIVE_BLOCK_COUNT. */
+    public final static int DEFAULT_ACTIVE_BLOCK_COUNT = 1;
+
+    /** The default number of expiry buckets, see {@link CacheConfig#setExpiryBucketCount(int)}. */
+    public final static int DEFAULT_EXPIRY_BUCKET_COUNT = 8;
+
     /**
      * The Constant DEFAULT_MEMORY_SIZE.
      */
     public static final long DEFAULT_MAX_OFFHEAP_MEMORY_SIZE = 2 * 1024 * 1024 * 1024L; //Unit: GB
 
-    public StorageManager(String dir, int capacityPerBlock, int initialNumberOfBlocks, StorageMode storageMode,
+    public StorageManager(String dir, long capacityPerBlock, int initialNumberOfBlocks, StorageMode storageMode,
                           long maxOffHeapMemorySize) throws IOException {
+        this(dir, capacityPerBlock, initialNumberOfBlocks, storageMode, maxOffHeapMemorySize, new CacheConfig(), null);
+    }
+
+    /**
+     * Instantiates a storage manager with the storage settings of the cache config, reopening the given blocks.
+     *
+     * The reopened blocks are in use but closed for appending, new cache data goes to fresh blocks.
+     *
+     * @param dir the directory
+     * @param config the cache config
+     * @param restoredBlocks the blocks to reopen, null to start with empty storage
+     */
+    public StorageManager(String dir, CacheConfig config, List<BlockInfo> restoredBlocks) throws IOException {
+        this(dir, config.getCapacityPerBlock(), config.getInitialNumberOfBlocks(), config.getStorageMode(),
+                config.getMaxOffHeapMemorySize(), config, restoredBlocks);
+    }
+
+    private StorageManager(String dir, long capacityPerBlock, int initialNumberOfBlocks, StorageMode storageMode,
+                           long maxOffHeapMemorySize, CacheConfig config, List<BlockInfo> restoredBlocks)
+            throws IOException {
 
         if (storageMode != StorageMode.PureFile) {
             this.allowedOffHeapModeBlockCount = (int)(maxOffHeapMemorySize / capacityPerBlock);
@@ -87,16 +242,171 @@ public class StorageManager implements IStorageBlock {
         this.storageMode = storageMode;
         this.capacityPerBlock = capacityPerBlock;
         this.dir = dir;
+        this.recordFormat = config.isCrashRecovery();
+        if (config.isTiering() && storageMode == StorageMode.PureFile) {
+            throw new IllegalArgumentException("tiering needs the memory blocks of MemoryMappedPlusFile or OffHeapPlusFile mode!");
+        }
+        this.tiering = config.isTiering();
+        if (config.isFifoRing() && (config.getMaxBytes() <= 0 || config.isTiering() || config.isCrashRecovery())) {
+            throw new IllegalArgumentException("fifoRing needs maxBytes, and can't be used with tiering or crashRecovery!");
+        }
+        this.fifoRing = config.isFifoRing();
+        this.preallocatedBlockCount = config.getPreallocatedBlockCount();
+        this.expiryBucketInterval = config.getExpiryBucketInterval();
+        this.expiryBucketCount = config.getExpiryBucketCount();
+        if (config.getWriteBufferSize() > 0 && config.isAsyncIo()) {
+            throw new IllegalArgumentException("the writes to the async file blocks can't be buffered!");
+        }
+        this.config = config;
+        this.flushed = config.getWriteBufferSize() > 0
+                || (config.isSharedMapping() && storageMode == StorageMode.MemoryMappedPlusFile);
+        int activeBlockCount = config.getActiveBlockCount();
+        if (config.getMaxBytes() > 0) {
+            if (config.getMaxBytes() / capacityPerBlock < activeBlockCount + 1) {
+                throw new IllegalArgumentException("maxBytes must allow at least one block more than the active ones!");
+            }
+            this.maxBlockCount = (int) Math.min(config.getMaxBytes() / capacityPerBlock, Integer.MAX_VALUE);
+        } else {
+            this.maxBlockCount = Integer.MAX_VALUE;
+        }
+
+        int restoredBlockCount = 0;
+        if (restoredBlocks != null) {
+            restoredBlockCount = this.restoreBlocks(restoredBlocks);
+            this.deleteUnusedDataFiles();
+        }
 
-        for (int i = 0; i < initialNumberOfBlocks; i++) {
-            IStorageBlock storageBlock = this.createNewBlock(i);
+        int nextIndex = this.blocks.length;
+        int newBlockCount = Math.max(Math.min(initialNumberOfBlocks, this.maxBlockCount) - restoredBlockCount,
+                activeBlockCount);
+        for (int i = 0; i < newBlockCount; i++) {
+            IStorageBlock storageBlock = this.createNewBlock(nextIndex + i);
             freeBlocks.offer(storageBlock);
         }
 
-        this.blockCount.set(initialNumberOfBlocks);
-        this.activeBlock = freeBlocks.poll();
-        this.usedBlocks.add(this.activeBlock);
+        this.blockCount.set(nextIndex + newBlockCount);
+        this.activeBlocks = new AtomicReferenceArray<IStorageBlock>(activeBlockCount);
+        this.activeBlockChangeLocks = new Lock[activeBlockCount];
+        for (int i = 0; i < activeBlockCount; i++) {
+            this.activeBlockChangeLocks[i] = new ReentrantLock();
+            this.activate(i, freeBlocks.poll());
+        }
+
+    }
+
+    /**
+     * Reopens the given blocks as used blocks.
+     *
+     * @param restoredBlocks the blocks to reopen
+     * @return the number of blocks restored
+     */
+    private int restoreBlocks(List<BlockInfo> restoredBlocks) throws IOException {
+        for (BlockInfo info : restoredBlocks) {
+            // the block file holds all the data, so a block can always fall back to the file mode.
+            StorageMode mode = info.getStorageMode();
+            if (mode != StorageMode.PureFile && this.allowedOffHeapModeBlockCount > 0) {
+                this.allowedOffHeapModeBlockCount--;
+            } else {
+                mode = StorageMode.PureFile;
+            }
+            StorageBlock block = new StorageBlock(info, this.capacityPerBlock, mode, this.recordFormat, this.config);
+            this.registerBlock(block);
+            this.usedBlocks.add(block);
+        }
+        return restoredBlocks.size();
+    }
 
+    /**
+     * Deletes the data files left in the directory which belong to none of the restored blocks.
+     */
+    private void deleteUnusedDataFiles() throws IOException {
+        Set<String> filesInUse = new HashSet<String>();
+        for (StorageBlock block : this.blocks) {
+            if (block != null) {
+                filesInUse.add(block.getFile().getCanonicalPath());
+            }
+        }
+        File[] files = new File(this.dir).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(IStorage.DATA_FILE_SUFFIX) && !filesInUse.contains(file.getCanonicalPath())) {
+                FileUtil.deleteFile(file);
+            }
+        }
+    }
+
+    /**
+     * Writes all the blocks in use to their files and records them in the checkpoint.
+     *
+     * Should only be called when there is no more operations on the storage, e.g. on close.
+     *
+     * @param out the checkpoint
+     */
+    public void checkpoint(DataOutput out) throws IOException {
+        List<StorageBlock> blocksInUse = new ArrayList<StorageBlock>();
+        for(IStorageBlock block : usedBlocks) {
+            blocksInUse.add((StorageBlock) block);
+        }
+        out.writeInt(blocksInUse.size());
+        for(StorageBlock block : blocksInUse) {
+            block.checkpointInfo().write(out);
+        }
+    }
+
+    /**
+     * Reads the blocks recorded by {@link #checkpoint(DataOutput)}.
+     *
+     * @param in the checkpoint
+     * @return the blocks to reopen
+     */
+    public static List<BlockInfo> readCheckpoint(DataInput in) throws IOException {
+        int count = in.readInt();
+        List<BlockInfo> blockInfos = new ArrayList<BlockInfo>(count);
+        for (int i = 0; i < count; i++) {
+            blockInfos.add(BlockInfo.read(in));
+        }
+        return blockInfos;
+    }
+
+    /**
+     * Gets the storage block with the given index.
+     *
+     * @param index the block index
+     * @return the storage block, null if no such block
+     */
+    public StorageBlock getBlock(int index) {
+        StorageBlock[] current = this.blocks;
+        return index >= 0 && index < current.length ? current[index] : null;
+    }
+
+    /**
+     * Gets the blocks in use whose dirty ratio is above the threshold, except the ones of the expiry buckets.
+     *
+     * @param dirtyRatioThreshold the threshold of the dirty ratio
+     * @return the dirty blocks
+     */
+    public List<StorageBlock> getDirtyBlocks(double dirtyRatioThreshold) {
+        List<StorageBlock> dirtyBlocks = new ArrayList<StorageBlock>();
+        for (IStorageBlock storageBlock : usedBlocks) {
+            if (storageBlock instanceof StorageBlock && storageBlock.getDirtyRatio() > dirtyRatioThreshold
+                    && !expiringBlocks.contains(storageBlock)) { // left to the expiration
+                dirtyBlocks.add((StorageBlock) storageBlock);
+            }
+        }
+        return dirtyBlocks;
+    }
+
+    private void registerBlock(StorageBlock block) {
+        StorageBlock[] current = this.blocks;
+        if (block.getIndex() >= current.length) {
+            current = Arrays.copyOf(current, Math.max(block.getIndex() + 1, current.length * 2));
+        } else {
+            current = current.clone();
+        }
+        current[block.getIndex()] = block;
+        this.blocks = current;
     }
 
     @Override
@@ -115,24 +425,31 @@ public class StorageManager implements IStorageBlock {
         pointer.getStorageBlock().removeLight(pointer);
     }
 
+    /**
+     * Stores the payload to the active block of the thread, switching to a free block if it overflows.
+     *
+     * @param payload the payload
+     * @return the pointer, or null if the max bytes of the storage are used up
+     */
     @Override
     public Pointer store(byte[] payload) throws IOException {
-        Pointer pointer = activeBlock.store(payload);
+        int shard = shard();
+        Pointer pointer = activeBlocks.get(shard).store(payload);
         if (pointer != null) return pointer; // success
         else { // overflow
+            Lock activeBlockChangeLock = activeBlockChangeLocks[shard];
             activeBlockChangeLock.lock();
             try {
                 // other thread may have changed the active block
-                pointer = activeBlock.store(payload);
+                pointer = activeBlocks.get(shard).store(payload);
                 if (pointer != null) return pointer; // success
                 else { // still overflow
-                    IStorageBlock freeBlock = this.freeBlocks.poll();
-                    if (freeBlock == null) { // create a new one
-                        freeBlock = this.createNewBlock(this.blockCount.getAndIncrement());
+                    IStorageBlock freeBlock = this.nextFreeBlock();
+                    if (freeBlock == null) { // the max bytes used up
+                        return null;
                     }
                     pointer = freeBlock.store(payload);
-                    this.activeBlock = freeBlock;
-                    this.usedBlocks.add(this.activeBlock);
+                    this.activate(shard, freeBlock);
                     return pointer;
                 }
 
@@ -142,25 +459,116 @@ public class StorageManager implements IStorageBlock {
         }
     }
 
+    @Override
+    public Pointer store(ReadableByteChannel source, int length) throws IOException {
+        // nothing is read from the source unless the block has enough storage
+        int shard = shard();
+        Pointer pointer = activeBlocks.get(shard).store(source, length);
+        if (pointer != null) return pointer; // success
+        else { // overflow
+            Lock activeBlockChangeLock = activeBlockChangeLocks[shard];
+            activeBlockChangeLock.lock();
+            try {
+                // other thread may have changed the active block
+                pointer = activeBlocks.get(shard).store(source, length);
+                if (pointer != null) return pointer; // success
+                else { // still overflow
+                    IStorageBlock freeBlock = this.nextFreeBlock();
+                    if (freeBlock == null) { // the max bytes used up, nothing is read from the source
+                        return null;
+                    }
+                    // switch first, the block is kept in use even if the source fails
+                    this.activate(shard, freeBlock);
+                    return freeBlock.store(source, length);
+                }
+
+            } finally {
+                activeBlockChangeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Stores the payload expiring at the given time to the active block of its expiry bucket, see
+     * {@link CacheConfig#setExpiryBucketInterval(long)}, switching to a free block if it overflows. The payload is
+     * stored as usual if it's not grouped, or no free block is left for its bucket.
+     *
+     * @param payload the payload
+     * @param expireTime the absolute expire time in milliseconds, -1 for never
+     * @return the pointer, or null if the max bytes of the storage are used up
+     */
+    public Pointer store(byte[] payload, long expireTime) throws IOException {
+        long bucket = this.expiryBucketOf(expireTime);
+        if (bucket < 0) {
+            return store(payload);
+        }
+        IStorageBlock bucketBlock = this.expiryBuckets.get(bucket);
+        if (bucketBlock != null) {
+            Pointer pointer = bucketBlock.store(payload);
+            if (pointer != null) return pointer; // success
+        }
+        this.expiryBucketChangeLock.lock();
+        try {
+            // other thread may have changed the block of the bucket
+            bucketBlock = this.expiryBuckets.get(bucket);
+            if (bucketBlock != null) {
+                Pointer pointer = bucketBlock.store(payload);
+                if (pointer != null) return pointer; // success
+            }
+            IStorageBlock freeBlock = this.nextFreeBlock();
+            if (freeBlock == null) { // the max bytes used up, mixed with the others if there's still room
+                return store(payload);
+            }
+            Pointer pointer = freeBlock.store(payload);
+            this.expiringBlocks.add(freeBlock);
+            retire(this.expiryBuckets.put(bucket, freeBlock));
+            this.usedBlocks.add(freeBlock);
+            return pointer;
+        } finally {
+            this.expiryBucketChangeLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the expiry bucket of the expire time.
+     *
+     * @return the bucket, or -1 if not grouped
+     */
+    private long expiryBucketOf(long expireTime) {
+        if (this.expiryBucketInterval == 0 || expireTime <= 0) {
+            return -1;
+        }
+        long bucket = expireTime / this.expiryBucketInterval;
+        long currentBucket = System.currentTimeMillis() / this.expiryBucketInterval;
+        return bucket - currentBucket < this.expiryBucketCount ? bucket : -1;
+    }
+
     /**
      * Stores the payload to the free storage block excluding the given block.
      *
      * @param payload the payload
      * @param exludingBlock the storage block to be excluded
-     * @return the pointer
+     * @return the pointer, or null if the max bytes of the storage are used up
      */
     public Pointer storeExcluding(byte[] payload, StorageBlock exludingBlock) throws IOException {
-        while (this.activeBlock == exludingBlock) {
+        if (tiering && isMemoryBlock(exludingBlock)) { // kept in memory if possible
+            Pointer pointer = storeInMemoryExcluding(payload, exludingBlock);
+            if (pointer != null) {
+                return pointer;
+            }
+        }
+        int shard = shard();
+        while (this.activeBlocks.get(shard) == exludingBlock) {
+            Lock activeBlockChangeLock = activeBlockChangeLocks[shard];
             activeBlockChangeLock.lock();
             try {
                 // other thread may have changed the active block
-                if (this.activeBlock != exludingBlock) break;
-                IStorageBlock freeBlock = this.freeBlocks.poll();
-                if (freeBlock == null) {
-                    freeBlock = this.createNewBlock(this.blockCount.getAndIncrement());
+                if (this.activeBlocks.get(shard) != exludingBlock) break;
+                IStorageBlock freeBlock = this.nextFreeBlock();
+                if (freeBlock == null) { // the max bytes used up
+                    return null;
                 }
-                this.activeBlock = freeBlock;
-                this.usedBlocks.add(this.activeBlock);
+                this.activate(shard, freeBlock);
             } finally {
                 activeBlockChangeLock.unlock();
             }
@@ -168,6 +576,159 @@ public class StorageManager implements IStorageBlock {
         return store(payload);
     }
 
+    /**
+     * Stores the payload to the active memory block when tiering, switching to a free memory block if it overflows.
+     *
+     * @param payload the payload
+     * @return the pointer, or null if no memory block is left or the max bytes of the storage are used up
+     */
+    public Pointer storeInMemory(byte[] payload) throws IOException {
+        return storeInMemoryExcluding(payload, null);
+    }
+
+    private Pointer storeInMemoryExcluding(byte[] payload, StorageBlock exludingBlock) throws IOException {
+        if (!tiering) {
+            return null;
+        }
+        IStorageBlock memoryBlock = activeMemoryBlock;
+        if (memoryBlock != null && memoryBlock != exludingBlock) {
+            Pointer pointer = memoryBlock.store(payload);
+            if (pointer != null) return pointer; // success
+        }
+        activeMemoryBlockChangeLock.lock();
+        try {
+            // other thread may have changed the active memory block
+            IStorageBlock current = activeMemoryBlock;
+            if (current != null && current != memoryBlock && current != exludingBlock) {
+                Pointer pointer = current.store(payload);
+                if (pointer != null) return pointer; // success
+            }
+            IStorageBlock freeBlock = this.nextFreeMemoryBlock();
+            if (freeBlock == null) { // no memory left
+                return null;
+            }
+            Pointer pointer = freeBlock.store(payload);
+            this.activeMemoryBlock = freeBlock;
+            retire(current);
+            this.usedBlocks.add(freeBlock);
+            return pointer;
+        } finally {
+            activeMemoryBlockChangeLock.unlock();
+        }
+    }
+
+    /**
+     * Is the block one of the memory blocks, which are kept for the hot data when tiering.
+     *
+     * @param block the block
+     * @return true if the data of the block is in memory
+     */
+    public boolean isMemoryBlock(IStorageBlock block) {
+        return block instanceof StorageBlock && ((StorageBlock) block).getStorageMode() != StorageMode.PureFile;
+    }
+
+    /**
+     * Checks whether the memory blocks are kept for the hot data.
+     *
+     * @return true if tiering
+     */
+    public boolean isTiering() {
+        return tiering;
+    }
+
+    /**
+     * Gets the storage mode, the blocks beyond the max off-heap memory size are pure files though.
+     *
+     * @return the storage mode
+     */
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    /**
+     * Gets the blocks in use, the active ones included.
+     *
+     * @return the blocks
+     */
+    public List<StorageBlock> getUsedBlocks() {
+        List<StorageBlock> blocksInUse = new ArrayList<StorageBlock>();
+        for (IStorageBlock storageBlock : usedBlocks) {
+            if (storageBlock instanceof StorageBlock) {
+                blocksInUse.add((StorageBlock) storageBlock);
+            }
+        }
+        return blocksInUse;
+    }
+
+    /**
+     * Picks the active block of the current thread, a thread keeps appending to the same block.
+     */
+    private int shard() {
+        return (int) (Thread.currentThread().getId() % activeBlocks.length());
+    }
+
+    // called during construction or with the active storage block change lock of the shard held.
+    private void activate(int shard, IStorageBlock block) {
+        retire(this.activeBlocks.getAndSet(shard, block));
+        this.usedBlocks.add(block);
+    }
+
+    /**
+     * Retires the block no longer active, see {@link StorageBlock#retire()}.
+     *
+     * @param block the block, or null
+     */
+    private static void retire(IStorageBlock block) {
+        if (block instanceof StorageBlock) {
+            ((StorageBlock) block).retire();
+        }
+    }
+
+    /**
+     * Is the block one of the active blocks, which are appended to.
+     *
+     * @param block the block
+     * @return true if active
+     */
+    public boolean isActive(IStorageBlock block) {
+        if (block == activeMemoryBlock) {
+            return true;
+        }
+        for (int i = 0; i < activeBlocks.length(); i++) {
+            if (activeBlocks.get(i) == block) {
+                return true;
+            }
+        }
+        return expiryBuckets.containsValue(block);
+    }
+
+    /**
+     * Updates the payload expiring at the given time, which is moved to the block of its expiry bucket if grouped,
+     * see {@link #store(byte[], long)}, rather than updated in place. Neither is a payload in the block of an expiry
+     * bucket updated in place, unless it expires within the bucket, as the block would not be emptied by expiration.
+     *
+     * @param pointer the pointer of the payload
+     * @param payload the new payload
+     * @param expireTime the absolute expire time in milliseconds, -1 for never
+     * @return the new pointer, or null if the max bytes of the storage are used up, the old payload is removed then
+     */
+    public Pointer update(Pointer pointer, byte[] payload, long expireTime) throws IOException {
+        long bucket = this.expiryBucketOf(expireTime);
+        if (bucket < 0 && !this.expiringBlocks.contains(pointer.getStorageBlock())) {
+            return update(pointer, payload);
+        }
+        if (bucket >= 0 && this.expiryBuckets.get(bucket) == pointer.getStorageBlock()) {
+            // in the block of its bucket already
+            Pointer updatePointer = pointer.getStorageBlock().update(pointer, payload);
+            if (updatePointer != null) {
+                return updatePointer;
+            }
+            return store(payload, expireTime); // removed by the update
+        }
+        this.removeLight(pointer);
+        return store(payload, expireTime);
+    }
+
     @Override
     public Pointer update(Pointer pointer, byte[] payload) throws IOException {
         Pointer updatePointer = pointer.getStorageBlock().update(pointer, payload);
@@ -189,7 +750,9 @@ public class StorageManager implements IStorageBlock {
     private Set<IStorageBlock> getAllInUsedBlocks() {
         Set<IStorageBlock> allBlocks = new HashSet<IStorageBlock>();
         allBlocks.addAll(usedBlocks);
+        allBlocks.addAll(droppedBlocks);
         allBlocks.addAll(freeBlocks);
+        allBlocks.addAll(freeMemoryBlocks);
         return allBlocks;
     }
 
@@ -222,54 +785,425 @@ public class StorageManager implements IStorageBlock {
         // safe?
         for(IStorageBlock storageBlock : usedBlocks) {
             storageBlock.free();
-            this.freeBlocks.offer(storageBlock);
+            this.freeBlocksOf(storageBlock).offer(storageBlock);
         }
         usedBlocks.clear();
-        this.activeBlock = freeBlocks.poll();
-        this.usedBlocks.add(this.activeBlock);
+        for(IStorageBlock storageBlock : droppedBlocks) {
+            storageBlock.free();
+            this.freeBlocksOf(storageBlock).offer(storageBlock);
+        }
+        droppedBlocks.clear();
+        droppedBlockIndexes.clear();
+        activeMemoryBlock = null;
+        expiryBuckets.clear();
+        expiringBlocks.clear();
+        for (int i = 0; i < activeBlocks.length(); i++) {
+            this.activeBlocks.set(i, null); // freed above, not to be retired
+            this.activate(i, freeBlocks.poll());
+        }
     }
 
+    // called with an active storage block change lock held.
+    private IStorageBlock nextFreeBlock() throws IOException {
+        IStorageBlock freeBlock = this.freeBlocks.poll();
+        if (freeBlock != null) {
+            return freeBlock;
+        }
+        blockAllocationLock.lock();
+        try {
+            freeBlock = this.freeBlocks.poll(); // may be freed meanwhile
+            if (freeBlock == null && this.blockCount.get() < this.maxBlockCount) { // create a new one
+                freeBlock = this.createNextBlock(this.nextBlockMode());
+            }
+            if (freeBlock == null && this.fifoRing) {
+                freeBlock = this.dropOldestBlock();
+            }
+            return freeBlock;
+        } finally {
+            blockAllocationLock.unlock();
+        }
+    }
+
+    // called with the active memory block change lock held.
+    private IStorageBlock nextFreeMemoryBlock() throws IOException {
+        IStorageBlock freeBlock = this.freeMemoryBlocks.poll();
+        if (freeBlock != null) {
+            return freeBlock;
+        }
+        blockAllocationLock.lock();
+        try {
+            freeBlock = this.freeMemoryBlocks.poll(); // may be freed meanwhile
+            if (freeBlock == null && this.allowedOffHeapModeBlockCount > 0
+                    && this.blockCount.get() < this.maxBlockCount) { // create a new one
+                freeBlock = this.createNextBlock(this.storageMode);
+            }
+            return freeBlock;
+        } finally {
+            blockAllocationLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the queue a freed block goes back to.
+     */
+    private Queue<IStorageBlock> freeBlocksOf(IStorageBlock block) {
+        return tiering && isMemoryBlock(block) ? freeMemoryBlocks : freeBlocks;
+    }
+
+    /**
+     * Is the storage out of blocks, a new active block can't be created without exceeding the max bytes.
+     *
+     * @return true if a block has to be freed for the storage to grow
+     */
+    public boolean isFull() {
+        return !this.fifoRing && this.freeBlocks.isEmpty() && this.blockCount.get() >= this.maxBlockCount;
+    }
+
+    /**
+     * Gets the blocks in use which could be freed by removing their payloads, i.e. neither the active block nor
+     * the leased ones.
+     *
+     * @return the blocks
+     */
+    public List<StorageBlock> getInactiveBlocks() {
+        List<StorageBlock> inactiveBlocks = new ArrayList<StorageBlock>();
+        for (IStorageBlock storageBlock : usedBlocks) {
+            if (!isActive(storageBlock) && storageBlock instanceof StorageBlock && !isLeased(storageBlock)) {
+                inactiveBlocks.add((StorageBlock) storageBlock);
+            }
+        }
+        return inactiveBlocks;
+    }
+
+    // called during construction.
     private IStorageBlock createNewBlock(int index) throws IOException {
-        if (this.allowedOffHeapModeBlockCount > 0) {
-            IStorageBlock block = new StorageBlock(this.dir, index, this.capacityPerBlock, this.storageMode);
+        return createNewBlock(index, this.nextBlockMode());
+    }
+
+    // called during construction or with the blockAllocationLock held.
+    private StorageMode nextBlockMode() {
+        // the memory blocks are kept for the hot data when tiering
+        if (this.allowedOffHeapModeBlockCount > 0 && !this.tiering) {
+            return this.storageMode;
+        }
+        return StorageMode.PureFile;
+    }
+
+    /**
+     * Creates free blocks ahead until the preallocated block count are ready, see
+     * {@link CacheConfig#setPreallocatedBlockCount(int)}, so the writers rolling over to a free block rarely have
+     * to create one.
+     *
+     * The index and mode of a block are taken with the block allocation lock held, but the block is created and
+     * prefaulted without it, so the writers taking a free block meanwhile are not held up.
+     *
+     * @throws IOException
+     */
+    public void provision() throws IOException {
+        while (this.freeBlocks.size() < this.preallocatedBlockCount) {
+            int index;
+            StorageMode mode;
+            blockAllocationLock.lock();
+            try {
+                if (this.blockCount.get() >= this.maxBlockCount) {
+                    return;
+                }
+                index = this.nextBlockIndex();
+                mode = this.nextBlockMode();
+                if (mode != StorageMode.PureFile) {
+                    this.allowedOffHeapModeBlockCount--;
+                }
+            } finally {
+                blockAllocationLock.unlock();
+            }
+            StorageBlock block = null;
+            try {
+                block = new StorageBlock(this.dir, index, this.capacityPerBlock, mode, this.recordFormat,
+                        this.config);
+                block.prefault();
+                blockAllocationLock.lock();
+                try {
+                    this.registerBlock(block);
+                } finally {
+                    blockAllocationLock.unlock();
+                }
+            } catch (IOException | RuntimeException e) {
+                this.discardBlock(block, index, mode);
+                throw e;
+            }
+            this.freeBlocks.offer(block);
+        }
+    }
+
+    /**
+     * Creates a new block with the next index, the index and the mode are given back if failed, as by
+     * {@link #provision()}.
+     *
+     * @param mode the block mode
+     * @return the block
+     * @throws IOException
+     */
+    // called with the blockAllocationLock held.
+    private StorageBlock createNextBlock(StorageMode mode) throws IOException {
+        int index = this.nextBlockIndex();
+        if (mode != StorageMode.PureFile) {
             this.allowedOffHeapModeBlockCount--;
+        }
+        StorageBlock block = null;
+        try {
+            block = new StorageBlock(this.dir, index, this.capacityPerBlock, mode, this.recordFormat, this.config);
+            this.registerBlock(block);
             return block;
-        } else {
-            return new StorageBlock(this.dir, index, this.capacityPerBlock, StorageMode.PureFile);
+        } catch (IOException | RuntimeException e) {
+            this.discardBlock(block, index, mode);
+            throw e;
+        }
+    }
+
+    /**
+     * Discards the block failed to be created, giving back its index and mode.
+     *
+     * @param block the block, or null if not constructed
+     * @param index the block index
+     * @param mode the block mode
+     */
+    private void discardBlock(StorageBlock block, int index, StorageMode mode) {
+        if (block != null) {
+            try {
+                block.close();
+                FileUtil.deleteFile(block.getFile());
+            } catch (IOException | IllegalStateException e) {
+                // failed anyway
+            }
+        }
+        this.abandonBlockIndex(index, mode);
+    }
+
+    /**
+     * Takes the index of a new block, an abandoned one first, counting the block.
+     *
+     * @return the block index
+     */
+    // called with the blockAllocationLock held.
+    private int nextBlockIndex() {
+        Integer index = this.abandonedBlockIndexes.poll();
+        if (index != null) {
+            this.blockCount.incrementAndGet();
+            return index;
+        }
+        return this.blockCount.getAndIncrement();
+    }
+
+    /**
+     * Gives back the index and the mode of a block failed to be created, so they are not used up by the failures.
+     *
+     * @param index the block index
+     * @param mode the block mode
+     */
+    private void abandonBlockIndex(int index, StorageMode mode) {
+        blockAllocationLock.lock();
+        try {
+            if (this.blockCount.decrementAndGet() != index) { // a greater index has been taken meanwhile
+                this.abandonedBlockIndexes.offer(index);
+            }
+            if (mode != StorageMode.PureFile) {
+                this.allowedOffHeapModeBlockCount++;
+            }
+        } finally {
+            blockAllocationLock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether free blocks are kept ready by {@link #provision()}.
+     *
+     * @return true if the blocks are preallocated
+     */
+    public boolean isPreallocating() {
+        return preallocatedBlockCount > 0;
+    }
+
+    // called during construction.
+    private StorageBlock createNewBlock(int index, StorageMode mode) throws IOException {
+        StorageBlock block = new StorageBlock(this.dir, index, this.capacityPerBlock, mode, this.recordFormat,
+                this.config);
+        if (mode != StorageMode.PureFile) {
+            this.allowedOffHeapModeBlockCount--;
         }
+        this.registerBlock(block);
+        return block;
     }
 
     // only run by one thread.
     public void clean() {
         synchronized (this) {
+            // the blocks of the expiry buckets passed are appended to no more
+            long currentBucket = expiryBucketInterval == 0 ? 0 : System.currentTimeMillis() / expiryBucketInterval;
+            Iterator<Map.Entry<Long, IStorageBlock>> buckets = expiryBuckets.entrySet().iterator();
+            while (buckets.hasNext()) {
+                Map.Entry<Long, IStorageBlock> bucket = buckets.next();
+                if (bucket.getKey() < currentBucket) {
+                    buckets.remove();
+                    retire(bucket.getValue());
+                }
+            }
+
             Iterator<IStorageBlock> it = usedBlocks.iterator();
             while(it.hasNext()) {
                 IStorageBlock storageBlock = it.next();
-                if (storageBlock == activeBlock) {
+                if (isActive(storageBlock)) {
                     // let active block be cleaned in the next run
                     continue;
                 }
 
-                if (storageBlock.getUsed() == 0) {
+                if (storageBlock.getUsed() == 0 && !isLeased(storageBlock)) {
                     // we will not allocating memory from it any more and it is used by nobody.
                     storageBlock.free();
-                    freeBlocks.add(storageBlock);
+                    expiringBlocks.remove(storageBlock);
+                    freeBlocksOf(storageBlock).add(storageBlock);
                     it.remove();
                 }
             }
+
+            // the dropped blocks released since
+            Iterator<IStorageBlock> dropped = droppedBlocks.iterator();
+            while(dropped.hasNext()) {
+                IStorageBlock storageBlock = dropped.next();
+                if (!isLeased(storageBlock)) {
+                    storageBlock.free();
+                    freeBlocksOf(storageBlock).add(storageBlock);
+                    dropped.remove();
+                }
+            }
         }
     }
 
+    /**
+     * Drops the oldest block in use but the active ones, the pointers to its payloads turn stale, see
+     * {@link Pointer#isStale()}. A block still leased is left to {@link #clean()}, and the next oldest one is
+     * dropped for reuse.
+     *
+     * @return the dropped block freed for reuse, or null if none
+     */
+    // called with the block allocation lock held.
+    private IStorageBlock dropOldestBlock() {
+        synchronized (this) {
+            Iterator<IStorageBlock> it = usedBlocks.iterator();
+            while(it.hasNext()) {
+                IStorageBlock storageBlock = it.next();
+                if (isActive(storageBlock)) {
+                    continue;
+                }
+                it.remove();
+                expiringBlocks.remove(storageBlock);
+                ((StorageBlock) storageBlock).invalidate();
+                droppedBlockIndexes.add(storageBlock.getIndex());
+                if (!isLeased(storageBlock)) {
+                    storageBlock.free();
+                    return storageBlock;
+                }
+                droppedBlocks.add(storageBlock); // read meanwhile
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Takes the indexes of the blocks dropped since the last call, whose entries are left to be swept from the index.
+     *
+     * @return the block indexes
+     */
+    public List<Integer> pollDroppedBlockIndexes() {
+        List<Integer> indexes = new ArrayList<Integer>();
+        Integer index;
+        while ((index = droppedBlockIndexes.poll()) != null) {
+            indexes.add(index);
+        }
+        return indexes;
+    }
+
+    /**
+     * Checks whether the oldest block is dropped when the max bytes are used up.
+     *
+     * @return true if a FIFO ring
+     */
+    public boolean isFifoRing() {
+        return fifoRing;
+    }
+
+    private boolean isLeased(IStorageBlock storageBlock) {
+        return storageBlock instanceof StorageBlock && ((StorageBlock) storageBlock).isLeased();
+    }
+
+    /**
+     * Writes the bytes buffered by the blocks in use to their files, see {@link CacheConfig#setWriteBufferSize(int)},
+     * and forces the shared mappings to disk, see {@link CacheConfig#setSharedMapping(boolean)}.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        if (!this.flushed) {
+            return;
+        }
+        this.lastFlushTime = System.currentTimeMillis();
+        for (IStorageBlock storageBlock : usedBlocks) {
+            if (storageBlock instanceof StorageBlock) {
+                ((StorageBlock) storageBlock).flush();
+            }
+        }
+    }
+
+    /**
+     * Flushes all the blocks in use once the flush interval is over, and before that the shared mappings written
+     * the flush bytes to, see {@link CacheConfig#setFlushInterval(long)} and {@link CacheConfig#setFlushBytes(long)}.
+     *
+     * @throws IOException
+     */
+    public void flushDue() throws IOException {
+        if (!this.flushed) {
+            return;
+        }
+        if (System.currentTimeMillis() - this.lastFlushTime >= this.config.getFlushInterval()) {
+            this.flush();
+            return;
+        }
+        if (this.config.getFlushBytes() > 0) {
+            for (IStorageBlock storageBlock : usedBlocks) {
+                if (storageBlock instanceof StorageBlock
+                        && ((StorageBlock) storageBlock).getUnflushed() >= this.config.getFlushBytes()) {
+                    ((StorageBlock) storageBlock).flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether the blocks have to be flushed, see {@link #flushDue()}.
+     *
+     * @return true if the blocks buffer their writes or write them through shared mappings
+     */
+    public boolean isFlushed() {
+        return flushed;
+    }
+
     @Override
     public void close() throws IOException {
         for(IStorageBlock usedBlock : usedBlocks) {
             usedBlock.close();
         }
         usedBlocks.clear();
+        for(IStorageBlock droppedBlock : droppedBlocks) {
+            droppedBlock.close();
+        }
+        droppedBlocks.clear();
         for(IStorageBlock freeBlock : freeBlocks) {
             freeBlock.close();
         }
         freeBlocks.clear();
+        for(IStorageBlock freeBlock : freeMemoryBlocks) {
+            freeBlock.close();
+        }
+        freeMemoryBlocks.clear();
     }
 
     @Override
@@ -282,8 +1216,12 @@ public class StorageManager implements IStorageBlock {
         throw new IllegalStateException("Not implemented!");
     }
 
+    public long getCapacityPerBlock() {
+        return this.capacityPerBlock;
+    }
+
     public int getFreeBlockCount() {
-        return this.freeBlocks.size();
+        return this.freeBlocks.size() + this.freeMemoryBlocks.size();
     }
 
     public int getUsedBlockCount() {
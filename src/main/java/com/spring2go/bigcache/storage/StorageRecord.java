@@ -0,0 +1,221 @@
+package com.spring2go.bigcache.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * The self-describing layout of a cached entry in a storage block, which makes it possible
+ * to find out which key owns which range of a block without the in memory index.
+ *
+ * A record is laid out as header + key + value, the header is:
+ * <pre>
+ *  0  int  magic
+ *  4  int  generation of the storage block, see {@link StorageBlock#free()}
+ *  8  int  flags, e.g. tombstone
+ * 12  int  key length
+ * 16  int  value length
+ * 20  long sequence, the newer record of a key has the bigger sequence
+ * 28  long time to idle in milliseconds
+ * 36  long expire time in milliseconds, non positive means never expire
+ * 44  int  crc32 of bytes [12, 44) of the header plus the key and the value
+ * </pre>
+ *
+ * The generation and flags are excluded from the checksum, as they are written by the storage block.
+ */
+public class StorageRecord {
+    /** The size of the record header. */
+    public static final int HEADER_SIZE = 48;
+
+    /** The magic number at the beginning of each record. */
+    public static final int MAGIC = 0x5245434F;
+
+    /** The flag of a removed record. */
+    public static final int FLAG_TOMBSTONE = 1;
+
+    static final int GENERATION_OFFSET = 4;
+    static final int FLAGS_OFFSET = 8;
+    private static final int KEY_LENGTH_OFFSET = 12;
+    private static final int VALUE_LENGTH_OFFSET = 16;
+    private static final int SEQUENCE_OFFSET = 20;
+    private static final int TIME_TO_IDLE_OFFSET = 28;
+    private static final int EXPIRE_TIME_OFFSET = 36;
+    private static final int CRC_OFFSET = 44;
+
+    private final int generation;
+    private final int flags;
+    private final byte[] key;
+    private final int valueLength;
+    private final long sequence;
+    private final long timeToIdle;
+    private final long expireTime;
+
+    private StorageRecord(int generation, int flags, byte[] key, int valueLength, long sequence,
+                          long timeToIdle, long expireTime) {
+        this.generation = generation;
+        this.flags = flags;
+        this.key = key;
+        this.valueLength = valueLength;
+        this.sequence = sequence;
+        this.timeToIdle = timeToIdle;
+        this.expireTime = expireTime;
+    }
+
+    /**
+     * Encodes a record, the generation is filled in by the storage block when it is stored.
+     *
+     * @param key the key bytes
+     * @param value the value
+     * @param sequence the sequence
+     * @param timeToIdle the time to idle in milliseconds
+     * @param expireTime the expire time in milliseconds
+     * @return the record bytes
+     */
+    public static byte[] encode(byte[] key, byte[] value, long sequence, long timeToIdle, long expireTime) {
+        byte[] record = new byte[HEADER_SIZE + key.length + value.length];
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(KEY_LENGTH_OFFSET, key.length);
+        buffer.putInt(VALUE_LENGTH_OFFSET, value.length);
+        buffer.putLong(SEQUENCE_OFFSET, sequence);
+        buffer.putLong(TIME_TO_IDLE_OFFSET, timeToIdle);
+        buffer.putLong(EXPIRE_TIME_OFFSET, expireTime);
+        System.arraycopy(key, 0, record, HEADER_SIZE, key.length);
+        System.arraycopy(value, 0, record, HEADER_SIZE + key.length, value.length);
+        buffer.putInt(CRC_OFFSET, checksum(record, key.length + value.length));
+        return record;
+    }
+
+    /**
+     * Gets the value of an encoded record.
+     *
+     * @param record the record bytes
+     * @return the value
+     */
+    public static byte[] getValue(byte[] record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        int keyLength = buffer.getInt(KEY_LENGTH_OFFSET);
+        byte[] value = new byte[buffer.getInt(VALUE_LENGTH_OFFSET)];
+        System.arraycopy(record, HEADER_SIZE + keyLength, value, 0, value.length);
+        return value;
+    }
+
+    /**
+     * Gets the offset of the value within a record kept in a storage block.
+     *
+     * @param block the storage block
+     * @param position the position of the record
+     * @return the offset of the value from the beginning of the record
+     * @throws IOException
+     */
+    public static int getValueOffset(StorageBlock block, long position) throws IOException {
+        byte[] keyLength = block.retrieve(position + KEY_LENGTH_OFFSET, 4);
+        return HEADER_SIZE + ByteBuffer.wrap(keyLength).getInt();
+    }
+
+    /**
+     * Sets the generation of an encoded record.
+     *
+     * @param record the record bytes
+     * @param generation the generation of the storage block
+     */
+    static void setGeneration(byte[] record, int generation) {
+        ByteBuffer.wrap(record).putInt(GENERATION_OFFSET, generation);
+    }
+
+    /**
+     * Reads the header of a record.
+     *
+     * @param header at least {@link #HEADER_SIZE} bytes from the beginning of a record
+     * @return the record with the key unset, null if it's not a record header
+     */
+    static StorageRecord readHeader(byte[] header) {
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        if (buffer.getInt(0) != MAGIC) {
+            return null;
+        }
+        int keyLength = buffer.getInt(KEY_LENGTH_OFFSET);
+        int valueLength = buffer.getInt(VALUE_LENGTH_OFFSET);
+        if (keyLength <= 0 || valueLength < 0) {
+            return null;
+        }
+        return new StorageRecord(buffer.getInt(GENERATION_OFFSET), buffer.getInt(FLAGS_OFFSET), null, valueLength,
+                buffer.getLong(SEQUENCE_OFFSET), buffer.getLong(TIME_TO_IDLE_OFFSET), buffer.getLong(EXPIRE_TIME_OFFSET));
+    }
+
+    /**
+     * Verifies a whole record read from storage and extracts its key.
+     *
+     * @param record the record bytes
+     * @return the record, null if the record is torn or corrupt
+     */
+    static StorageRecord verify(byte[] record) {
+        StorageRecord header = readHeader(record);
+        if (header == null) {
+            return null;
+        }
+        int keyLength = ByteBuffer.wrap(record).getInt(KEY_LENGTH_OFFSET);
+        if (record.length != HEADER_SIZE + keyLength + header.valueLength) {
+            return null;
+        }
+        if (ByteBuffer.wrap(record).getInt(CRC_OFFSET) != checksum(record, keyLength + header.valueLength)) {
+            return null;
+        }
+        byte[] key = new byte[keyLength];
+        System.arraycopy(record, HEADER_SIZE, key, 0, keyLength);
+        return new StorageRecord(header.generation, header.flags, key, header.valueLength, header.sequence,
+                header.timeToIdle, header.expireTime);
+    }
+
+    /**
+     * Gets the total length of a record from its header.
+     *
+     * @param header the header bytes
+     * @return the record length
+     */
+    static int getRecordLength(byte[] header) {
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        return HEADER_SIZE + buffer.getInt(KEY_LENGTH_OFFSET) + buffer.getInt(VALUE_LENGTH_OFFSET);
+    }
+
+    private static int checksum(byte[] record, int bodyLength) {
+        CRC32 crc = new CRC32();
+        crc.update(record, KEY_LENGTH_OFFSET, CRC_OFFSET - KEY_LENGTH_OFFSET);
+        crc.update(record, HEADER_SIZE, bodyLength);
+        return (int) crc.getValue();
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    public boolean isTombstone() {
+        return (flags & FLAG_TOMBSTONE) != 0;
+    }
+
+    public byte[] getKey() {
+        return key;
+    }
+
+    public int getValueLength() {
+        return valueLength;
+    }
+
+    public int getLength() {
+        return HEADER_SIZE + key.length + valueLength;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimeToIdle() {
+        return timeToIdle;
+    }
+
+    public long getExpireTime() {
+        return expireTime;
+    }
+}
@@ -0,0 +1,288 @@
+package com.spring2go.bigcache.storage;
+
+import static com.spring2go.bigcache.storage.OffHeapStorage.BYTE_ARRAY_OFFSET;
+import static com.spring2go.bigcache.storage.OffHeapStorage.UNSAFE;
+
+import sun.nio.ch.DirectBuffer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * The memory mapped storage copying the bytes at the address of the mapping with Unsafe, as {@link OffHeapStorage}
+ * does, rather than through a duplicate of the mapped buffer per thread like {@link MemoryMappedStorage}. So there
+ * is no state per thread, and no position to set before each copy.
+ *
+ * The mapping lives as long as the storage is referenced, even after it's closed, so a late read of a block being
+ * closed still reads mapped memory. The positions are checked, as Unsafe doesn't.
+ *
+ * A mapping is at most 2GB, so the larger storages are stitched from several mappings of 1GB, and the copies
+ * crossing the end of a mapping are split. The ranges crossing the end of a mapping can't be viewed without copying.
+ *
+ * The file is mapped privately by default, so the writes never reach it. A shared mapping writes through to the
+ * file, and counts the bytes written since it was last forced to disk by {@link #flush()}.
+ */
+public class UnsafeMemoryMappedStorage implements IStorage {
+    /** The mappings are 2^MAPPING_SHIFT bytes, which is 1GB, except the last one. */
+    static final int MAPPING_SHIFT = 30;
+
+    private RandomAccessFile raf;
+    private final MappedByteBuffer[] mappedBuffers;
+    private final long[] addresses;
+    private final int mappingShift;
+    private final long capacity;
+    private final boolean shared;
+
+    /** The bytes written to a shared mapping since it was last forced. */
+    private final LongAdder unflushed = new LongAdder();
+
+    public UnsafeMemoryMappedStorage(String dir, int index, long capacity) throws IOException {
+        this(new File(dir + index + "-" + System.currentTimeMillis() + DATA_FILE_SUFFIX), capacity);
+    }
+
+    /**
+     * Maps the given file, the existing content of the file is visible through the mapping.
+     *
+     * @param file the backing file
+     * @param capacity the capacity
+     * @throws IOException
+     */
+    public UnsafeMemoryMappedStorage(File file, long capacity) throws IOException {
+        this(file, capacity, false);
+    }
+
+    /**
+     * Maps the given file, the existing content of the file is visible through the mapping.
+     *
+     * @param file the backing file
+     * @param capacity the capacity
+     * @param shared whether the writes go through to the file
+     * @throws IOException
+     */
+    public UnsafeMemoryMappedStorage(File file, long capacity, boolean shared) throws IOException {
+        this(file, capacity, shared, MAPPING_SHIFT);
+    }
+
+    UnsafeMemoryMappedStorage(File file, long capacity, boolean shared, int mappingShift) throws IOException {
+        File backDir = file.getParentFile();
+        if (backDir != null && !backDir.exists()) {
+            backDir.mkdirs();
+        }
+        raf = new RandomAccessFile(file, "rw");
+        FileChannel.MapMode mode = shared ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.PRIVATE;
+        long mappingSize = 1L << mappingShift;
+        int mappingCount = (int) ((capacity + mappingSize - 1) >>> mappingShift);
+        mappedBuffers = new MappedByteBuffer[mappingCount];
+        addresses = new long[mappingCount];
+        for (int i = 0; i < mappingCount; i++) {
+            long start = i * mappingSize;
+            mappedBuffers[i] = raf.getChannel().map(mode, start, Math.min(mappingSize, capacity - start));
+            addresses[i] = ((DirectBuffer) mappedBuffers[i]).address();
+        }
+        this.mappingShift = mappingShift;
+        this.capacity = capacity;
+        this.shared = shared;
+    }
+
+    private void checkBounds(long position, int length) {
+        if (position < 0 || length < 0 || length > capacity - position) {
+            throw new IndexOutOfBoundsException("position " + position + ", length " + length + ", capacity "
+                    + capacity);
+        }
+    }
+
+    /**
+     * Copies between the mappings and the given array, or the given address if the array is null, split at the
+     * ends of the mappings.
+     *
+     * @param position the position in the storage
+     * @param array the array, or null
+     * @param offset the offset within the array, or the address
+     * @param length the number of bytes
+     * @param toStorage whether the bytes are copied to the storage
+     */
+    private void copy(long position, Object array, long offset, int length, boolean toStorage) {
+        while (length > 0) {
+            int i = (int) (position >>> mappingShift);
+            int mappingOffset = (int) (position - ((long) i << mappingShift));
+            int chunk = Math.min(length, mappedBuffers[i].capacity() - mappingOffset);
+            if (toStorage) {
+                UNSAFE.copyMemory(array, offset, null, addresses[i] + mappingOffset, chunk);
+            } else {
+                UNSAFE.copyMemory(null, addresses[i] + mappingOffset, array, offset, chunk);
+            }
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Gets a buffer over the given range of a mapping.
+     *
+     * @param position the position
+     * @param length the length
+     * @return the buffer, or null if the range crosses the end of a mapping
+     */
+    private ByteBuffer range(long position, int length) {
+        int i = (int) (position >>> mappingShift);
+        if (i == mappedBuffers.length) {
+            return ByteBuffer.allocate(0); // an empty range at the end
+        }
+        int mappingOffset = (int) (position - ((long) i << mappingShift));
+        if (length > mappedBuffers[i].capacity() - mappingOffset) {
+            return null;
+        }
+        ByteBuffer buffer = mappedBuffers[i].duplicate();
+        buffer.position(mappingOffset);
+        buffer.limit(mappingOffset + length);
+        return buffer;
+    }
+
+    // the number of bytes from the position to the end of its mapping.
+    private int remainingInMapping(long position) {
+        return (int) ((((position >>> mappingShift) + 1) << mappingShift) - position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (raf != null) {
+            raf.close();
+        }
+    }
+
+    @Override
+    public void get(long position, byte[] dest) throws IOException {
+        checkBounds(position, dest.length);
+        copy(position, dest, BYTE_ARRAY_OFFSET, dest.length, false);
+    }
+
+    @Override
+    public void get(long position, ByteBuffer dest) throws IOException {
+        int length = dest.remaining();
+        checkBounds(position, length);
+        if (dest.hasArray()) {
+            copy(position, dest.array(), BYTE_ARRAY_OFFSET + dest.arrayOffset() + dest.position(), length, false);
+        } else if (dest.isDirect()) {
+            copy(position, null, ((DirectBuffer) dest).address() + dest.position(), length, false);
+        } else {
+            throw new ReadOnlyBufferException(); // the heap buffers without an array
+        }
+        dest.position(dest.position() + length);
+    }
+
+    @Override
+    public CompletableFuture<Void> getAsync(long position, ByteBuffer dest) throws IOException {
+        get(position, dest); // copied from memory
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public ByteBuffer slice(long position, int length) {
+        checkBounds(position, length);
+        ByteBuffer buffer = range(position, length);
+        return buffer == null ? null : buffer.slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public void put(long position, byte[] source) throws IOException {
+        checkBounds(position, source.length);
+        copy(position, source, BYTE_ARRAY_OFFSET, source.length, true);
+        if (shared) {
+            unflushed.add(source.length);
+        }
+    }
+
+    @Override
+    public void get(long position, int length, WritableByteChannel dest) throws IOException {
+        checkBounds(position, length);
+        for (int done = 0; done < length; ) {
+            int chunk = Math.min(length - done, remainingInMapping(position + done));
+            ByteBuffer buffer = range(position + done, chunk);
+            while (buffer.hasRemaining()) {
+                dest.write(buffer);
+            }
+            done += chunk;
+        }
+    }
+
+    @Override
+    public void put(long position, ReadableByteChannel source, int length) throws IOException {
+        checkBounds(position, length);
+        for (int done = 0; done < length; ) {
+            int chunk = Math.min(length - done, remainingInMapping(position + done));
+            ByteBuffer buffer = range(position + done, chunk);
+            while (buffer.hasRemaining()) {
+                if (source.read(buffer) < 0) {
+                    throw new EOFException("the source ends before " + length + " bytes are read");
+                }
+            }
+            done += chunk;
+        }
+        if (shared) {
+            unflushed.add(length);
+        }
+    }
+
+    /**
+     * Checks whether the writes go through to the file.
+     *
+     * @return true if mapped shared
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * Gets the bytes written to a shared mapping since it was last forced to disk.
+     *
+     * @return the bytes
+     */
+    public long getUnflushed() {
+        return unflushed.sum();
+    }
+
+    /**
+     * Faults in the pages of the mappings before the storage is used. Only to be called on a new storage, as the
+     * private mappings are written a zero to each page, which copies the page, the way the first write would. The
+     * shared mappings are only loaded, as the writes would reach the file.
+     */
+    public void prefault() {
+        int pageSize = UNSAFE.pageSize();
+        for (int i = 0; i < mappedBuffers.length; i++) {
+            if (shared) {
+                mappedBuffers[i].load();
+                continue;
+            }
+            for (long offset = 0; offset < mappedBuffers[i].capacity(); offset += pageSize) {
+                UNSAFE.putByte(addresses[i] + offset, (byte) 0);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (shared && unflushed.sumThenReset() > 0) {
+            for (MappedByteBuffer mappedBuffer : mappedBuffers) {
+                mappedBuffer.force();
+            }
+        }
+    }
+
+    @Override
+    public void free() {
+        // nothing to do here
+    }
+}
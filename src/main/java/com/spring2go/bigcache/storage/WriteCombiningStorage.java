@@ -0,0 +1,192 @@
+package com.spring2go.bigcache.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * The file storage combining the small writes in an off heap buffer, which is written to the file in one go.
+ *
+ * The buffer holds a contiguous range of the file, the writes continuing or overwriting the range are copied to
+ * the buffer, as the appends to a block mostly are. Any other write flushes the buffer and starts a new range,
+ * unless it's too long for the buffer and written directly. The reads are served from the buffer where they
+ * overlap the range not flushed yet.
+ *
+ * The bytes buffered are lost on a crash, so the buffer should be flushed regularly, see {@link #flush()}.
+ */
+public class WriteCombiningStorage implements IStorage {
+    private final FileChannelStorage fileStorage;
+    private final int bufferSize;
+
+    /** Guards the buffer, the reads overlapping the buffered range hold the read lock so it's not flushed meanwhile. */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** The buffer, allocated on the first write. */
+    private ByteBuffer buffer;
+
+    /** The position in the file of the first byte buffered. */
+    private long start;
+
+    /** The position in the file after the last byte buffered, the same as the start if nothing is buffered. */
+    private long end;
+
+    /**
+     * Opens the storage on the given file, the existing content of the file is kept.
+     *
+     * @param file the backing file
+     * @param capacity the capacity
+     * @param bufferSize the size of the write buffer
+     * @throws IOException
+     */
+    public WriteCombiningStorage(File file, long capacity, int bufferSize) throws IOException {
+        this.fileStorage = new FileChannelStorage(file, capacity);
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public void get(long position, byte[] dest) throws IOException {
+        get(position, ByteBuffer.wrap(dest));
+    }
+
+    @Override
+    public void get(long position, ByteBuffer dest) throws IOException {
+        int length = dest.remaining();
+        lock.readLock().lock();
+        try {
+            long from = Math.max(start, position);
+            long to = Math.min(end, position + length);
+            if (from < to) { // overlaps the buffered range
+                int destPosition = dest.position();
+                if (from > position || to < position + length) {
+                    fileStorage.get(position, dest.duplicate());
+                }
+                ByteBuffer buffered = buffer.duplicate();
+                buffered.limit((int) (to - start)).position((int) (from - start));
+                ByteBuffer target = dest.duplicate();
+                target.position(destPosition + (int) (from - position));
+                target.put(buffered);
+                dest.position(destPosition + length);
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        fileStorage.get(position, dest);
+    }
+
+    @Override
+    public CompletableFuture<Void> getAsync(long position, ByteBuffer dest) throws IOException {
+        get(position, dest); // read on the caller thread
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public ByteBuffer slice(long position, int length) {
+        return null; // the data is only in the file
+    }
+
+    @Override
+    public void get(long position, int length, WritableByteChannel dest) throws IOException {
+        flushOverlapping(position, length); // transferred from the file directly
+        fileStorage.get(position, length, dest);
+    }
+
+    @Override
+    public void put(long position, byte[] source) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (start < end && position >= start && position <= end && position + source.length - start <= bufferSize) {
+                // continues or overwrites the buffered range
+                ByteBuffer target = buffer.duplicate();
+                target.position((int) (position - start));
+                target.put(source);
+                end = Math.max(end, position + source.length);
+                return;
+            }
+            flushLocked();
+            if (source.length >= bufferSize) {
+                fileStorage.put(position, source);
+                return;
+            }
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(bufferSize);
+            }
+            ByteBuffer target = buffer.duplicate();
+            target.position(0);
+            target.put(source);
+            start = position;
+            end = position + source.length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(long position, ReadableByteChannel source, int length) throws IOException {
+        flushOverlapping(position, length); // transferred to the file directly
+        fileStorage.put(position, source, length);
+    }
+
+    /**
+     * Flushes the buffer if the buffered range overlaps the given range.
+     */
+    private void flushOverlapping(long position, int length) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (position < end && start < position + length) {
+                flushLocked();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // called with the write lock held.
+    private void flushLocked() throws IOException {
+        if (start < end) {
+            ByteBuffer buffered = buffer.duplicate();
+            buffered.limit((int) (end - start)).position(0);
+            fileStorage.put(start, buffered);
+            start = end = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            flushLocked();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void free() {
+        lock.writeLock().lock();
+        try {
+            start = end = 0; // the buffered bytes are freed as well
+            buffer = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        fileStorage.free();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            buffer = null;
+            fileStorage.close();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.spring2go.bigcache.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * Converts cache keys to bytes and back, so keys can be written to the storage.
+ *
+ * String, Integer, Long and byte[] keys are encoded compactly, other keys must be Serializable and
+ * go through java serialization. The first byte of the encoded key is the type tag.
+ */
+public class KeySerializer {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INTEGER = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_SERIALIZABLE = 4;
+    private static final byte TYPE_BYTES = 5;
+
+    public static byte[] serialize(Object key) throws IOException {
+        if (key instanceof String) {
+            byte[] bytes = ((String) key).getBytes(UTF_8);
+            byte[] result = new byte[bytes.length + 1];
+            result[0] = TYPE_STRING;
+            System.arraycopy(bytes, 0, result, 1, bytes.length);
+            return result;
+        } else if (key instanceof Integer) {
+            return ByteBuffer.allocate(5).put(TYPE_INTEGER).putInt((Integer) key).array();
+        } else if (key instanceof Long) {
+            return ByteBuffer.allocate(9).put(TYPE_LONG).putLong((Long) key).array();
+        } else if (key instanceof byte[]) {
+            byte[] bytes = (byte[]) key;
+            byte[] result = new byte[bytes.length + 1];
+            result[0] = TYPE_BYTES;
+            System.arraycopy(bytes, 0, result, 1, bytes.length);
+            return result;
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(TYPE_SERIALIZABLE);
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(key);
+        oos.close();
+        return bos.toByteArray();
+    }
+
+    public static Object deserialize(byte[] bytes) throws IOException {
+        if (bytes == null || bytes.length == 0) {
+            throw new IOException("empty key");
+        }
+        switch (bytes[0]) {
+            case TYPE_STRING:
+                return new String(bytes, 1, bytes.length - 1, UTF_8);
+            case TYPE_INTEGER:
+                return ByteBuffer.wrap(bytes, 1, 4).getInt();
+            case TYPE_LONG:
+                return ByteBuffer.wrap(bytes, 1, 8).getLong();
+            case TYPE_BYTES:
+                byte[] key = new byte[bytes.length - 1];
+                System.arraycopy(bytes, 1, key, 0, key.length);
+                return key;
+            case TYPE_SERIALIZABLE:
+                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+                try {
+                    return ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("unknown key class", e);
+                } finally {
+                    ois.close();
+                }
+            default:
+                throw new IOException("unknown key type " + bytes[0]);
+        }
+    }
+}
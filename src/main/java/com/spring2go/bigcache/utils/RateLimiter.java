@@ -0,0 +1,56 @@
+package com.spring2go.bigcache.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * Limits the rate of the permits, e.g. the bytes read and written, taken by the threads sharing it. The permits are
+ * handed out in order, so a thread waits until the permits taken before its own are due as well. The permits not
+ * taken are saved for a burst, up to a second of them.
+ *
+ * A rate of 0 means unlimited, and never waits.
+ */
+public class RateLimiter {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /** The most time the unused permits are saved for. */
+    private static final long MAX_BURST_NANOS = NANOS_PER_SECOND;
+
+    private final long permitsPerSecond;
+
+    /** The time the permits taken so far are due at. */
+    private long nextFreeNanos;
+
+    /**
+     * @param permitsPerSecond the permits per second, 0 not to limit
+     */
+    public RateLimiter(long permitsPerSecond) {
+        if (permitsPerSecond < 0) {
+            throw new IllegalArgumentException("permitsPerSecond must be >= 0!");
+        }
+        this.permitsPerSecond = permitsPerSecond;
+        this.nextFreeNanos = System.nanoTime();
+    }
+
+    /**
+     * Takes the permits, waiting until they are due.
+     *
+     * @param permits the number of permits
+     * @throws InterruptedException if interrupted while waiting, the permits are taken anyway
+     */
+    public void acquire(int permits) throws InterruptedException {
+        if (permitsPerSecond == 0 || permits <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            nextFreeNanos = Math.max(nextFreeNanos, now - MAX_BURST_NANOS) + permits * NANOS_PER_SECOND / permitsPerSecond;
+            waitNanos = nextFreeNanos - now;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.spring2go.bigcache.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * A hierarchical timing wheel, which buckets the items by their deadlines, so the items due can be found
+ * without looking at the others.
+ *
+ * The wheel of level 0 has 64 slots of a tick each, and each upper level has 64 slots as wide as a whole turn of
+ * the level below. An item is put in the lowest level its deadline shares the turn with the current tick, and is
+ * cascaded down a level each time the wheel reaches its slot, so it's moved at most once per level before it's
+ * due. Deadlines beyond the turn of the top level wait in the top level, and are put back there until in reach.
+ *
+ * An item is never due before its deadline, but may be up to a tick late.
+ *
+ * It's not thread safe, the wheel is meant to be driven by a single thread.
+ *
+ * @param <T> the item type
+ */
+public class TimerWheel<T> {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOT_COUNT = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOT_COUNT - 1;
+    private static final int LEVEL_COUNT = 5;
+
+    private final long tick;
+
+    private final List<List<Entry<T>>> slots = new ArrayList<List<Entry<T>>>();
+
+    /** The last tick the wheel has been advanced to. */
+    private long currentTick;
+
+    private int size;
+
+    /**
+     * @param tick the length of a tick in milliseconds
+     * @param now the current time in milliseconds
+     */
+    public TimerWheel(long tick, long now) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("tick must be > 0!");
+        }
+        this.tick = tick;
+        this.currentTick = now / tick;
+        for (int i = 0; i < LEVEL_COUNT * SLOT_COUNT; i++) {
+            slots.add(null);
+        }
+    }
+
+    /**
+     * Schedules the item, a deadline already passed is due on the next advance.
+     *
+     * @param item the item
+     * @param deadline the deadline in milliseconds
+     */
+    public void schedule(T item, long deadline) {
+        // round up, so an item is never due before its deadline
+        insert(new Entry<T>(item, deadline / tick + (deadline % tick == 0 ? 0 : 1)), null);
+        size++;
+    }
+
+    /**
+     * Advances the wheel to the time, and collects the items due.
+     *
+     * @param now the current time in milliseconds
+     * @return the items whose deadlines have passed, in no particular order
+     */
+    public List<T> advance(long now) {
+        List<T> due = new ArrayList<T>();
+        long nowTick = now / tick;
+        if (size == 0) {
+            currentTick = Math.max(currentTick, nowTick);
+            return due;
+        }
+        while (currentTick < nowTick) {
+            currentTick++;
+            // cascade from the top, so the entries moved down are visited by the lower levels in this very tick
+            for (int level = LEVEL_COUNT - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    List<Entry<T>> entries = take(level, slotOf(currentTick, level));
+                    if (entries != null) {
+                        for (Entry<T> entry : entries) {
+                            insert(entry, due);
+                        }
+                    }
+                }
+            }
+            List<Entry<T>> entries = take(0, slotOf(currentTick, 0));
+            if (entries != null) {
+                for (Entry<T> entry : entries) {
+                    due.add(entry.item);
+                }
+            }
+        }
+        size -= due.size();
+        return due;
+    }
+
+    /**
+     * @return the number of the items scheduled
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all the items.
+     */
+    public void clear() {
+        for (int i = 0; i < slots.size(); i++) {
+            slots.set(i, null);
+        }
+        size = 0;
+    }
+
+    /**
+     * Puts the entry in the lowest level whose turn it shares with the current tick.
+     *
+     * @param entry the entry
+     * @param due where to put the entry if it's due already, or null to have it due on the next tick
+     */
+    private void insert(Entry<T> entry, List<T> due) {
+        if (entry.tick <= currentTick) {
+            if (due != null) {
+                due.add(entry.item);
+                return;
+            }
+            entry.tick = currentTick + 1;
+        }
+        int level = 0;
+        while (level < LEVEL_COUNT - 1
+                && (entry.tick >>> (SLOT_BITS * (level + 1))) != (currentTick >>> (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int index = level * SLOT_COUNT + slotOf(entry.tick, level);
+        List<Entry<T>> entries = slots.get(index);
+        if (entries == null) {
+            entries = new ArrayList<Entry<T>>();
+            slots.set(index, entries);
+        }
+        entries.add(entry);
+    }
+
+    private List<Entry<T>> take(int level, int slot) {
+        return slots.set(level * SLOT_COUNT + slot, null);
+    }
+
+    private static int slotOf(long tick, int level) {
+        return (int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK;
+    }
+
+    private static class Entry<T> {
+        private final T item;
+        private long tick;
+
+        Entry(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+}
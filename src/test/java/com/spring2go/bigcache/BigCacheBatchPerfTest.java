@@ -0,0 +1,158 @@
+package com.spring2go.bigcache;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.spring2go.bigcache.CacheConfig.StorageMode;
+import com.spring2go.bigcache.utils.FileUtil;
+import com.spring2go.bigcache.utils.TestSample;
+import com.spring2go.bigcache.utils.TestUtil;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * Compares fetching random batches of keys one by one with fetching them by multiGet.
+ */
+@RunWith(Parameterized.class)
+public class BigCacheBatchPerfTest {
+    private static final int COUNT = 200 * 1000;
+    private static final int BATCH_SIZE = 100;
+    private static final int ROUNDS = 5;
+    private static final String TEST_DIR = TestUtil.TEST_BASE_DIR + "performance/bigcache_batch/";
+
+    private static BigCache<String> cache;
+
+    @Parameter(value = 0)
+    public StorageMode storageMode;
+
+    @Parameters(name = "{0}")
+    public static Collection<StorageMode[]> data() throws IOException {
+        StorageMode[][] data = { { StorageMode.PureFile },
+                { StorageMode.MemoryMappedPlusFile },
+                { StorageMode.OffHeapPlusFile } };
+        return Arrays.asList(data);
+    }
+
+    private BigCache<String> cache() throws IOException {
+        CacheConfig config = new CacheConfig();
+        config.setStorageMode(storageMode)
+                .setCapacityPerBlock(20 * 1024 * 1024);
+        return new BigCache<String>(TEST_DIR, config);
+    }
+
+    private void fill() throws IOException {
+        cache = cache();
+        TestSample sample = new TestSample();
+        StringBuilder user = new StringBuilder();
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        for (int i = 0; i < COUNT; i++) {
+            sample.intA = i;
+            entries.put(TestSample.users(user, i), sample.toBytes());
+            if (entries.size() == BATCH_SIZE) {
+                cache.multiPut(entries);
+                entries.clear();
+            }
+        }
+        cache.multiPut(entries);
+        assertEquals(COUNT, cache.count());
+    }
+
+    /**
+     * Batches of random keys, the values are spread over the blocks.
+     */
+    @Test
+    public void testRandomBatchGet() throws IOException {
+        fill();
+        Random random = new Random(0);
+        StringBuilder user = new StringBuilder();
+        List<List<String>> batches = new ArrayList<List<String>>();
+        for (int i = 0; i < COUNT / BATCH_SIZE; i++) {
+            List<String> batch = new ArrayList<String>(BATCH_SIZE);
+            for (int j = 0; j < BATCH_SIZE; j++) {
+                batch.add(TestSample.users(user, random.nextInt(COUNT)));
+            }
+            batches.add(batch);
+        }
+        compare("random", batches);
+    }
+
+    /**
+     * Batches of the keys put together, the values lie next to each other.
+     */
+    @Test
+    public void testLocalBatchGet() throws IOException {
+        fill();
+        StringBuilder user = new StringBuilder();
+        List<List<String>> batches = new ArrayList<List<String>>();
+        for (int i = 0; i < COUNT; i += BATCH_SIZE) {
+            List<String> batch = new ArrayList<String>(BATCH_SIZE);
+            for (int j = i; j < i + BATCH_SIZE; j++) {
+                batch.add(TestSample.users(user, j));
+            }
+            batches.add(batch);
+        }
+        Collections.shuffle(batches, new Random(0));
+        compare("local", batches);
+    }
+
+    private void compare(String name, List<List<String>> batches) throws IOException {
+        long single = Long.MAX_VALUE;
+        long multi = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (List<String> batch : batches) {
+                for (String key : batch) {
+                    assertNotNull(cache.get(key));
+                }
+            }
+            single = Math.min(single, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (List<String> batch : batches) {
+                Map<String, byte[]> values = cache.multiGet(batch);
+                for (String key : batch) {
+                    assertNotNull(values.get(key));
+                }
+            }
+            multi = Math.min(multi, System.nanoTime() - start);
+        }
+        System.out.printf("%s %s batches: get %,d K keys per second, multiGet %,d K keys per second%n",
+                storageMode, name, (int) (COUNT * 1e6 / single), (int) (COUNT * 1e6 / multi));
+    }
+
+    @After
+    public void close() throws IOException {
+        try {
+            cache.close();
+            FileUtil.deleteDirectory(new File(TEST_DIR));
+        } catch (IllegalStateException e) {
+            System.gc();
+            try {
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            } catch (IllegalStateException e1) {
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException e2) {
+                }
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            }
+        }
+    }
+}
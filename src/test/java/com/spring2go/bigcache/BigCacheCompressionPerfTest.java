@@ -0,0 +1,123 @@
+package com.spring2go.bigcache;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.spring2go.bigcache.CacheConfig.StorageMode;
+import com.spring2go.bigcache.codec.ICodec;
+import com.spring2go.bigcache.codec.LzCodec;
+import com.spring2go.bigcache.utils.FileUtil;
+import com.spring2go.bigcache.utils.TestUtil;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * The bytes stored against the time per put and get of JSON like values, without and with compression.
+ */
+@RunWith(Parameterized.class)
+public class BigCacheCompressionPerfTest {
+    private static final int COUNT = 100 * 1000;
+    private static final int VALUE_COUNT = 1000;
+    private static final String TEST_DIR = TestUtil.TEST_BASE_DIR + "performance/bigcache_compression/";
+
+    private BigCache<Integer> cache;
+
+    @Parameter(value = 0)
+    public StorageMode storageMode;
+
+    @Parameters(name = "{0}")
+    public static Collection<StorageMode[]> data() throws IOException {
+        StorageMode[][] data = { { StorageMode.PureFile },
+                { StorageMode.MemoryMappedPlusFile },
+                { StorageMode.OffHeapPlusFile } };
+        return Arrays.asList(data);
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        byte[][] values = jsonValues();
+        long rawBytes = run(null, values);
+        long compressedBytes = run(new LzCodec(), values);
+        assertTrue(compressedBytes < rawBytes / 2);
+    }
+
+    private long run(ICodec codec, byte[][] values) throws IOException {
+        cache = new BigCache<Integer>(TEST_DIR, new CacheConfig().setStorageMode(storageMode).setCodec(codec));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < COUNT; i++) {
+            cache.put(i, values[i % VALUE_COUNT]);
+        }
+        long putDuration = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < COUNT; i++) {
+            byte[] value = cache.get(i);
+            if (value.length != values[i % VALUE_COUNT].length) {
+                fail("wrong value of " + i);
+            }
+        }
+        long getDuration = System.nanoTime() - start;
+        assertArrayEquals(values[7], cache.get(7));
+
+        long storedBytes = cache.getStats().getStorageUsed();
+        System.out.printf("%s with %s codec: %,d bytes stored, %,d ns per put, %,d ns per get%n", storageMode,
+                codec == null ? "no" : codec.getName(), storedBytes, putDuration / COUNT, getDuration / COUNT);
+        close();
+        cache = null;
+        return storedBytes;
+    }
+
+    /**
+     * Generates JSON like values of 1KB or so.
+     */
+    private static byte[][] jsonValues() {
+        Random random = new Random(17);
+        String[] words = { "cache", "storage", "block", "offheap", "file", "memory", "index", "key", "value" };
+        byte[][] values = new byte[VALUE_COUNT][];
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            StringBuilder json = new StringBuilder("{\"items\":[");
+            for (int j = 0; j < 12; j++) {
+                json.append("{\"id\":").append(random.nextInt(1000 * 1000))
+                        .append(",\"name\":\"").append(words[random.nextInt(words.length)])
+                        .append("\",\"score\":").append(random.nextInt(10000) / 100.0)
+                        .append(",\"enabled\":").append(random.nextBoolean()).append("},");
+            }
+            values[i] = json.append("]}").toString().getBytes();
+        }
+        return values;
+    }
+
+    @After
+    public void close() throws IOException {
+        try {
+            if (cache != null) {
+                cache.close();
+            }
+            FileUtil.deleteDirectory(new File(TEST_DIR));
+        } catch (IllegalStateException e) {
+            System.gc();
+            try {
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            } catch (IllegalStateException e1) {
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException e2) {
+                }
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.spring2go.bigcache;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.spring2go.bigcache.CacheConfig.StorageMode;
+import com.spring2go.bigcache.utils.FileUtil;
+import com.spring2go.bigcache.utils.TestUtil;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * Many threads reading a few hot keys, while one thread keeps rewriting them and the merger keeps moving them.
+ * The values are checked for torn reads, as the gets read them optimistically.
+ */
+@RunWith(Parameterized.class)
+public class BigCacheContentionPerfTest {
+    private static final int THREAD_COUNT = 8;
+    private static final int HOT_KEY_COUNT = 16;
+    private static final int READ_COUNT = 4 * 1000 * 1000;
+    private static final int VALUE_LENGTH = 128;
+    private static final String TEST_DIR = TestUtil.TEST_BASE_DIR + "performance/bigcache_contention/";
+
+    private static BigCache<String> cache;
+
+    @Parameter(value = 0)
+    public StorageMode storageMode;
+
+    @Parameters(name = "{0}")
+    public static Collection<StorageMode[]> data() throws IOException {
+        StorageMode[][] data = { { StorageMode.PureFile },
+                { StorageMode.MemoryMappedPlusFile },
+                { StorageMode.OffHeapPlusFile } };
+        return Arrays.asList(data);
+    }
+
+    /**
+     * The value is the key followed by a filler byte telling the version, so a torn read shows up as mixed fillers.
+     */
+    private static byte[] value(String key, int version) {
+        byte[] value = new byte[VALUE_LENGTH];
+        Arrays.fill(value, (byte) ('a' + version % 26));
+        System.arraycopy(key.getBytes(), 0, value, 0, key.length());
+        return value;
+    }
+
+    private static void check(String key, byte[] value) {
+        assertEquals(VALUE_LENGTH, value.length);
+        assertEquals(key, new String(value, 0, key.length()));
+        for (int i = key.length() + 1; i < value.length; i++) {
+            assertEquals(value[key.length()], value[i]);
+        }
+    }
+
+    @Test
+    public void testHotKeys() throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setMergeInterval(100)
+                .setDirtyRatioLimit(0.1);
+        cache = new BigCache<String>(TEST_DIR, config);
+        final String[] keys = new String[HOT_KEY_COUNT];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "hot" + i;
+            cache.put(keys[i], value(keys[i], 0));
+        }
+
+        ExecutorService service = Executors.newFixedThreadPool(THREAD_COUNT + 1);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong puts = new AtomicLong();
+        Future<?> writer = service.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int version = 1; !done.get(); version++) {
+                        for (String key : keys) {
+                            cache.put(key, value(key, version));
+                        }
+                        puts.addAndGet(keys.length);
+                        Thread.yield();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        List<Future<?>> readers = new ArrayList<Future<?>>();
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final int finalT = t;
+            readers.add(service.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = finalT; i < READ_COUNT; i += THREAD_COUNT) {
+                            String key = keys[i % HOT_KEY_COUNT];
+                            check(key, cache.get(key));
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+        }
+        for (Future<?> reader : readers) {
+            reader.get();
+        }
+        long duration = System.nanoTime() - start;
+        long putCount = puts.get();
+        done.set(true);
+        writer.get();
+        service.shutdown();
+
+        System.out.printf("%s: %,d K hot key gets and %,d K puts per second with %d readers and a writer%n",
+                storageMode, (int) (READ_COUNT * 1e6 / duration), (int) (putCount * 1e6 / duration), THREAD_COUNT);
+    }
+
+    @After
+    public void close() throws IOException {
+        try {
+            cache.close();
+            FileUtil.deleteDirectory(new File(TEST_DIR));
+        } catch (IllegalStateException e) {
+            System.gc();
+            try {
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            } catch (IllegalStateException e1) {
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException e2) {
+                }
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.spring2go.bigcache;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.spring2go.bigcache.CacheConfig.StorageMode;
+import com.spring2go.bigcache.storage.IStorage;
+import com.spring2go.bigcache.storage.StorageRecord;
+import com.spring2go.bigcache.utils.FileUtil;
+import com.spring2go.bigcache.utils.TestUtil;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ */
+public class BigCacheCrashRecoveryTest {
+    private static final String TEST_DIR = TestUtil.TEST_BASE_DIR + "unit/bigcache_crash_recovery/";
+
+    private final List<BigCache<String>> caches = new ArrayList<BigCache<String>>();
+
+    private BigCache<String> open() throws IOException {
+        return open(new CacheConfig().setStorageMode(StorageMode.PureFile));
+    }
+
+    private BigCache<String> open(CacheConfig config) throws IOException {
+        config.setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(2)
+                .setCrashRecovery(true);
+        BigCache<String> cache = new BigCache<String>(TEST_DIR, config);
+        caches.add(cache);
+        return cache;
+    }
+
+    @Test
+    public void testRecoverAfterCrash() throws IOException {
+        BigCache<String> crashed = open();
+        int count = 50 * 1000;
+        for (int i = 0; i < count; i++) {
+            crashed.put("key" + i, ("value" + i).getBytes());
+        }
+        crashed.delete("key0");
+        crashed.put("key1", "v".getBytes()); // smaller, would be updated in place without records
+        crashed.put("key2", "a much longer value than before".getBytes());
+        crashed.put("tti", "tti".getBytes(), 60 * 1000);
+
+        // the crashed cache is never closed, the new one only sees its block files
+        BigCache<String> cache = open();
+        assertEquals(count, cache.count());
+        assertNull(cache.get("key0"));
+        assertEquals("v", new String(cache.get("key1")));
+        assertEquals("a much longer value than before", new String(cache.get("key2")));
+        assertEquals("tti", new String(cache.get("tti")));
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        assertEquals(1, cache.get("key1", buffer)); // only the value of the record
+        assertEquals((byte) 'v', buffer.get(0));
+        ValueLease lease = cache.lease("tti");
+        assertEquals(3, lease.getBuffer().remaining());
+        lease.close();
+        for (int i = 3; i < count; i++) {
+            assertEquals("value" + i, new String(cache.get("key" + i)));
+        }
+
+        // the recovered cache keeps working, and can be recovered again
+        cache.put("key0", "again".getBytes());
+        cache.delete("key3");
+        BigCache<String> again = open();
+        assertEquals("again", new String(again.get("key0")));
+        assertNull(again.get("key3"));
+        assertEquals("value4", new String(again.get("key4")));
+    }
+
+    @Test
+    public void testSkipCorruptTail() throws IOException {
+        BigCache<String> crashed = open();
+        for (int i = 0; i < 10; i++) {
+            crashed.put("key" + i, ("value" + i).getBytes());
+        }
+
+        // all records have the same length, corrupt the value of the last one
+        int recordLength = StorageRecord.HEADER_SIZE + 5 + 6;
+        File blockFile = findBlockFile(0);
+        RandomAccessFile raf = new RandomAccessFile(blockFile, "rw");
+        try {
+            raf.seek(9 * recordLength + recordLength - 1);
+            raf.write('X');
+        } finally {
+            raf.close();
+        }
+
+        BigCache<String> cache = open();
+        assertEquals(9, cache.count());
+        for (int i = 0; i < 9; i++) {
+            assertEquals("value" + i, new String(cache.get("key" + i)));
+        }
+        assertNull(cache.get("key9"));
+
+        // new records are appended right after the last valid one
+        cache.put("key9", "value9".getBytes());
+        BigCache<String> again = open();
+        assertEquals("value9", new String(again.get("key9")));
+    }
+
+    @Test
+    public void testRecoverSharedMapping() throws IOException {
+        CacheConfig config = new CacheConfig()
+                .setStorageMode(StorageMode.MemoryMappedPlusFile)
+                .setSharedMapping(true)
+                .setFlushInterval(50);
+        BigCache<String> crashed = open(config);
+        int count = 10 * 1000;
+        for (int i = 0; i < count; i++) {
+            crashed.put("key" + i, ("value" + i).getBytes());
+        }
+        crashed.delete("key0");
+
+        // the writes went through to the block files
+        BigCache<String> cache = open(config);
+        assertEquals(count - 1, cache.count());
+        assertNull(cache.get("key0"));
+        for (int i = 1; i < count; i++) {
+            assertEquals("value" + i, new String(cache.get("key" + i)));
+        }
+
+        // but not with the private mappings
+        cache.close();
+        caches.remove(cache);
+        FileUtil.deleteDirectory(new File(TEST_DIR));
+        crashed = open(new CacheConfig().setStorageMode(StorageMode.MemoryMappedPlusFile));
+        crashed.put("key", "value".getBytes());
+        cache = open(new CacheConfig().setStorageMode(StorageMode.MemoryMappedPlusFile));
+        assertEquals(0, cache.count());
+    }
+
+    private File findBlockFile(int index) {
+        for (File file : new File(TEST_DIR).listFiles()) {
+            if (file.getName().startsWith(index + "-") && file.getName().endsWith(IStorage.DATA_FILE_SUFFIX)) {
+                return file;
+            }
+        }
+        throw new IllegalStateException("no block file of index " + index);
+    }
+
+    @After
+    public void close() throws IOException {
+        for (BigCache<String> cache : caches) {
+            cache.close();
+        }
+        try {
+            FileUtil.deleteDirectory(new File(TEST_DIR));
+        } catch (IllegalStateException e) {
+            System.gc();
+            try {
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            } catch (IllegalStateException e1) {
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException e2) {
+                }
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            }
+        }
+    }
+}
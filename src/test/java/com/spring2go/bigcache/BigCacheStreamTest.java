@@ -0,0 +1,148 @@
+package com.spring2go.bigcache;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.spring2go.bigcache.CacheConfig.StorageMode;
+import com.spring2go.bigcache.utils.FileUtil;
+import com.spring2go.bigcache.utils.TestUtil;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ */
+@RunWith(Parameterized.class)
+public class BigCacheStreamTest {
+    private static final String TEST_DIR = TestUtil.TEST_BASE_DIR + "unit/bigcache_stream/";
+
+    private BigCache<String> cache;
+
+    @Parameter(value = 0)
+    public StorageMode storageMode;
+
+    @Parameters(name = "{0}")
+    public static Collection<StorageMode[]> data() throws IOException {
+        StorageMode[][] data = { { StorageMode.PureFile },
+                { StorageMode.MemoryMappedPlusFile },
+                { StorageMode.OffHeapPlusFile } };
+        return Arrays.asList(data);
+    }
+
+    private BigCache<String> open(boolean warmRestart) throws IOException {
+        CacheConfig config = new CacheConfig()
+                .setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(2)
+                .setWarmRestart(warmRestart);
+        return new BigCache<String>(TEST_DIR, config);
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testPutGetLargeValue() throws IOException {
+        cache = open(false);
+        byte[] value = randomBytes(2 * BigCache.CHUNK_LENGTH + 12345); // 3 chunks
+        cache.put("large", new ByteArrayInputStream(value), value.length);
+        cache.put("small", "small".getBytes());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(value.length, cache.get("large", out));
+        assertArrayEquals(value, out.toByteArray());
+        assertArrayEquals(value, cache.get("large"));
+        assertEquals(-1, cache.get("missing", new ByteArrayOutputStream()));
+
+        // plain values can be read to streams too
+        out = new ByteArrayOutputStream();
+        assertEquals(5, cache.get("small", out));
+        assertEquals("small", new String(out.toByteArray()));
+
+        // larger than a block
+        byte[] huge = randomBytes(20 * 1024 * 1024);
+        cache.put("huge", new ByteArrayInputStream(huge), huge.length);
+        out = new ByteArrayOutputStream();
+        assertEquals(huge.length, cache.get("huge", out));
+        assertArrayEquals(huge, out.toByteArray());
+    }
+
+    @Test
+    public void testReplaceAndDelete() throws IOException {
+        cache = open(false);
+        byte[] value = randomBytes(BigCache.CHUNK_LENGTH + 1);
+        cache.put("key", new ByteArrayInputStream(value), value.length);
+        long used = cache.getStats().getStorageUsed();
+
+        cache.put("key", "plain".getBytes());
+        assertEquals("plain", new String(cache.get("key")));
+        assertEquals(5, cache.getStats().getStorageUsed() - used + value.length);
+
+        cache.put("key", new ByteArrayInputStream(value), value.length);
+        assertArrayEquals(value, cache.delete("key"));
+        assertNull(cache.get("key"));
+        assertEquals(0, cache.count());
+    }
+
+    @Test
+    public void testShortStream() throws IOException {
+        cache = open(false);
+        byte[] value = randomBytes(1000);
+        try {
+            cache.put("key", new ByteArrayInputStream(value), value.length + 1);
+            fail("the stream is shorter than the length");
+        } catch (EOFException expected) {
+        }
+        assertFalse(cache.contains("key"));
+    }
+
+    @Test
+    public void testWarmRestart() throws IOException {
+        cache = open(true);
+        byte[] value = randomBytes(BigCache.CHUNK_LENGTH * 2 + 1);
+        cache.put("key", new ByteArrayInputStream(value), value.length);
+        cache.close();
+
+        cache = open(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(value.length, cache.get("key", out));
+        assertArrayEquals(value, out.toByteArray());
+    }
+
+    @After
+    public void close() throws IOException {
+        try {
+            if (cache != null) {
+                cache.close();
+            }
+            FileUtil.deleteDirectory(new File(TEST_DIR));
+        } catch (IllegalStateException e) {
+            System.gc();
+            try {
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            } catch (IllegalStateException e1) {
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException e2) {
+                }
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            }
+        }
+    }
+}
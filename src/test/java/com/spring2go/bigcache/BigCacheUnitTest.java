@@ -2,10 +2,19 @@ package com.spring2go.bigcache;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 
 import org.junit.After;
 import org.junit.Test;
@@ -15,6 +24,7 @@ import org.junit.runners.Parameterized.Parameter;
 import org.junit.runners.Parameterized.Parameters;
 
 import com.spring2go.bigcache.CacheConfig.StorageMode;
+import com.spring2go.bigcache.codec.LzCodec;
 import com.spring2go.bigcache.utils.FileUtil;
 import com.spring2go.bigcache.utils.TestUtil;
 
@@ -91,10 +101,499 @@ public class BigCacheUnitTest {
         assertFalse(cache.contains(6));
     }
 
+    @Test
+    public void testGetIntoBuffer() throws IOException {
+        cache = cache6();
+        cache.put(6, "GHI".getBytes());
+        ByteBuffer heap = ByteBuffer.allocate(8);
+        assertEquals(3, cache.get(6, heap));
+        assertEquals(1, cache.get(0, heap));
+        assertEquals("GHIA", new String(heap.array(), 0, heap.position()));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(8);
+        assertEquals(3, cache.get(6, direct));
+        direct.flip();
+        assertEquals((byte) 'G', direct.get(0));
+        assertEquals((byte) 'I', direct.get(2));
+
+        assertEquals(-1, cache.get(7, heap));
+        ByteBuffer small = ByteBuffer.allocate(2);
+        try {
+            cache.get(6, small);
+            fail("value doesn't fit");
+        } catch (BufferOverflowException expected) {
+            assertEquals(0, small.position());
+        }
+    }
+
+    @Test
+    public void testLease() throws IOException {
+        cache = cache6();
+        ValueLease lease = cache.lease(1);
+        try {
+            ByteBuffer buffer = lease.getBuffer();
+            assertEquals(1, buffer.remaining());
+            assertEquals((byte) 'B', buffer.get(buffer.position()));
+            assertTrue(buffer.isReadOnly());
+
+            // the leased value is not overwritten in place
+            cache.put(1, "X".getBytes());
+            assertEquals((byte) 'B', buffer.get(buffer.position()));
+            assertEquals("X", new String(cache.get(1)));
+        } finally {
+            lease.close();
+        }
+        assertNull(cache.lease(6));
+    }
+
+    @Test
+    public void testMultiGet() throws IOException {
+        cache = cache6();
+        Map<Integer, byte[]> values = cache.multiGet(Arrays.asList(5, 0, 3, 6, 1));
+        assertEquals(4, values.size());
+        assertEquals("F", new String(values.get(5)));
+        assertEquals("A", new String(values.get(0)));
+        assertEquals("D", new String(values.get(3)));
+        assertEquals("B", new String(values.get(1)));
+        assertFalse(values.containsKey(6));
+        assertTrue(cache.multiGet(Arrays.<Integer>asList()).isEmpty());
+    }
+
+    @Test
+    public void testMultiPutAndDelete() throws IOException {
+        cache = cache6();
+        Map<Integer, byte[]> entries = new HashMap<Integer, byte[]>();
+        for (int i = 0; i < 1000; i++) {
+            entries.put(i, ("value" + i).getBytes());
+        }
+        cache.multiPut(entries);
+        assertEquals(1000, cache.count());
+        assertEquals("value0", new String(cache.get(0))); // replaced
+        assertEquals("value999", new String(cache.get(999)));
+
+        Map<Integer, byte[]> deleted = cache.multiDelete(Arrays.asList(0, 500, 999, 1000));
+        assertEquals(3, deleted.size());
+        assertEquals("value500", new String(deleted.get(500)));
+        assertFalse(deleted.containsKey(1000));
+        assertEquals(997, cache.count());
+        assertNull(cache.get(500));
+
+        entries.put(1000, null);
+        try {
+            cache.multiPut(entries);
+            fail("null value");
+        } catch (IllegalArgumentException expected) {
+            assertFalse(cache.contains(1000));
+        }
+    }
+
+    @Test
+    public void testMergeDirtyBlock() throws Exception {
+        CacheConfig config = new CacheConfig()
+                .setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setMergeInterval(500)
+                .setDirtyRatioLimit(0.5);
+        cache = new BigCache<Integer>(TEST_DIR, config);
+        byte[] value = new byte[16 * 1024]; // 1024 values per block
+        for (int i = 0; i < 2048; i++) {
+            cache.put(i, value);
+        }
+        for (int i = 0; i < 900; i++) {
+            cache.delete(i);
+        }
+        cache.put(-1, "last".getBytes()); // a new active block
+
+        Thread.sleep(1500);
+        // only the live entries in the dirty block are moved
+        assertEquals(1024 - 900, cache.getStats().getCacheMove());
+        assertEquals(2, cache.storageManager.getUsedBlockCount());
+        for (int i = 900; i < 2048; i++) {
+            assertArrayEquals(value, cache.get(i));
+        }
+        assertEquals("last", new String(cache.get(-1)));
+    }
+
+    @Test
+    public void testMergeInParallel() throws Exception {
+        CacheConfig config = new CacheConfig()
+                .setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setMergeInterval(500)
+                .setDirtyRatioLimit(0.5)
+                .setMergeParallelism(2)
+                .setMergeRateLimit(8 * 1024 * 1024);
+        cache = new BigCache<Integer>(TEST_DIR, config);
+        byte[] value = new byte[16 * 1024]; // 1024 values per block
+        for (int i = 0; i < 3 * 1024; i++) {
+            value[0] = (byte) i;
+            cache.put(i, value);
+        }
+        cache.put(-1, "last".getBytes()); // a new active block, before the holes are left
+        // three dirty blocks, with the live entries spread over each
+        for (int i = 0; i < 3 * 1024; i++) {
+            if (i % 8 != 0) {
+                cache.delete(i);
+            }
+        }
+
+        // 3 * 128 live entries, read and written at 8MB per second
+        for (int i = 0; i < 100 && cache.getStats().getCacheMove() < 3 * 128; i++) {
+            Thread.sleep(100);
+        }
+        Thread.sleep(500); // the merged blocks are freed after the merge
+        assertEquals(3 * 128, cache.getStats().getCacheMove());
+        assertEquals(1, cache.storageManager.getUsedBlockCount());
+        for (int i = 0; i < 3 * 1024; i += 8) {
+            value[0] = (byte) i;
+            assertArrayEquals(value, cache.get(i));
+        }
+        assertEquals("last", new String(cache.get(-1)));
+    }
+
+    @Test
+    public void testExpiryBuckets() throws Exception {
+        CacheConfig config = new CacheConfig()
+                .setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setPurgeInterval(100)
+                .setMergeInterval(500)
+                .setDirtyRatioLimit(0.5)
+                .setExpiryBucketInterval(500);
+        cache = new BigCache<Integer>(TEST_DIR, config);
+        byte[] value = new byte[16 * 1024];
+        // session-style, most of the entries expire soon
+        for (int i = 0; i < 2048; i++) {
+            if (i % 4 == 0) {
+                cache.put(i, value);
+            } else {
+                cache.put(i, value, -1, 1000);
+            }
+        }
+        assertTrue(cache.storageManager.getUsedBlockCount() > 2);
+
+        // the blocks of the expiring entries are freed without any move
+        for (int i = 0; i < 100 && cache.storageManager.getUsedBlockCount() > 1; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(1, cache.storageManager.getUsedBlockCount());
+        assertEquals(0, cache.getStats().getCacheMove());
+        for (int i = 0; i < 2048; i++) {
+            if (i % 4 == 0) {
+                assertArrayEquals(value, cache.get(i));
+            } else {
+                assertNull(cache.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testFifoRing() throws Exception {
+        CacheConfig config = new CacheConfig()
+                .setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setMaxBytes(4 * 16 * 1024 * 1024)
+                .setPurgeInterval(100)
+                .setFifoRing(true);
+        cache = new BigCache<Integer>(TEST_DIR, config);
+        byte[] value = new byte[256 * 1024];
+        // four times as much as the ring holds
+        for (int i = 0; i < 1024; i++) {
+            cache.put(i, value);
+        }
+        assertEquals(4, cache.storageManager.getTotalBlockCount());
+
+        // the oldest entries dropped, the recent ones kept
+        for (int i = 0; i < 128; i++) {
+            assertNull(cache.get(i));
+            assertFalse(cache.contains(i));
+        }
+        for (int i = 1024 - 128; i < 1024; i++) {
+            assertArrayEquals(value, cache.get(i));
+        }
+        assertNull(cache.delete(200));
+
+        // swept from the index by the cleaner, without any move
+        for (int i = 0; i < 100 && cache.count() > 256; i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(cache.count() <= 256);
+        assertTrue(cache.getStats().getCacheEvict() >= 1024 - 256 - 1); // one deleted
+        assertEquals(0, cache.getStats().getCacheMove());
+        assertEquals(4, cache.storageManager.getTotalBlockCount());
+    }
+
+    @Test
+    public void testTimeToLive() throws Exception {
+        cache = new BigCache<Integer>(TEST_DIR, new CacheConfig().setStorageMode(storageMode));
+        cache.put(0, "ttl".getBytes(), -1, 1000);
+        cache.put(1, "both".getBytes(), 60 * 1000, 1000);
+        cache.put(2, "forever".getBytes());
+        long used = cache.getStats().getStorageUsed();
+
+        // accesses don't keep an entry with a time to live alive
+        for (int i = 0; i < 5; i++) {
+            assertEquals("ttl", new String(cache.get(0)));
+            Thread.sleep(100);
+        }
+        Thread.sleep(1000);
+        assertNull(cache.get(0));
+        assertNull(cache.get(1));
+        assertEquals("forever", new String(cache.get(2)));
+
+        // purged within a tick or two of the wheel, long before the default purge interval
+        Thread.sleep(2500);
+        assertEquals(2, cache.getStats().getCacheExpire());
+        assertEquals(1, cache.count());
+        assertTrue(cache.getStats().getStorageUsed() < used);
+
+        // a put starts the expiration over
+        cache.put(2, "ttl".getBytes(), -1, 500);
+        cache.put(2, "forever".getBytes());
+        Thread.sleep(2000);
+        assertEquals("forever", new String(cache.get(2)));
+        assertEquals(2, cache.getStats().getCacheExpire());
+    }
+
+    @Test
+    public void testTimeToIdle() throws Exception {
+        cache = new BigCache<Integer>(TEST_DIR, new CacheConfig().setStorageMode(storageMode));
+        cache.put(0, "accessed".getBytes(), 1000);
+        cache.put(1, "idle".getBytes(), 1000);
+
+        // accessed ones are checked again at their new deadlines instead of being purged
+        for (int i = 0; i < 25; i++) {
+            assertEquals("accessed", new String(cache.get(0)));
+            Thread.sleep(100);
+        }
+        assertNull(cache.get(1));
+        assertEquals(1, cache.getStats().getCacheExpire());
+
+        Thread.sleep(3000);
+        assertNull(cache.get(0));
+        assertEquals(2, cache.getStats().getCacheExpire());
+        assertEquals(0, cache.count());
+
+        // a put brings an expired entry back
+        cache.put(1, "idle".getBytes(), 1000);
+        Thread.sleep(1100);
+        cache.put(1, "again".getBytes(), 1000);
+        assertEquals("again", new String(cache.get(1)));
+    }
+
+    @Test
+    public void testCodec() throws Exception {
+        cache = new BigCache<Integer>(TEST_DIR, new CacheConfig().setStorageMode(storageMode).setCodec(new LzCodec()));
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"bigcache\"},");
+        }
+        byte[] compressible = json.toString().getBytes();
+        byte[] incompressible = new byte[1000];
+        new Random(5).nextBytes(incompressible);
+        byte[] small = "A".getBytes();
+        cache.put(0, compressible);
+        cache.put(1, incompressible);
+        cache.put(2, small);
+        cache.put(3, new byte[0]);
+        assertTrue(cache.getStats().getStorageUsed() < compressible.length / 4 + incompressible.length + 1 + 2 + 1);
+
+        assertArrayEquals(compressible, cache.get(0));
+        assertArrayEquals(incompressible, cache.get(1));
+        assertArrayEquals(small, cache.get(2));
+        assertArrayEquals(new byte[0], cache.get(3));
+
+        ByteBuffer buffer = ByteBuffer.allocate(compressible.length);
+        assertEquals(compressible.length, cache.get(0, buffer));
+        assertArrayEquals(compressible, buffer.array());
+        try {
+            cache.get(1, ByteBuffer.allocate(10));
+            fail("value doesn't fit");
+        } catch (BufferOverflowException expected) {
+        }
+
+        ValueLease lease = cache.lease(0);
+        try {
+            assertEquals(ByteBuffer.wrap(compressible), lease.getBuffer());
+        } finally {
+            lease.close();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(compressible.length, cache.get(0, out));
+        assertArrayEquals(compressible, out.toByteArray());
+
+        Map<Integer, byte[]> values = cache.multiGet(Arrays.asList(0, 1, 2, 4));
+        assertEquals(3, values.size());
+        assertArrayEquals(compressible, values.get(0));
+        assertArrayEquals(incompressible, values.get(1));
+        assertArrayEquals(small, values.get(2));
+
+        assertArrayEquals(compressible, cache.delete(0));
+        assertNull(cache.get(0));
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        cache = new BigCache<Integer>(TEST_DIR, new CacheConfig().setStorageMode(storageMode).setAsyncIo(true));
+        List<CompletableFuture<Void>> puts = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < 1000; i++) {
+            puts.add(cache.putAsync(i, ("value" + i).getBytes()));
+        }
+        for (int i = 0; i < 100; i++) { // stored in order
+            puts.add(cache.putAsync(7, ("value7-" + i).getBytes()));
+        }
+        for (CompletableFuture<Void> put : puts) {
+            put.get();
+        }
+        assertEquals("value7-99", new String(cache.get(7)));
+
+        // many reads outstanding
+        List<CompletableFuture<byte[]>> gets = new ArrayList<CompletableFuture<byte[]>>();
+        for (int i = 0; i < 1000; i++) {
+            gets.add(cache.getAsync(i));
+        }
+        cache.delete(8); // read before the delete
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i == 7 ? "value7-99" : "value" + i, new String(gets.get(i).get()));
+        }
+        assertNull(cache.getAsync(8).get());
+        assertNull(cache.getAsync(1000).get());
+    }
+
+    @Test
+    public void testWriteBuffer() throws Exception {
+        cache = new BigCache<Integer>(TEST_DIR, new CacheConfig().setStorageMode(storageMode)
+                .setWriteBufferSize(64 * 1024));
+        for (int i = 0; i < 10000; i++) {
+            cache.put(i, ("value" + i).getBytes());
+        }
+        cache.put(7, new byte[128 * 1024]); // not buffered
+        cache.put(8, "updated".getBytes());
+        cache.delete(9);
+        for (int i = 0; i < 10000; i++) {
+            if (i == 7) {
+                assertArrayEquals(new byte[128 * 1024], cache.get(i));
+            } else if (i == 8) {
+                assertEquals("updated", new String(cache.get(i)));
+            } else if (i == 9) {
+                assertNull(cache.get(i));
+            } else {
+                assertEquals("value" + i, new String(cache.get(i)));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.get(9999, out);
+        assertEquals("value9999", new String(out.toByteArray()));
+    }
+
+    @Test
+    public void testTiering() throws Exception {
+        CacheConfig config = new CacheConfig()
+                .setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setMaxOffHeapMemorySize(32 * 1024 * 1024) // 2 memory blocks
+                .setMergeInterval(60 * 60 * 1000)
+                .setTiering(true);
+        if (storageMode == StorageMode.PureFile) {
+            cache = null;
+            try {
+                new BigCache<Integer>(TEST_DIR, config);
+                fail("tiering needs memory blocks");
+            } catch (IllegalArgumentException expected) {
+                return;
+            }
+        }
+        cache = new BigCache<Integer>(TEST_DIR, config);
+        BigCache.CacheMerger<Integer> merger = new BigCache.CacheMerger<Integer>(cache);
+        byte[] value = new byte[16 * 1024]; // 1024 values per block
+        for (int i = 0; i < 3 * 1024; i++) {
+            cache.put(i, value);
+        }
+        for (int i = 0; i < 3 * 1024; i++) {
+            assertFalse(isInMemory(i)); // new values go to file blocks
+        }
+
+        // the values read often are promoted
+        read(0, 1024, 3);
+        merger.process(cache);
+        assertEquals(1024, cache.getStats().getCacheMove());
+        for (int i = 0; i < 3 * 1024; i++) {
+            assertEquals(i < 1024, isInMemory(i));
+        }
+
+        // the colder memory block is demoted to make room for the hotter values
+        read(1024, 3 * 1024, 3);
+        merger.process(cache);
+        assertEquals(1024 + 2048 + 1024, cache.getStats().getCacheMove());
+        for (int i = 0; i < 3 * 1024; i++) {
+            assertEquals(i >= 1024, isInMemory(i));
+            assertArrayEquals(value, cache.get(i));
+        }
+    }
+
+    private void read(int from, int to, int times) throws IOException {
+        for (int n = 0; n < times; n++) {
+            for (int i = from; i < to; i++) {
+                assertNotNull(cache.get(i));
+            }
+        }
+    }
+
+    private boolean isInMemory(int key) {
+        return cache.storageManager.isMemoryBlock(cache.pointerMap.get(key).getPointer().getStorageBlock());
+    }
+
+    @Test
+    public void testMaxBytes() throws Exception {
+        CacheConfig config = new CacheConfig()
+                .setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(1)
+                .setMaxBytes(64 * 1024 * 1024);
+        cache = new BigCache<Integer>(TEST_DIR, config);
+        byte[] value = new byte[16 * 1024]; // 1024 values per block
+        for (int i = 0; i < 3 * 1024; i++) {
+            cache.put(i, value);
+        }
+        // the first block is accessed more recently than the second one
+        Thread.sleep(10);
+        for (int i = 0; i < 1024; i++) {
+            assertArrayEquals(value, cache.get(i));
+        }
+
+        for (int i = 3 * 1024; i < 4 * 1024 + 100; i++) {
+            cache.put(i, value);
+        }
+        assertTrue(cache.getStats().getCacheEvict() >= 1024);
+        assertEquals(0, cache.getStats().getCacheEvict() % 1024); // block by block
+        assertTrue(cache.storageManager.getTotalBlockCount() <= 4);
+        assertTrue(cache.storageManager.getCapacity() <= 64 * 1024 * 1024);
+        for (int i = 0; i < 1024; i++) {
+            assertArrayEquals(value, cache.get(i));
+        }
+        for (int i = 1024; i < 2048; i++) {
+            assertNull(cache.get(i));
+        }
+        for (int i = 3 * 1024; i < 4 * 1024 + 100; i++) {
+            assertArrayEquals(value, cache.get(i));
+        }
+
+        // keeps going within the bounds
+        for (int i = 0; i < 10 * 1024; i++) {
+            cache.put(i, value);
+        }
+        assertTrue(cache.storageManager.getTotalBlockCount() <= 4);
+        assertTrue(cache.count() <= 4 * 1024);
+        assertArrayEquals(value, cache.get(10 * 1024 - 1));
+    }
+
     @After
     public void close() throws IOException {
         try {
-            cache.close();
+            if (cache != null) {
+                cache.close();
+            }
             FileUtil.deleteDirectory(new File(TEST_DIR));
         } catch (IllegalStateException e) {
             System.gc();
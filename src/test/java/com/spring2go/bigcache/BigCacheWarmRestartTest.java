@@ -0,0 +1,158 @@
+package com.spring2go.bigcache;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.spring2go.bigcache.CacheConfig.StorageMode;
+import com.spring2go.bigcache.codec.LzCodec;
+import com.spring2go.bigcache.utils.FileUtil;
+import com.spring2go.bigcache.utils.TestUtil;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ */
+@RunWith(Parameterized.class)
+public class BigCacheWarmRestartTest {
+    private static final String TEST_DIR = TestUtil.TEST_BASE_DIR + "unit/bigcache_warm_restart/";
+
+    private BigCache<String> cache;
+
+    @Parameter(value = 0)
+    public StorageMode storageMode;
+
+    @Parameters
+    public static Collection<StorageMode[]> data() throws IOException {
+        StorageMode[][] data = { { StorageMode.PureFile },
+                { StorageMode.MemoryMappedPlusFile },
+                { StorageMode.OffHeapPlusFile } };
+        return Arrays.asList(data);
+    }
+
+    private CacheConfig config(boolean warmRestart) {
+        return new CacheConfig()
+                .setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(2)
+                .setWarmRestart(warmRestart);
+    }
+
+    @Test
+    public void testWarmRestart() throws IOException {
+        cache = new BigCache<String>(TEST_DIR, config(true));
+        int count = 100 * 1000;
+        for (int i = 0; i < count; i++) {
+            cache.put("key" + i, ("value" + i).getBytes());
+        }
+        cache.delete("key0");
+        cache.put("key1", "updated".getBytes());
+        cache.put("tti", "tti".getBytes(), 60 * 1000);
+        cache.close();
+
+        assertTrue(new File(TEST_DIR + BigCache.INDEX_FILE_NAME).exists());
+
+        cache = new BigCache<String>(TEST_DIR, config(true));
+        assertFalse(new File(TEST_DIR + BigCache.INDEX_FILE_NAME).exists());
+        assertEquals(count, cache.count());
+        assertNull(cache.get("key0"));
+        assertEquals("updated", new String(cache.get("key1")));
+        assertEquals("tti", new String(cache.get("tti")));
+        for (int i = 2; i < count; i++) {
+            assertEquals("value" + i, new String(cache.get("key" + i)));
+        }
+
+        // the restored cache works as usual and survives another restart
+        cache.put("key0", "again".getBytes());
+        cache.delete("key2");
+        cache.close();
+
+        cache = new BigCache<String>(TEST_DIR, config(true));
+        assertEquals("again", new String(cache.get("key0")));
+        assertNull(cache.get("key2"));
+        assertEquals("value3", new String(cache.get("key3")));
+    }
+
+    @Test
+    public void testTimeToLive() throws Exception {
+        cache = new BigCache<String>(TEST_DIR, config(true));
+        cache.put("ttl", "ttl".getBytes(), -1, 2000);
+        cache.close();
+
+        // the expire time is absolute, it goes on across restarts
+        cache = new BigCache<String>(TEST_DIR, config(true));
+        assertEquals("ttl", new String(cache.get("ttl")));
+        Thread.sleep(3500);
+        assertNull(cache.get("ttl"));
+        assertEquals(0, cache.count());
+    }
+
+    @Test
+    public void testColdStartWithoutWarmRestart() throws IOException {
+        cache = new BigCache<String>(TEST_DIR, config(true));
+        cache.put("key", "value".getBytes());
+        cache.close();
+
+        cache = new BigCache<String>(TEST_DIR, config(false));
+        assertEquals(0, cache.count());
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    public void testColdStartWithIncompatibleCheckpoint() throws IOException {
+        cache = new BigCache<String>(TEST_DIR, config(true));
+        cache.put("key", "value".getBytes());
+        cache.close();
+
+        cache = new BigCache<String>(TEST_DIR, config(true).setCapacityPerBlock(32 * 1024 * 1024));
+        assertEquals(0, cache.count());
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    public void testCodec() throws IOException {
+        byte[] value = new byte[1000];
+        Arrays.fill(value, (byte) 'v');
+        cache = new BigCache<String>(TEST_DIR, config(true).setCodec(new LzCodec()));
+        cache.put("key", value);
+        cache.close();
+
+        cache = new BigCache<String>(TEST_DIR, config(true).setCodec(new LzCodec()));
+        assertArrayEquals(value, cache.get("key"));
+        cache.close();
+
+        // the values compressed can't be read without the codec
+        cache = new BigCache<String>(TEST_DIR, config(true));
+        assertEquals(0, cache.count());
+    }
+
+    @After
+    public void close() throws IOException {
+        if (cache == null)
+            return;
+        try {
+            cache.close();
+            FileUtil.deleteDirectory(new File(TEST_DIR));
+        } catch (IllegalStateException e) {
+            System.gc();
+            try {
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            } catch (IllegalStateException e1) {
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException e2) {
+                }
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            }
+        }
+    }
+}
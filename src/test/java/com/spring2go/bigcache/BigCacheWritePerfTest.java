@@ -0,0 +1,163 @@
+package com.spring2go.bigcache;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.spring2go.bigcache.CacheConfig.StorageMode;
+import com.spring2go.bigcache.utils.FileUtil;
+import com.spring2go.bigcache.utils.TestUtil;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * Write throughput of new entries by thread count, with a single active block and with an active block per
+ * writer, where the writers don't contend on the allocation in one block. And with the writes to the file blocks
+ * combined in a buffer or not. And the latency of the puts rolling over to a new block, with the blocks created
+ * on demand or preallocated in the background.
+ */
+@RunWith(Parameterized.class)
+public class BigCacheWritePerfTest {
+    private static final int COUNT = 400 * 1000;
+    private static final int VALUE_LENGTH = 128;
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8 };
+    private static final String TEST_DIR = TestUtil.TEST_BASE_DIR + "performance/bigcache_write/";
+
+    private BigCache<Integer> cache;
+
+    @Parameter(value = 0)
+    public StorageMode storageMode;
+
+    @Parameters(name = "{0}")
+    public static Collection<StorageMode[]> data() throws IOException {
+        StorageMode[][] data = { { StorageMode.PureFile },
+                { StorageMode.MemoryMappedPlusFile },
+                { StorageMode.OffHeapPlusFile } };
+        return Arrays.asList(data);
+    }
+
+    @Test
+    public void testWriteScaling() throws Exception {
+        for (int activeBlockCount : new int[] { 1, 8 }) {
+            for (int threadCount : THREAD_COUNTS) {
+                long duration = write(activeBlockCount, threadCount);
+                System.out.printf("%s with %d active block(s): %,d K puts per second by %d thread(s)%n",
+                        storageMode, activeBlockCount, (int) (COUNT * 1e6 / duration), threadCount);
+            }
+        }
+    }
+
+    @Test
+    public void testWriteBuffer() throws Exception {
+        for (int writeBufferSize : new int[] { 0, 256 * 1024 }) {
+            long duration = write(1, 1, writeBufferSize);
+            System.out.printf("%s with %,d bytes write buffer: %,d K puts per second%n",
+                    storageMode, writeBufferSize, (int) (COUNT * 1e6 / duration));
+        }
+    }
+
+    @Test
+    public void testPreallocation() throws Exception {
+        for (int preallocatedBlockCount : new int[] { 0, 4 }) {
+            CacheConfig config = new CacheConfig();
+            config.setStorageMode(storageMode)
+                    .setCapacityPerBlock(16 * 1024 * 1024)
+                    .setInitialNumberOfBlocks(1)
+                    .setPreallocatedBlockCount(preallocatedBlockCount);
+            cache = new BigCache<Integer>(TEST_DIR, config);
+            Thread.sleep(200); // the first blocks are ready
+
+            byte[] value = new byte[4 * 1024];
+            int count = 16 * 1024; // 64M, so a few rollovers
+            long[] latencies = new long[count];
+            for (int i = 0; i < count; i++) {
+                long start = System.nanoTime();
+                cache.put(i, value);
+                latencies[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(latencies);
+            System.out.printf("%s with %d preallocated block(s): %,d ns p99.9, %,d ns max per put%n", storageMode,
+                    preallocatedBlockCount, latencies[count - count / 1000], latencies[count - 1]);
+            close();
+            cache = null;
+        }
+    }
+
+    private long write(int activeBlockCount, final int threadCount) throws Exception {
+        return write(activeBlockCount, threadCount, 0);
+    }
+
+    private long write(int activeBlockCount, final int threadCount, int writeBufferSize) throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setStorageMode(storageMode)
+                .setWriteBufferSize(writeBufferSize)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(activeBlockCount)
+                .setActiveBlockCount(activeBlockCount);
+        cache = new BigCache<Integer>(TEST_DIR, config);
+        final byte[] value = new byte[VALUE_LENGTH];
+
+        ExecutorService service = Executors.newFixedThreadPool(threadCount);
+        Future<?>[] writers = new Future<?>[threadCount];
+        long start = System.nanoTime();
+        for (int t = 0; t < threadCount; t++) {
+            final int finalT = t;
+            writers[t] = service.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = finalT; i < COUNT; i += threadCount) {
+                            cache.put(i, value);
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        long duration = System.nanoTime() - start;
+        service.shutdown();
+
+        assertEquals(COUNT, cache.count());
+        close();
+        cache = null;
+        return duration;
+    }
+
+    @After
+    public void close() throws IOException {
+        try {
+            if (cache != null) {
+                cache.close();
+            }
+            FileUtil.deleteDirectory(new File(TEST_DIR));
+        } catch (IllegalStateException e) {
+            System.gc();
+            try {
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            } catch (IllegalStateException e1) {
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException e2) {
+                }
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            }
+        }
+    }
+}
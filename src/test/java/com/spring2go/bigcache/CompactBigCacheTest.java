@@ -0,0 +1,184 @@
+package com.spring2go.bigcache;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.spring2go.bigcache.CacheConfig.StorageMode;
+import com.spring2go.bigcache.utils.FileUtil;
+import com.spring2go.bigcache.utils.TestUtil;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ */
+@RunWith(Parameterized.class)
+public class CompactBigCacheTest {
+    private static final String TEST_DIR = TestUtil.TEST_BASE_DIR + "unit/compact_bigcache/";
+
+    private CompactBigCache<String> cache;
+
+    @Parameter(value = 0)
+    public StorageMode storageMode;
+
+    @Parameters(name = "{0}")
+    public static Collection<StorageMode[]> data() throws IOException {
+        StorageMode[][] data = { { StorageMode.PureFile },
+                { StorageMode.MemoryMappedPlusFile },
+                { StorageMode.OffHeapPlusFile } };
+        return Arrays.asList(data);
+    }
+
+    private CompactBigCache<String> open(CacheConfig config) throws IOException {
+        config.setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(2);
+        return new CompactBigCache<String>(TEST_DIR, config);
+    }
+
+    @Test
+    public void testPutGetDelete() throws IOException {
+        cache = open(new CacheConfig());
+        cache.put("a", "A".getBytes());
+        cache.put("b", "B".getBytes());
+        assertEquals("A", new String(cache.get("a")));
+        assertEquals("B", new String(cache.get("b")));
+        assertNull(cache.get("c"));
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("c"));
+
+        cache.put("a", "a longer value".getBytes());
+        assertEquals("a longer value", new String(cache.get("a")));
+        cache.put("a", "s".getBytes());
+        assertEquals("s", new String(cache.get("a")));
+
+        assertEquals("B", new String(cache.delete("b")));
+        assertNull(cache.get("b"));
+        assertNull(cache.delete("b"));
+        assertEquals(1, cache.count());
+
+        cache.clear();
+        assertEquals(0, cache.count());
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void testManyKeys() throws IOException {
+        cache = open(new CacheConfig().setConcurrencyLevel(2));
+        int count = 100 * 1000;
+        for (int i = 0; i < count; i++) {
+            cache.put("key" + i, ("value" + i).getBytes());
+        }
+        assertEquals(count, cache.count());
+        for (int i = 0; i < count; i += 2) {
+            assertEquals("value" + i, new String(cache.delete("key" + i)));
+        }
+        assertEquals(count / 2, cache.count());
+        for (int i = 0; i < count; i++) {
+            byte[] value = cache.get("key" + i);
+            if (i % 2 == 0) {
+                assertNull(value);
+            } else {
+                assertEquals("value" + i, new String(value));
+            }
+        }
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        cache = open(new CacheConfig().setPurgeInterval(500));
+        cache.put("tti", "tti".getBytes(), 200);
+        cache.put("forever", "forever".getBytes());
+        assertEquals("tti", new String(cache.get("tti")));
+
+        Thread.sleep(300);
+        assertNull(cache.get("tti"));
+        assertTrue(cache.contains("tti")); // not purged yet
+
+        Thread.sleep(1000);
+        assertFalse(cache.contains("tti"));
+        assertEquals("forever", new String(cache.get("forever")));
+        assertEquals(1, cache.getStats().getCacheExpire());
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        cache = open(new CacheConfig().setMergeInterval(500).setDirtyRatioLimit(0.5));
+        byte[] value = new byte[16 * 1024];
+        int count = 2000; // about 2 blocks
+        for (int i = 0; i < count; i++) {
+            cache.put("key" + i, value);
+        }
+        for (int i = 0; i < count / 2; i++) {
+            cache.delete("key" + i);
+        }
+        cache.put("last", "last".getBytes());
+
+        Thread.sleep(1500);
+        assertTrue(cache.getStats().getCacheMove() > 0);
+        for (int i = count / 2; i < count; i++) {
+            assertArrayEquals(value, cache.get("key" + i));
+        }
+        assertEquals("last", new String(cache.get("last")));
+    }
+
+    @Test
+    public void testMultiOperations() throws IOException {
+        cache = open(new CacheConfig().setConcurrencyLevel(2));
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            entries.put("key" + i, ("value" + i).getBytes());
+            keys.add("key" + i);
+        }
+        cache.multiPut(entries);
+        assertEquals(1000, cache.count());
+
+        keys.add("missing");
+        Map<String, byte[]> values = cache.multiGet(keys);
+        assertEquals(1000, values.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("value" + i, new String(values.get("key" + i)));
+        }
+
+        Map<String, byte[]> deleted = cache.multiDelete(keys.subList(0, 500));
+        assertEquals(500, deleted.size());
+        assertEquals("value499", new String(deleted.get("key499")));
+        assertEquals(500, cache.count());
+        assertEquals(500, cache.multiGet(keys).size());
+    }
+
+    @After
+    public void close() throws IOException {
+        try {
+            if (cache != null) {
+                cache.close();
+            }
+            FileUtil.deleteDirectory(new File(TEST_DIR));
+        } catch (IllegalStateException e) {
+            System.gc();
+            try {
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            } catch (IllegalStateException e1) {
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException e2) {
+                }
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.spring2go.bigcache;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.spring2go.bigcache.CacheConfig.StorageMode;
+import com.spring2go.bigcache.utils.FileUtil;
+import com.spring2go.bigcache.utils.TestUtil;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ */
+@RunWith(Parameterized.class)
+public class OffHeapBigCacheTest {
+    private static final String TEST_DIR = TestUtil.TEST_BASE_DIR + "unit/offheap_bigcache/";
+
+    private OffHeapBigCache<?> cache;
+
+    @Parameter(value = 0)
+    public StorageMode storageMode;
+
+    @Parameters(name = "{0}")
+    public static Collection<StorageMode[]> data() throws IOException {
+        StorageMode[][] data = { { StorageMode.PureFile },
+                { StorageMode.MemoryMappedPlusFile },
+                { StorageMode.OffHeapPlusFile } };
+        return Arrays.asList(data);
+    }
+
+    private <K> OffHeapBigCache<K> open() throws IOException {
+        CacheConfig config = new CacheConfig()
+                .setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(2)
+                .setConcurrencyLevel(2);
+        OffHeapBigCache<K> cache = new OffHeapBigCache<K>(TEST_DIR, config);
+        this.cache = cache;
+        return cache;
+    }
+
+    @Test
+    public void testByteArrayKeys() throws IOException {
+        OffHeapBigCache<byte[]> cache = open();
+        cache.put("key".getBytes(), "value".getBytes());
+        // compared by content
+        assertEquals("value", new String(cache.get("key".getBytes())));
+        assertTrue(cache.contains("key".getBytes()));
+        assertNull(cache.get("other".getBytes()));
+
+        cache.put("key".getBytes(), "new value".getBytes());
+        assertEquals(1, cache.count());
+        assertEquals("new value", new String(cache.delete("key".getBytes())));
+        assertFalse(cache.contains("key".getBytes()));
+    }
+
+    @Test
+    public void testManyStringKeys() throws IOException {
+        OffHeapBigCache<String> cache = open();
+        int count = 100 * 1000;
+        for (int i = 0; i < count; i++) {
+            cache.put("key" + i, ("value" + i).getBytes());
+        }
+        assertEquals(count, cache.count());
+        for (int i = 0; i < count; i += 3) {
+            assertEquals("value" + i, new String(cache.delete("key" + i)));
+        }
+        for (int i = 0; i < count; i++) {
+            byte[] value = cache.get("key" + i);
+            if (i % 3 == 0) {
+                assertNull(value);
+            } else {
+                assertEquals("value" + i, new String(value));
+            }
+        }
+
+        cache.clear();
+        assertEquals(0, cache.count());
+        cache.put("key", "value".getBytes());
+        assertEquals("value", new String(cache.get("key")));
+    }
+
+    @Test
+    public void testContainsAfterClose() throws IOException {
+        OffHeapBigCache<String> cache = open();
+        cache.put("key", "value".getBytes());
+        cache.close();
+        this.cache = null;
+        assertFalse(cache.contains("key"));
+    }
+
+    @After
+    public void close() throws IOException {
+        try {
+            if (cache != null) {
+                cache.close();
+            }
+            FileUtil.deleteDirectory(new File(TEST_DIR));
+        } catch (IllegalStateException e) {
+            System.gc();
+            try {
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            } catch (IllegalStateException e1) {
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException e2) {
+                }
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.spring2go.bigcache.codec;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ */
+public class LzCodecTest {
+    private final LzCodec codec = new LzCodec();
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Random random = new Random(11);
+        StringBuilder json = new StringBuilder();
+        while (json.length() < 100 * 1000) {
+            json.append("{\"id\":").append(random.nextInt(1000)).append(",\"name\":\"user")
+                    .append(random.nextInt(100)).append("\",\"active\":").append(random.nextBoolean()).append("},");
+        }
+        byte[] repeated = new byte[70 * 1000];
+        Arrays.fill(repeated, (byte) 'a');
+        byte[] noise = new byte[10 * 1000];
+        random.nextBytes(noise);
+
+        byte[][] sources = { new byte[0], "a".getBytes(), "abcdabcdabcd".getBytes(), json.toString().getBytes(),
+                repeated, noise };
+        for (byte[] source : sources) {
+            byte[] compressed = new byte[source.length * 2 + 16];
+            int length = codec.compress(source, 0, source.length, compressed, 3, compressed.length - 3);
+            assertTrue(length > 0);
+
+            byte[] decompressed = new byte[source.length + 2];
+            codec.decompress(compressed, 3, length, decompressed, 1, source.length);
+            assertArrayEquals(source, Arrays.copyOfRange(decompressed, 1, source.length + 1));
+        }
+    }
+
+    @Test
+    public void testRatio() {
+        byte[] json = "{\"id\":12345,\"name\":\"bigcache\",\"tags\":[\"cache\",\"offheap\",\"file\"]}".getBytes();
+        byte[] source = new byte[json.length * 100];
+        for (int i = 0; i < 100; i++) {
+            System.arraycopy(json, 0, source, i * json.length, json.length);
+        }
+        byte[] compressed = new byte[source.length];
+        assertTrue(codec.compress(source, 0, source.length, compressed, 0, compressed.length) < source.length / 4);
+
+        // gives up when the compressed bytes get too long
+        byte[] noise = new byte[1000];
+        new Random(3).nextBytes(noise);
+        assertEquals(-1, codec.compress(noise, 0, noise.length, compressed, 0, noise.length));
+    }
+
+    @Test
+    public void testCorrupted() {
+        byte[] source = "abcdefghabcdefghabcdefghabcdefgh".getBytes();
+        byte[] compressed = new byte[64];
+        int length = codec.compress(source, 0, source.length, compressed, 0, compressed.length);
+
+        byte[] truncated = Arrays.copyOf(compressed, length - 2);
+        byte[] badDistance = Arrays.copyOf(compressed, length);
+        badDistance[1 + 8] = (byte) 0xFF; // the distance of the first match, after the token and 8 literals
+        byte[][] corrupted = { truncated, badDistance };
+        for (byte[] bytes : corrupted) {
+            try {
+                codec.decompress(bytes, 0, bytes.length, new byte[source.length], 0, source.length);
+                fail("corrupted bytes decompressed");
+            } catch (IOException expected) {
+            }
+        }
+        try {
+            codec.decompress(compressed, 0, length, new byte[source.length + 1], 0, source.length + 1);
+            fail("decompressed to a wrong length");
+        } catch (IOException expected) {
+        }
+    }
+}
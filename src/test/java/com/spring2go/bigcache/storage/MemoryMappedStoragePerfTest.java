@@ -0,0 +1,112 @@
+package com.spring2go.bigcache.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.spring2go.bigcache.utils.FileUtil;
+import com.spring2go.bigcache.utils.TestUtil;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ *
+ * The time per get and put of small values at random positions of many blocks, by thread count, with the mapped
+ * buffers duplicated per thread and with the mappings copied at their addresses.
+ */
+public class MemoryMappedStoragePerfTest {
+    private static final String TEST_DIR = TestUtil.TEST_BASE_DIR + "performance/memory_mapped_storage/";
+    private static final int BLOCK_COUNT = 8;
+    private static final int CAPACITY = 16 * 1024 * 1024;
+    private static final int VALUE_LENGTH = 128;
+    private static final int COUNT = 2 * 1000 * 1000;
+    private static final int[] THREAD_COUNTS = { 1, 8, 64 };
+
+    private IStorage[] storages = new IStorage[0];
+
+    @Test
+    public void testMemoryMappedStorage() throws Exception {
+        for (int threadCount : THREAD_COUNTS) {
+            for (boolean unsafe : new boolean[] { false, true }) {
+                storages = new IStorage[BLOCK_COUNT];
+                for (int i = 0; i < BLOCK_COUNT; i++) {
+                    storages[i] = unsafe ? new UnsafeMemoryMappedStorage(TEST_DIR, i, CAPACITY)
+                            : new MemoryMappedStorage(TEST_DIR, i, CAPACITY);
+                }
+                long duration = run(threadCount);
+                System.out.printf("%s by %d thread(s): %,d ns per get and put%n",
+                        unsafe ? "UnsafeMemoryMappedStorage" : "MemoryMappedStorage", threadCount,
+                        duration / COUNT);
+                close();
+            }
+        }
+    }
+
+    private long run(final int threadCount) throws Exception {
+        ExecutorService service = Executors.newFixedThreadPool(threadCount);
+        Future<?>[] workers = new Future<?>[threadCount];
+        long start = System.nanoTime();
+        for (int t = 0; t < threadCount; t++) {
+            final int finalT = t;
+            workers[t] = service.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(finalT);
+                    byte[] value = new byte[VALUE_LENGTH];
+                    byte[] dest = new byte[VALUE_LENGTH];
+                    try {
+                        for (int i = finalT; i < COUNT; i += threadCount) {
+                            IStorage storage = storages[random.nextInt(BLOCK_COUNT)];
+                            // the threads write to their own slots
+                            int slot = random.nextInt(CAPACITY / VALUE_LENGTH / threadCount) * threadCount + finalT;
+                            int position = slot * VALUE_LENGTH;
+                            value[0] = (byte) i;
+                            storage.put(position, value);
+                            storage.get(position, dest);
+                            if (dest[0] != (byte) i) {
+                                fail("wrong value at " + position);
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        long duration = System.nanoTime() - start;
+        service.shutdown();
+        return duration;
+    }
+
+    @After
+    public void close() throws IOException {
+        for (IStorage storage : storages) {
+            storage.close();
+        }
+        storages = new IStorage[0];
+        try {
+            FileUtil.deleteDirectory(new File(TEST_DIR));
+        } catch (IllegalStateException e) {
+            System.gc();
+            try {
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            } catch (IllegalStateException e1) {
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException e2) {
+                }
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            }
+        }
+    }
+}
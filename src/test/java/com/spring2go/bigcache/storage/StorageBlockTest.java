@@ -225,6 +225,181 @@ public class StorageBlockTest {
         assertNull(pointer); // overflow
     }
 
+    @Test
+    public void testHoleReuse() throws IOException {
+        StorageBlock storageBlock = new StorageBlock(testDir, 6, 1024 * 1024, storageMode); // 1M
+        block = storageBlock;
+
+        Pointer first = storageBlock.store(new byte[100]);
+        Pointer second = storageBlock.store(new byte[1000]);
+        Pointer third = storageBlock.store(new byte[100]);
+        long end = third.getPosition() + third.getLength();
+
+        // the payload removed is replaced by one of the same size
+        storageBlock.removeLight(first);
+        assertEquals(100, storageBlock.getDirty());
+        Pointer pointer = storageBlock.store("0123456789".getBytes());
+        assertEquals(first.getPosition(), pointer.getPosition());
+        assertEquals("0123456789", new String(storageBlock.retrieve(pointer)));
+        assertEquals(90, storageBlock.getDirty()); // the rest is too small to be reused
+
+        // a larger hole is split
+        storageBlock.remove(second);
+        pointer = storageBlock.store(new byte[600]);
+        assertEquals(second.getPosition(), pointer.getPosition());
+        pointer = storageBlock.store(new byte[300]);
+        assertEquals(second.getPosition() + 600, pointer.getPosition());
+        assertEquals(90 + 100, storageBlock.getDirty());
+
+        // an update moving the payload leaves a hole for the next store, a shrinking one leaves its rest
+        pointer = storageBlock.update(third, new byte[200]);
+        assertEquals(end, pointer.getPosition());
+        pointer = storageBlock.update(pointer, new byte[150]);
+        Pointer next = storageBlock.store(new byte[50]);
+        assertEquals(end + 150, next.getPosition());
+        next = storageBlock.store(new byte[100]);
+        assertEquals(second.getPosition() + 900, next.getPosition());
+        next = storageBlock.store(new byte[100]);
+        assertEquals(third.getPosition(), next.getPosition());
+        assertEquals(90, storageBlock.getDirty());
+        assertEquals(10 + 600 + 300 + 150 + 50 + 100 + 100, storageBlock.getUsed());
+
+        // the holes are not reused while the block is leased, nor after the block is freed
+        storageBlock.removeLight(next);
+        storageBlock.lease();
+        assertEquals(end + 200, storageBlock.store(new byte[100]).getPosition());
+        storageBlock.release();
+        storageBlock.free();
+        assertEquals(0, storageBlock.store(new byte[100]).getPosition());
+        assertEquals(100, storageBlock.store(new byte[100]).getPosition());
+    }
+
+    @Test
+    public void testHoleNotReusedForRecords() throws IOException {
+        StorageBlock storageBlock = new StorageBlock(testDir, 7, 1024 * 1024, storageMode, true); // 1M
+        block = storageBlock;
+
+        byte[] record = StorageRecord.encode("key".getBytes(), new byte[100], 0, -1, -1);
+        Pointer pointer = storageBlock.store(record);
+        storageBlock.removeLight(pointer);
+        assertEquals(record.length, storageBlock.store(record).getPosition());
+    }
+
+    @Test
+    public void testThreadLocalAllocation() throws Exception {
+        final StorageBlock storageBlock = new StorageBlock(testDir, 5, 1024 * 1024, storageMode); // 1M
+        block = storageBlock;
+
+        // each thread allocates from a region of its own, and counts what it uses on its own
+        final Pointer[][] pointers = new Pointer[4][100];
+        Thread[] threads = new Thread[pointers.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int finalT = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < pointers[finalT].length; i++) {
+                            pointers[finalT][i] = storageBlock.store(("payload" + finalT + "-" + i).getBytes());
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long used = 0;
+        for (int t = 0; t < pointers.length; t++) {
+            long region = pointers[t][0].getPosition() / StorageBlock.TLAB_SIZE;
+            for (int i = 0; i < pointers[t].length; i++) {
+                assertEquals("payload" + t + "-" + i, new String(storageBlock.retrieve(pointers[t][i])));
+                assertEquals(region, pointers[t][i].getPosition() / StorageBlock.TLAB_SIZE);
+                used += pointers[t][i].getLength();
+            }
+        }
+        assertEquals(used, storageBlock.getUsed());
+        assertEquals(4 * StorageBlock.TLAB_SIZE, storageBlock.getOffset());
+
+        for (Pointer[] threadPointers : pointers) {
+            for (Pointer pointer : threadPointers) {
+                storageBlock.removeLight(pointer);
+            }
+        }
+        assertEquals(0, storageBlock.getUsed());
+
+        // the regions reserved before are dropped once the block is freed
+        storageBlock.free();
+        Pointer pointer = storageBlock.store("again".getBytes());
+        assertEquals(0, pointer.getPosition());
+        assertEquals(5, storageBlock.getUsed());
+
+        // larger payloads are allocated from the block directly
+        pointer = storageBlock.store(new byte[StorageBlock.MAX_TLAB_PAYLOAD_LENGTH + 1]);
+        assertEquals(StorageBlock.TLAB_SIZE, pointer.getPosition());
+    }
+
+    @Test
+    public void testRetire() throws Exception {
+        final StorageBlock storageBlock = new StorageBlock(testDir, 6, 1024 * 1024, storageMode); // 1M
+        block = storageBlock;
+
+        final Pointer[] pointers = new Pointer[2];
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pointers[0] = storageBlock.store(new byte[100]);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.start();
+        writer.join();
+        pointers[1] = storageBlock.store(new byte[200]);
+        assertEquals(0, storageBlock.getDirty());
+
+        // the rest of the regions of all the writers is dirty once retired, and no new region is reserved
+        storageBlock.retire();
+        assertEquals(2 * StorageBlock.TLAB_SIZE - 300, storageBlock.getDirty());
+        assertEquals(300, storageBlock.getUsed());
+        storageBlock.store(new byte[100]); // from the rest given up, kept as a hole
+        assertEquals(2 * StorageBlock.TLAB_SIZE, storageBlock.getOffset());
+        assertEquals(100, storageBlock.retrieve(pointers[0]).length);
+
+        // appended to again once freed
+        storageBlock.free();
+        assertEquals(0, storageBlock.store(new byte[100]).getPosition());
+        assertEquals(0, storageBlock.getDirty());
+    }
+
+    @Test
+    public void testLongOffsets() throws IOException {
+        if (storageMode == StorageMode.OffHeapPlusFile) {
+            return; // would load 2G from the file
+        }
+        // reopened with the offset beyond 2G, the file is sparse
+        long capacity = 3L * 1024 * 1024 * 1024;
+        long offset = Integer.MAX_VALUE + 100L;
+        File file = new File(testDir + 8 + "-" + System.currentTimeMillis() + IStorage.DATA_FILE_SUFFIX);
+        StorageBlock storageBlock = new StorageBlock(new BlockInfo(8, storageMode, file, offset, 0, 0, 0), capacity,
+                storageMode, false);
+        block = storageBlock;
+
+        Pointer pointer = storageBlock.store("beyond 2G".getBytes());
+        assertTrue(pointer.getPosition() >= offset);
+        assertEquals("beyond 2G", new String(storageBlock.retrieve(pointer)));
+        Pointer large = storageBlock.store(new byte[StorageBlock.MAX_TLAB_PAYLOAD_LENGTH + 1]);
+        assertTrue(large.getPosition() > pointer.getPosition());
+        assertEquals(capacity, storageBlock.getCapacity());
+        assertEquals(large.getPosition() + large.getLength(), storageBlock.getOffset());
+    }
+
     @After
     public void clear() throws IOException {
         if (this.block != null) {
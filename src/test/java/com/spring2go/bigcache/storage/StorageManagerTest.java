@@ -2,8 +2,14 @@ package com.spring2go.bigcache.storage;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
 
@@ -14,6 +20,7 @@ import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameter;
 import org.junit.runners.Parameterized.Parameters;
 
+import com.spring2go.bigcache.CacheConfig;
 import com.spring2go.bigcache.CacheConfig.StorageMode;
 import com.spring2go.bigcache.utils.FileUtil;
 import com.spring2go.bigcache.utils.TestUtil;
@@ -337,6 +344,451 @@ public class StorageManagerTest {
         assertTrue(Math.abs(expectedRatio - storageManager.getDirtyRatio()) <= 1e-6);
     }
 
+    @Test
+    public void testLeasedBlockNotCleaned() throws IOException {
+        storageManager = new StorageManager(testDir, 1024 * 1024, 2, storageMode, size); // 2M Total
+
+        byte[] sourceBytes = new byte[1024];
+        Pointer[] pointers = new Pointer[1024];
+        for(int i = 0; i < 1024; i++) {
+            pointers[i] = storageManager.store(sourceBytes);
+        }
+        storageManager.store(sourceBytes); // switch active block
+        for(Pointer pointer : pointers) {
+            storageManager.removeLight(pointer);
+        }
+        StorageBlock block = pointers[0].getStorageBlock();
+        assertTrue(0 == block.getUsed());
+
+        block.lease();
+        storageManager.clean();
+        assertTrue(2 == storageManager.getUsedBlockCount()); // kept while leased
+
+        block.release();
+        storageManager.clean();
+        assertTrue(1 == storageManager.getUsedBlockCount());
+        assertTrue(1 == storageManager.getFreeBlockCount());
+    }
+
+    @Test
+    public void testActiveBlocks() throws Exception {
+        CacheConfig config = new CacheConfig()
+                .setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(1)
+                .setActiveBlockCount(4);
+        storageManager = new StorageManager(testDir, config, null);
+        assertTrue(4 == storageManager.getTotalBlockCount());
+        assertTrue(4 == storageManager.getUsedBlockCount());
+
+        // each thread appends to one of the active blocks
+        final int threadCount = 8;
+        final Pointer[][] pointers = new Pointer[threadCount][1000];
+        final long[] threadIds = new long[threadCount];
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int finalT = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    threadIds[finalT] = Thread.currentThread().getId();
+                    try {
+                        for (int i = 0; i < pointers[finalT].length; i++) {
+                            pointers[finalT][i] = storageManager.store(("payload" + finalT + "-" + i).getBytes());
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Map<Long, StorageBlock> blocksByShard = new HashMap<Long, StorageBlock>();
+        for (int t = 0; t < threadCount; t++) {
+            StorageBlock block = pointers[t][0].getStorageBlock();
+            for (int i = 0; i < pointers[t].length; i++) {
+                assertEquals("payload" + t + "-" + i, new String(storageManager.retrieve(pointers[t][i])));
+                assertSame(block, pointers[t][i].getStorageBlock());
+            }
+            StorageBlock shardBlock = blocksByShard.put(threadIds[t] % 4, block);
+            assertTrue(shardBlock == null || shardBlock == block);
+        }
+
+        // none of the active blocks is recycled even if empty
+        storageManager.free();
+        storageManager.clean();
+        assertTrue(4 == storageManager.getUsedBlockCount());
+        assertTrue(0 == storageManager.getUsed());
+    }
+
+    @Test
+    public void testTiering() throws IOException {
+        CacheConfig config = new CacheConfig()
+                .setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(1)
+                .setMaxOffHeapMemorySize(32 * 1024 * 1024)
+                .setTiering(true);
+        if (storageMode == StorageMode.PureFile) {
+            try {
+                new StorageManager(testDir, config, null);
+                fail("tiering without memory");
+            } catch (IllegalArgumentException expected) {
+            }
+            return;
+        }
+        storageManager = new StorageManager(testDir, config, null);
+
+        // new writes go to the file blocks
+        byte[] payload = new byte[1024 * 1024];
+        Pointer filePointer = storageManager.store(payload);
+        assertFalse(storageManager.isMemoryBlock(filePointer.getStorageBlock()));
+
+        // the memory blocks hold what is stored in memory, until the memory is used up
+        List<Pointer> memoryPointers = new ArrayList<Pointer>();
+        Pointer memoryPointer;
+        while ((memoryPointer = storageManager.storeInMemory(payload)) != null) {
+            assertTrue(storageManager.isMemoryBlock(memoryPointer.getStorageBlock()));
+            memoryPointers.add(memoryPointer);
+        }
+        assertTrue(memoryPointers.size() >= 30);
+        assertFalse(storageManager.isMemoryBlock(storageManager.store(payload).getStorageBlock()));
+
+        // the memory block freed goes back to the memory
+        StorageBlock firstMemoryBlock = memoryPointers.get(0).getStorageBlock();
+        for (Pointer pointer : memoryPointers) {
+            if (pointer.getStorageBlock() == firstMemoryBlock) {
+                storageManager.removeLight(pointer);
+            }
+        }
+        storageManager.clean();
+        assertNotNull(storageManager.storeInMemory(payload));
+    }
+
+    @Test
+    public void testProvision() throws IOException {
+        CacheConfig config = new CacheConfig()
+                .setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(1)
+                .setMaxOffHeapMemorySize(64 * 1024 * 1024)
+                .setMaxBytes(4 * 16 * 1024 * 1024)
+                .setPreallocatedBlockCount(2);
+        storageManager = new StorageManager(testDir, config, null);
+        assertTrue(storageManager.isPreallocating());
+        assertEquals(1, storageManager.getTotalBlockCount());
+        assertEquals(0, storageManager.getFreeBlockCount());
+
+        storageManager.provision();
+        assertEquals(3, storageManager.getTotalBlockCount());
+        assertEquals(2, storageManager.getFreeBlockCount());
+
+        // the rollover takes a ready block rather than creating one
+        byte[] payload = new byte[1024 * 1024];
+        for (int i = 0; i < 17; i++) {
+            assertNotNull(storageManager.store(payload));
+        }
+        assertEquals(3, storageManager.getTotalBlockCount());
+        assertEquals(1, storageManager.getFreeBlockCount());
+
+        // up to the max bytes
+        storageManager.provision();
+        assertEquals(4, storageManager.getTotalBlockCount());
+        assertEquals(2, storageManager.getFreeBlockCount());
+        for (int i = 0; i < 3 * 16 - 1; i++) {
+            assertNotNull(storageManager.store(payload));
+        }
+        storageManager.provision();
+        assertEquals(4, storageManager.getTotalBlockCount());
+        assertEquals(0, storageManager.getFreeBlockCount());
+    }
+
+    @Test
+    public void testProvisionFailure() throws IOException {
+        String dir = testDir + "provision/";
+        CacheConfig config = new CacheConfig()
+                .setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(1)
+                .setMaxOffHeapMemorySize(16 * 1024 * 1024)
+                .setMaxBytes(4 * 16 * 1024 * 1024)
+                .setPreallocatedBlockCount(2);
+        storageManager = new StorageManager(dir, config, null);
+
+        // the block files can't be created with a file in place of the directory
+        File dirFile = new File(dir);
+        FileUtil.deleteDirectory(dirFile);
+        dirFile.getParentFile().mkdirs();
+        assertTrue(dirFile.createNewFile());
+        for (int i = 0; i < 4; i++) {
+            try {
+                storageManager.provision();
+                fail();
+            } catch (IOException expected) {
+            }
+        }
+        assertEquals(1, storageManager.getTotalBlockCount());
+
+        // nothing used up by the failures
+        assertTrue(dirFile.delete());
+        storageManager.provision();
+        assertEquals(3, storageManager.getTotalBlockCount());
+        assertEquals(2, storageManager.getFreeBlockCount());
+        assertNotNull(storageManager.getBlock(1));
+        assertNotNull(storageManager.getBlock(2));
+    }
+
+    @Test
+    public void testCreateFailure() throws IOException {
+        String dir = testDir + "create/";
+        CacheConfig config = new CacheConfig()
+                .setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(1)
+                .setMaxOffHeapMemorySize(16 * 1024 * 1024)
+                .setMaxBytes(4 * 16 * 1024 * 1024);
+        storageManager = new StorageManager(dir, config, null);
+        byte[] payload = new byte[10 * 1024 * 1024];
+        storageManager.store(payload);
+
+        // the block files can't be created with a file in place of the directory
+        File dirFile = new File(dir);
+        FileUtil.deleteDirectory(dirFile);
+        dirFile.getParentFile().mkdirs();
+        assertTrue(dirFile.createNewFile());
+        for (int i = 0; i < 4; i++) {
+            try {
+                storageManager.store(payload);
+                fail();
+            } catch (IOException expected) {
+            }
+        }
+        assertEquals(1, storageManager.getTotalBlockCount());
+
+        // nothing used up by the failures
+        assertTrue(dirFile.delete());
+        assertTrue(dirFile.mkdirs());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, storageManager.store(payload).getStorageBlock().getIndex());
+        }
+        assertEquals(4, storageManager.getTotalBlockCount());
+    }
+
+    @Test
+    public void testExpiryBuckets() throws Exception {
+        CacheConfig config = new CacheConfig()
+                .setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(4)
+                .setExpiryBucketInterval(100)
+                .setExpiryBucketCount(8);
+        storageManager = new StorageManager(testDir, config, null);
+        byte[] payload = new byte[1024];
+        long bucketStart = (System.currentTimeMillis() / 100 + 2) * 100;
+
+        // grouped by the range of deadlines
+        Pointer first = storageManager.store(payload, bucketStart + 10);
+        Pointer second = storageManager.store(payload, bucketStart + 20);
+        Pointer next = storageManager.store(payload, bucketStart + 110);
+        assertSame(first.getStorageBlock(), second.getStorageBlock());
+        assertNotSame(first.getStorageBlock(), next.getStorageBlock());
+        // neither the ones never expiring nor the ones beyond the buckets
+        Pointer never = storageManager.store(payload, -1);
+        Pointer far = storageManager.store(payload, bucketStart + 100 * 100);
+        assertSame(never.getStorageBlock(), far.getStorageBlock());
+        assertNotSame(never.getStorageBlock(), first.getStorageBlock());
+        assertNotSame(never.getStorageBlock(), next.getStorageBlock());
+        assertTrue(storageManager.isActive(first.getStorageBlock()));
+        assertEquals(3, storageManager.getUsedBlockCount());
+
+        // left to the expiration rather than merged
+        storageManager.removeLight(first);
+        storageManager.removeLight(far);
+        assertEquals(Arrays.asList(never.getStorageBlock()), storageManager.getDirtyBlocks(0));
+        storageManager.removeLight(second);
+        storageManager.removeLight(next);
+        storageManager.clean();
+        assertEquals(3, storageManager.getUsedBlockCount()); // still active
+
+        // freed without any copy once the buckets are passed
+        while (System.currentTimeMillis() < bucketStart + 200) {
+            Thread.sleep(10);
+        }
+        storageManager.clean();
+        assertEquals(1, storageManager.getUsedBlockCount());
+        assertEquals(3, storageManager.getFreeBlockCount());
+        assertFalse(storageManager.isActive(first.getStorageBlock()));
+    }
+
+    @Test
+    public void testFifoRing() throws IOException {
+        CacheConfig config = new CacheConfig()
+                .setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(1)
+                .setMaxBytes(3 * 16 * 1024 * 1024)
+                .setFifoRing(true);
+        storageManager = new StorageManager(testDir, config, null);
+        byte[] payload = new byte[6 * 1024 * 1024];
+        Pointer[] pointers = new Pointer[6];
+        for (int i = 0; i < pointers.length; i++) { // two payloads a block
+            pointers[i] = storageManager.store(payload);
+        }
+        StorageBlock first = pointers[0].getStorageBlock();
+        StorageBlock second = pointers[2].getStorageBlock();
+        StorageBlock third = pointers[4].getStorageBlock();
+        assertEquals(3, storageManager.getTotalBlockCount());
+        assertFalse(storageManager.isFull());
+
+        // the oldest block dropped for reuse
+        Pointer pointer = storageManager.store(payload);
+        assertSame(first, pointer.getStorageBlock());
+        assertTrue(pointers[0].isStale());
+        assertTrue(pointers[1].isStale());
+        assertFalse(pointers[2].isStale());
+        assertFalse(pointer.isStale());
+        assertNull(storageManager.remove(pointers[0]));
+        assertEquals(payload.length, storageManager.retrieve(pointer).length);
+
+        // a leased block is dropped but not reused until released
+        second.lease();
+        storageManager.store(payload);
+        pointer = storageManager.store(payload);
+        assertSame(third, pointer.getStorageBlock());
+        assertTrue(pointers[2].isStale());
+        assertTrue(pointers[4].isStale());
+        assertEquals(Arrays.asList(first.getIndex(), second.getIndex(), third.getIndex()),
+                storageManager.pollDroppedBlockIndexes());
+        assertTrue(storageManager.pollDroppedBlockIndexes().isEmpty());
+        storageManager.clean();
+        assertEquals(0, storageManager.getFreeBlockCount());
+        second.release();
+        storageManager.clean();
+        assertEquals(1, storageManager.getFreeBlockCount());
+        assertEquals(3, storageManager.getTotalBlockCount());
+    }
+
+    @Test
+    public void testFifoRingConcurrentUpdate() throws Exception {
+        CacheConfig config = new CacheConfig()
+                .setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(1)
+                .setMaxBytes(3 * 16 * 1024 * 1024)
+                .setFifoRing(true);
+        storageManager = new StorageManager(testDir, config, null);
+
+        // an update is moved to the active block, never appended to an older one even if there is room left
+        Pointer pointer = storageManager.store(new byte[1024]);
+        StorageBlock first = pointer.getStorageBlock();
+        byte[] payload = new byte[6 * 1024 * 1024];
+        for (int i = 0; i < 3; i++) {
+            storageManager.store(payload);
+        }
+        pointer = storageManager.update(pointer, new byte[1024]);
+        assertNotSame(first, pointer.getStorageBlock());
+
+        // the writers roll the ring twice, dropping the blocks the updaters are moving the payloads out of
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] writers = new Thread[2];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 6 * 1024; i++) {
+                            storageManager.store(new byte[8 * 1024]);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+        }
+        Thread[] updaters = new Thread[4];
+        for (int t = 0; t < updaters.length; t++) {
+            final byte marker = (byte) (t + 1);
+            updaters[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        byte[] payload = new byte[1024];
+                        Arrays.fill(payload, marker);
+                        Pointer[] pointers = new Pointer[16];
+                        for (int i = 0; i < pointers.length; i++) {
+                            pointers[i] = storageManager.store(payload);
+                        }
+                        for (int round = 0; writing.get(); round++) {
+                            int i = round % pointers.length;
+                            pointers[i] = storageManager.update(pointers[i], payload);
+                            byte[] stored = storageManager.retrieve(pointers[i]);
+                            if (!pointers[i].isStale()) { // overwritten if stored in a dropped block
+                                assertArrayEquals(payload, stored);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+        }
+        for (Thread updater : updaters) {
+            updater.start();
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        writing.set(false);
+        for (Thread updater : updaters) {
+            updater.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(3, storageManager.getTotalBlockCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFifoRingWithoutMaxBytes() throws IOException {
+        storageManager = new StorageManager(testDir, new CacheConfig().setStorageMode(storageMode).setFifoRing(true), null);
+    }
+
+    @Test
+    public void testFlushDue() throws IOException {
+        CacheConfig config = new CacheConfig()
+                .setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(1)
+                .setSharedMapping(true)
+                .setFlushInterval(60 * 1000)
+                .setFlushBytes(1000);
+        storageManager = new StorageManager(testDir, config, null);
+        // only the memory mapped blocks are mapped shared
+        assertEquals(storageMode == StorageMode.MemoryMappedPlusFile, storageManager.isFlushed());
+        if (!storageManager.isFlushed()) {
+            return;
+        }
+
+        StorageBlock block = storageManager.store(new byte[2000]).getStorageBlock();
+        assertEquals(2000, block.getUnflushed());
+        storageManager.flushDue(); // over the flush bytes
+        assertEquals(0, block.getUnflushed());
+
+        storageManager.store(new byte[500]);
+        storageManager.flushDue(); // neither over the flush bytes nor the flush interval
+        assertEquals(500, block.getUnflushed());
+        storageManager.flush();
+        assertEquals(0, block.getUnflushed());
+    }
+
     @After
     public void clear() throws IOException {
         if (this.storageManager != null) {
@@ -1,11 +1,14 @@
 package com.spring2go.bigcache.storage;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -33,7 +36,13 @@ public class StorageUnitTest {
     public static Collection<IStorage[]> data() throws IOException {
         storageData = new IStorage[][] { { new FileChannelStorage(TEST_DIR, 0, 16 * 1024 * 1024) },
                 { new MemoryMappedStorage(TEST_DIR, 0, 16 * 1024 * 1024) },
-                { new OffHeapStorage(16 * 1024 * 1024) } };
+                { new OffHeapStorage(16 * 1024 * 1024) },
+                { new AsyncFileChannelStorage(TEST_DIR, 1, 16 * 1024 * 1024) },
+                { new WriteCombiningStorage(new File(TEST_DIR + 2 + IStorage.DATA_FILE_SUFFIX), 16 * 1024 * 1024,
+                        64 * 1024) },
+                { new UnsafeMemoryMappedStorage(TEST_DIR, 3, 16 * 1024 * 1024) },
+                { new UnsafeMemoryMappedStorage(new File(TEST_DIR + 4 + IStorage.DATA_FILE_SUFFIX), 16 * 1024 * 1024,
+                        true) } };
         return Arrays.asList(storageData);
     }
 
@@ -78,6 +87,16 @@ public class StorageUnitTest {
         assertEquals(new String(dest), "W");
     }
 
+    @Test
+    public void testGetAsync() throws Exception {
+        storage6();
+        ByteBuffer dest = ByteBuffer.allocate(3);
+        CompletableFuture<Void> read = storage.getAsync(2, dest);
+        read.get();
+        assertEquals(new String(dest.array()), "CDE");
+        assertFalse(dest.hasRemaining());
+    }
+
     @After
     public void clear() throws IOException {
         storage.free();
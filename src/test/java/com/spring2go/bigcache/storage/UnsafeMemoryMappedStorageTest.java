@@ -0,0 +1,104 @@
+package com.spring2go.bigcache.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.spring2go.bigcache.utils.FileUtil;
+import com.spring2go.bigcache.utils.TestUtil;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ */
+public class UnsafeMemoryMappedStorageTest {
+    private static String testDir = TestUtil.TEST_BASE_DIR + "unit/unsafe_memory_mapped_storage_test/";
+    private static final int MAPPING_SHIFT = 20; // 1M
+    private static final int MAPPING_SIZE = 1 << MAPPING_SHIFT;
+
+    private IStorage storage = null;
+
+    @Test
+    public void testStitchedMappings() throws IOException {
+        storage = new UnsafeMemoryMappedStorage(new File(testDir + "0" + IStorage.DATA_FILE_SUFFIX),
+                4 * MAPPING_SIZE + 100, false, MAPPING_SHIFT);
+
+        // the copies crossing the end of a mapping are split
+        byte[] payload = new byte[3 * MAPPING_SIZE];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        int position = MAPPING_SIZE - 10;
+        storage.put(position, payload);
+        byte[] dest = new byte[payload.length];
+        storage.get(position, dest);
+        assertArrayEquals(payload, dest);
+        ByteBuffer direct = ByteBuffer.allocateDirect(20);
+        storage.get(2 * MAPPING_SIZE - 10, direct);
+        assertEquals(0, direct.remaining());
+        direct.flip();
+        assertEquals(payload[MAPPING_SIZE], direct.get());
+
+        // the ranges within a mapping are viewed, the others are not
+        assertEquals(payload[10], storage.slice(MAPPING_SIZE, 10).get());
+        assertNull(storage.slice(2 * MAPPING_SIZE - 10, 20));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        storage.get(position, payload.length, Channels.newChannel(out));
+        assertArrayEquals(payload, out.toByteArray());
+        storage.put(4 * MAPPING_SIZE - 50, Channels.newChannel(new ByteArrayInputStream(payload)), 150);
+        dest = new byte[150];
+        storage.get(4 * MAPPING_SIZE - 50, dest);
+        assertArrayEquals(Arrays.copyOf(payload, 150), dest);
+
+        try {
+            storage.get(4 * MAPPING_SIZE + 50, new byte[51]);
+            fail("beyond the capacity");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    @Test
+    public void testLargerThan2GB() throws IOException {
+        long capacity = 3L * 1024 * 1024 * 1024; // 3G, sparse
+        storage = new UnsafeMemoryMappedStorage(testDir, 1, capacity);
+
+        long position = (1L << UnsafeMemoryMappedStorage.MAPPING_SHIFT) * 2 + 1000; // in the third mapping
+        storage.put(position, "beyond 2GB".getBytes());
+        byte[] dest = new byte[10];
+        storage.get(position, dest);
+        assertEquals("beyond 2GB", new String(dest));
+        storage.put(capacity - 4, "last".getBytes());
+        storage.get(capacity - 4, dest = new byte[4]);
+        assertEquals("last", new String(dest));
+    }
+
+    @After
+    public void clear() throws IOException {
+        if (this.storage != null) {
+            this.storage.close();
+        }
+        try {
+            FileUtil.deleteDirectory(new File(testDir));
+        } catch (IllegalStateException e) {
+            System.gc();
+            try {
+                FileUtil.deleteDirectory(new File(testDir));
+            } catch (IllegalStateException e1) {
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException e2) {
+                }
+                FileUtil.deleteDirectory(new File(testDir));
+            }
+        }
+    }
+}
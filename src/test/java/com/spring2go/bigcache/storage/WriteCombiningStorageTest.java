@@ -0,0 +1,94 @@
+package com.spring2go.bigcache.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.spring2go.bigcache.utils.FileUtil;
+import com.spring2go.bigcache.utils.TestUtil;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ */
+public class WriteCombiningStorageTest {
+    private static String testDir = TestUtil.TEST_BASE_DIR + "unit/write_combining_storage_test/";
+    private static final int CAPACITY = 16 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 4 * 1024;
+
+    private File file = new File(testDir + "0" + IStorage.DATA_FILE_SUFFIX);
+    private IStorage storage = null;
+    private IStorage fileStorage = null;
+
+    @Test
+    public void testWriteCombining() throws IOException {
+        storage = new WriteCombiningStorage(file, CAPACITY, BUFFER_SIZE);
+        fileStorage = new FileChannelStorage(file, CAPACITY);
+
+        // the appends are buffered
+        byte[] payload = new byte[100];
+        for (int i = 0; i < 10; i++) {
+            Arrays.fill(payload, (byte) (i + 1));
+            storage.put(i * 100, payload);
+        }
+        assertArrayEquals(new byte[100], read(fileStorage, 0, 100));
+        assertArrayEquals(payload, read(storage, 900, 100));
+
+        // overwritten in the buffer, and read across the file and the buffer
+        storage.put(950, new byte[10]);
+        byte[] bytes = read(storage, 940, 100);
+        assertEquals(10, bytes[0]);
+        assertEquals(0, bytes[10]);
+        assertEquals(10, bytes[20]);
+        assertEquals(0, bytes[60]);
+
+        // flushed when the writes go elsewhere
+        storage.put(8000, "elsewhere".getBytes());
+        assertArrayEquals(bytes, read(fileStorage, 940, 100));
+        assertArrayEquals(new byte[9], read(fileStorage, 8000, 9));
+        assertEquals("elsewhere", new String(read(storage, 8000, 9)));
+
+        // or when full, the long writes are not buffered
+        storage.put(8009, new byte[BUFFER_SIZE - 9]);
+        storage.put(8000 + BUFFER_SIZE, "full".getBytes());
+        assertEquals("elsewhere", new String(read(fileStorage, 8000, 9)));
+        byte[] longPayload = new byte[BUFFER_SIZE];
+        Arrays.fill(longPayload, (byte) 1);
+        storage.put(20000, longPayload);
+        assertArrayEquals(longPayload, read(fileStorage, 20000, BUFFER_SIZE));
+        assertEquals("full", new String(read(fileStorage, 8000 + BUFFER_SIZE, 4)));
+
+        storage.put(30000, "flushed".getBytes());
+        storage.flush();
+        assertEquals("flushed", new String(read(fileStorage, 30000, 7)));
+
+        // the bytes buffered are dropped when freed
+        storage.put(40000, "freed".getBytes());
+        storage.free();
+        storage.flush();
+        assertArrayEquals(new byte[5], read(fileStorage, 40000, 5));
+    }
+
+    private static byte[] read(IStorage storage, int position, int length) throws IOException {
+        ByteBuffer dest = ByteBuffer.allocate(length);
+        storage.get(position, dest);
+        assertFalse(dest.hasRemaining());
+        return dest.array();
+    }
+
+    @After
+    public void clear() throws IOException {
+        if (this.storage != null) {
+            this.storage.close();
+        }
+        if (this.fileStorage != null) {
+            this.fileStorage.close();
+        }
+        FileUtil.deleteDirectory(new File(testDir));
+    }
+}
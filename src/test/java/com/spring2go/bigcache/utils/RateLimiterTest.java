@@ -0,0 +1,56 @@
+package com.spring2go.bigcache.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ */
+public class RateLimiterTest {
+
+    @Test
+    public void testUnlimited() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            limiter.acquire(Integer.MAX_VALUE);
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+    }
+
+    @Test
+    public void testRate() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(10 * 1000);
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire(1000);
+        }
+        long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(duration >= 950);
+        assertTrue(duration < 3000);
+    }
+
+    @Test
+    public void testBurst() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(10 * 1000);
+        Thread.sleep(500);
+        // half a second of permits saved
+        long start = System.nanoTime();
+        limiter.acquire(4000);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+
+        // at most a second of them
+        Thread.sleep(2000);
+        start = System.nanoTime();
+        limiter.acquire(15 * 1000);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 450);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeRate() {
+        new RateLimiter(-1);
+    }
+}
@@ -0,0 +1,73 @@
+package com.spring2go.bigcache.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Created on Jul, 2020 by @author bobo
+ */
+public class TimerWheelTest {
+
+    @Test
+    public void testDueInOrder() {
+        TimerWheel<Long> wheel = new TimerWheel<Long>(10, 0);
+        long[] deadlines = { 5, 10, 11, 640, 650, 641 * 10, 64L * 64 * 64 * 10 + 3, 1000L * 1000 * 1000 * 1000 };
+        for (long deadline : deadlines) {
+            wheel.schedule(deadline, deadline);
+        }
+        assertEquals(deadlines.length, wheel.size());
+
+        assertEquals(Collections.<Long>emptyList(), wheel.advance(9));
+        assertEquals(Arrays.asList(5L, 10L), wheel.advance(10));
+        // rounded up to the tick, never due early
+        assertEquals(Collections.<Long>emptyList(), wheel.advance(19));
+        assertEquals(Collections.singletonList(11L), wheel.advance(20));
+        assertEquals(Collections.singletonList(640L), wheel.advance(649));
+        assertEquals(Collections.singletonList(650L), wheel.advance(650));
+        assertEquals(Collections.<Long>emptyList(), wheel.advance(6409));
+        assertEquals(Collections.singletonList(6410L), wheel.advance(6410));
+        assertEquals(Collections.singletonList(64L * 64 * 64 * 10 + 3), wheel.advance(64L * 64 * 64 * 10 + 10));
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void testPastDeadline() {
+        TimerWheel<String> wheel = new TimerWheel<String>(1000, 5000);
+        wheel.schedule("past", 1000);
+        assertEquals(Collections.<String>emptyList(), wheel.advance(5000));
+        assertEquals(Collections.singletonList("past"), wheel.advance(6000));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testRandomDeadlines() {
+        Random random = new Random(7);
+        TimerWheel<Long> wheel = new TimerWheel<Long>(1, 0);
+        List<Long> deadlines = new ArrayList<Long>();
+        for (int i = 0; i < 100 * 1000; i++) {
+            long deadline = random.nextInt(3 * 64 * 64 * 64);
+            deadlines.add(deadline);
+            wheel.schedule(deadline, deadline);
+        }
+        Collections.sort(deadlines);
+
+        List<Long> due = new ArrayList<Long>();
+        for (long now = 0; wheel.size() > 0; now += random.nextInt(500)) {
+            List<Long> items = wheel.advance(now);
+            for (long item : items) {
+                assertTrue(item <= now);
+                assertTrue(item > now - 500); // due as soon as reached
+            }
+            Collections.sort(items);
+            due.addAll(items);
+        }
+        assertEquals(deadlines, due);
+    }
+}